@@ -1,4 +1,5 @@
-/** AST ::= BoolConstant | IntConstant | JamEmpty | Variable | PrimFun | UnOpApp | BinOpApp | App | Map | If | Let */
+/** AST ::= BoolConstant | IntConstant | JamEmpty | Variable | LexicalVariable | PrimFun | UnOpApp | BinOpApp | App | Map |
+  *         If | Let | LetRec */
 
 /** AST class definitions */
 
@@ -13,6 +14,7 @@ interface ASTVisitor<ResType> {
   ResType forNullConstant(NullConstant n);
 //  ResType forJamEmpty(JamEmpty je);
   ResType forVariable(Variable v);
+  ResType forLexicalVariable(LexicalVariable v);
   ResType forPrimFun(PrimFun f);
   ResType forUnOpApp(UnOpApp u);
   ResType forBinOpApp(BinOpApp b);
@@ -20,6 +22,7 @@ interface ASTVisitor<ResType> {
   ResType forMap(Map m);
   ResType forIf(If i);
   ResType forLet(Let l);
+  ResType forLetRec(LetRec l);
 }
 
 /** Term ::= Constant | PrimFun | Variable */
@@ -225,6 +228,22 @@ class OpGets extends BinOp {
 }
 */
 
+/** A variable occurrence annotated with its lexical address by LexicalAddresser.  The address names the binding frame
+  * (depth = number of enclosing Map/Let frames to skip) and the slot within that frame (the position of the variable in
+  * the Map parameter list or the Let definition list). */
+class LexicalVariable implements Term {
+  private Variable var;
+  private int depth, slot;
+  
+  LexicalVariable(Variable v, int d, int s) { var = v; depth = d; slot = s; }
+  
+  public Variable var() { return var; }
+  public int depth() { return depth; }
+  public int slot() { return slot; }
+  public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forLexicalVariable(this); }
+  public String toString() { return var.toString(); }
+}
+
 class UnOpApp implements AST {
   private UnOp rator;
   private AST arg;
@@ -255,10 +274,19 @@ class BinOpApp implements AST {
 class Map implements AST {
   private Variable[] vars;
   private AST body;
+  /** The parameters whose arguments are evaluated when the Map is applied, even under a lazy policy (set by
+    * StrictnessAnalyzer), or null */
+  private boolean[] strict;
+  /** The parameters that the body never uses, whose arguments need not be suspended under a lazy policy (set by
+    * DeadCodeEliminator), or null */
+  private boolean[] unused;
   
   Map(Variable[] v, AST b) { vars = v; body = b; }
+  Map(Variable[] v, AST b, boolean[] s, boolean[] u) { vars = v; body = b; strict = s; unused = u; }
   public Variable[] vars() { return vars; }
   public AST body() { return body; }
+  public boolean[] strict() { return strict; }
+  public boolean[] unused() { return unused; }
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forMap(this); }
   public String toString() { 
     return "map " + ToString.toString(vars,",") + " to " + body;
@@ -299,17 +327,66 @@ class If implements AST {
 class Let implements AST {
   private Def[] defs;
   private AST body;
-  Let(Def[] d, AST b) { defs = d; body = b; }
+  /** The lhs and rhs columns of defs, computed once so that evaluation does not rebuild them. */
+  private Variable[] vars;
+  private AST[] exps;
+  /** The definitions whose rhs's are evaluated when the Let is entered, even under a lazy policy (set by
+    * StrictnessAnalyzer), or null */
+  private boolean[] strict;
+  
+  Let(Def[] d, AST b, boolean[] s) {
+    this(d, b);
+    strict = s;
+  }
+  
+  Let(Def[] d, AST b) {
+    defs = d; body = b;
+    int n = d.length;
+    vars = new Variable[n];
+    exps = new AST[n];
+    for (int i = 0; i < n; i++) { vars[i] = d[i].lhs(); exps[i] = d[i].rhs(); }
+  }
   
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forLet(this); }
   public Def[] defs() { return defs; }
   public AST body() { return body; }
+  public Variable[] vars() { return vars; }
+  public AST[] exps() { return exps; }
+  public boolean[] strict() { return strict; }
   public String toString() { 
     return "let " + ToString.toString(defs," ") + " in " + body; 
   }
 }  
 
-/** Def class representing a definition embedded inside a Let. */
+/** A recursive let: the rhs's, which are all Maps, are evaluated in the frame they are bound in, so that the
+  * closures they yield can call each other and themselves.  The frame is created once, with empty slots, and
+  * back-patched with the closures before the body runs; since building a closure evaluates nothing, no slot can be
+  * read before it is filled. */
+class LetRec implements AST {
+  private Def[] defs;
+  private AST body;
+  private Variable[] vars;
+  private AST[] exps;
+  
+  LetRec(Def[] d, AST b) {
+    defs = d; body = b;
+    int n = d.length;
+    vars = new Variable[n];
+    exps = new AST[n];
+    for (int i = 0; i < n; i++) { vars[i] = d[i].lhs(); exps[i] = d[i].rhs(); }
+  }
+  
+  public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forLetRec(this); }
+  public Def[] defs() { return defs; }
+  public AST body() { return body; }
+  public Variable[] vars() { return vars; }
+  public AST[] exps() { return exps; }
+  public String toString() { 
+    return "letrec " + ToString.toString(defs," ") + " in " + body; 
+  }
+}  
+
+/** Def class representing a definition embedded inside a Let or LetRec. */
 class Def {
   private Variable lhs;
   private AST rhs;  
@@ -0,0 +1,219 @@
+/** Support for optimization passes over resolved Jam programs */
+
+/** Visitor that rebuilds a resolved AST.  The default methods copy each node with its children rewritten; passes
+  * override the cases they transform.  depth is the number of frames (Map and Let bodies) entered between the root of
+  * the rewrite and the node being visited, so a LexicalVariable with depth() >= depth refers to a frame outside the
+  * rewritten AST.  Every child is rewritten through rewrite, which a pass can override to act on each node. */
+abstract class ASTRewriter implements ASTVisitor<AST> {
+
+  int depth = 0;
+
+  AST rewrite(AST ast) { return ast.accept(this); }
+
+  AST[] rewriteAll(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = rewrite(asts[i]);
+    return result;
+  }
+
+  /** Rewrites body, which runs in a new frame. */
+  AST inFrame(AST body) {
+    depth++;
+    try { return rewrite(body); }
+    finally { depth--; }
+  }
+
+  /** Rewrites the bodies of the Maps bound by a LetRec, keeping them Maps (for passes whose rewrite may replace a
+    * Map by another expression). */
+  AST[] rewriteBodies(AST[] maps) {
+    int n = maps.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = new Map(((Map) maps[i]).vars(), inFrame(((Map) maps[i]).body()));
+    return result;
+  }
+
+  /** Returns the Let binding vars to exps in body. */
+  static Let let(Variable[] vars, AST[] exps, AST body) {
+    Def[] defs = new Def[vars.length];
+    for (int i = 0; i < defs.length; i++) defs[i] = new Def(vars[i], exps[i]);
+    return new Let(defs, body);
+  }
+
+  /** Returns the LetRec binding vars to the Maps exps in body. */
+  static LetRec letRec(Variable[] vars, AST[] exps, AST body) {
+    Def[] defs = new Def[vars.length];
+    for (int i = 0; i < defs.length; i++) defs[i] = new Def(vars[i], exps[i]);
+    return new LetRec(defs, body);
+  }
+
+  /* ASTVisitor methods */
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forNullConstant(NullConstant n) { return n; }
+  public AST forPrimFun(PrimFun f) { return f; }
+  public AST forVariable(Variable v) { return v; }
+  public AST forLexicalVariable(LexicalVariable v) { return v; }
+  public AST forUnOpApp(UnOpApp u) { return new UnOpApp(u.rator(), rewrite(u.arg())); }
+  public AST forBinOpApp(BinOpApp b) { return new BinOpApp(b.rator(), rewrite(b.arg1()), rewrite(b.arg2())); }
+  public AST forApp(App a) { return new App(rewrite(a.rator()), rewriteAll(a.args())); }
+  public AST forMap(Map m) { return new Map(m.vars(), inFrame(m.body())); }
+  public AST forIf(If i) { return new If(rewrite(i.test()), rewrite(i.conseq()), rewrite(i.alt())); }
+  public AST forLet(Let l) { return let(l.vars(), rewriteAll(l.exps()), inFrame(l.body())); }
+  public AST forLetRec(LetRec l) {
+    depth++;
+    try { return letRec(l.vars(), rewriteAll(l.exps()), rewrite(l.body())); }
+    finally { depth--; }
+  }
+}
+
+/** Rewriter that adds delta to the depth of the variables referring to frames outside the rewritten AST, so that it
+  * can be moved under (delta > 0) or out of (delta < 0) enclosing frames. */
+class Shifter extends ASTRewriter {
+  private int delta;
+  private Shifter(int d, int cutoff) { delta = d; depth = cutoff; }
+
+  /** Returns ast moved under delta more frames. */
+  static AST shift(AST ast, int delta) { return shift(ast, delta, 0); }
+
+  /** Returns ast, which runs in cutoff frames of its own, moved under delta more frames. */
+  static AST shift(AST ast, int delta, int cutoff) { return (delta == 0) ? ast : ast.accept(new Shifter(delta, cutoff)); }
+
+  public AST forLexicalVariable(LexicalVariable v) {
+    if (v.depth() < depth) return v;
+    return new LexicalVariable(v.var(), v.depth() + delta, v.slot());
+  }
+}
+
+/** Rewriter for the body of a frame whose slots are being removed.  A removed slot's occurrences are replaced by its
+  * expression (which runs in the scope enclosing the frame), and the remaining slots are renumbered; if no slot
+  * remains, the frame itself disappears. */
+class Substituter extends ASTRewriter {
+  /** The replacements of the removed slots, null for kept slots */
+  private AST[] replacements;
+  /** The new numbers of the kept slots */
+  private int[] slots;
+  private boolean frameRemoved;
+
+  private Substituter(AST[] r, int[] s, boolean fr) { replacements = r; slots = s; frameRemoved = fr; }
+
+  /** Returns body, which runs in a frame whose slot i is replaced by replacements[i] where that is not null. */
+  static AST substitute(AST body, AST[] replacements) {
+    int n = replacements.length;
+    int[] slots = new int[n];
+    int kept = 0;
+    for (int i = 0; i < n; i++) if (replacements[i] == null) slots[i] = kept++;
+    return body.accept(new Substituter(replacements, slots, kept == 0));
+  }
+
+  public AST forLexicalVariable(LexicalVariable v) {
+    int d = v.depth();
+    if (d < depth) return v;
+    if (d > depth) return frameRemoved ? new LexicalVariable(v.var(), d - 1, v.slot()) : v;
+    AST r = replacements[v.slot()];
+    if (r == null) return new LexicalVariable(v.var(), d, slots[v.slot()]);
+    return Shifter.shift(r, frameRemoved ? depth : depth + 1);
+  }
+}
+
+/** Visitor that walks a resolved AST, counting its nodes and the occurrences of the slots of the frame enclosing it
+  * (the frame at depth 0 from its root). */
+class Occurrences implements ASTVisitor<Void> {
+  /** The number of occurrences of each slot */
+  int[] counts;
+  /** Whether each slot occurs inside a Map, where it may be evaluated any number of times */
+  boolean[] inMap;
+  /** The number of AST nodes */
+  int size = 0;
+  /** Whether the AST holds unresolved (free) Variables */
+  boolean unresolved = false;
+
+  private int depth = 0;
+  private int maps = 0;
+
+  Occurrences(int slots) {
+    counts = new int[slots];
+    inMap = new boolean[slots];
+  }
+
+  /** Returns the occurrences in ast of the slots of a frame with n slots. */
+  static Occurrences of(AST ast, int n) {
+    Occurrences o = new Occurrences(n);
+    ast.accept(o);
+    return o;
+  }
+
+  /** Returns the number of nodes in ast. */
+  static int size(AST ast) { return of(ast, 0).size; }
+
+  /** Returns true if ast holds unresolved Variables. */
+  static boolean unresolved(AST ast) { return of(ast, 0).unresolved; }
+
+  private Void visitAll(AST[] asts) {
+    for (AST a : asts) a.accept(this);
+    return null;
+  }
+
+  private void inFrame(AST body) {
+    depth++;
+    body.accept(this);
+    depth--;
+  }
+
+  /* ASTVisitor methods */
+  public Void forBoolConstant(BoolConstant b) { size++; return null; }
+  public Void forIntConstant(IntConstant i) { size++; return null; }
+  public Void forNullConstant(NullConstant n) { size++; return null; }
+  public Void forPrimFun(PrimFun f) { size++; return null; }
+  public Void forVariable(Variable v) {
+    size++;
+    unresolved = true;
+    return null;
+  }
+  public Void forLexicalVariable(LexicalVariable v) {
+    size++;
+    if (v.depth() == depth && v.slot() < counts.length) {
+      counts[v.slot()]++;
+      if (maps > 0) inMap[v.slot()] = true;
+    }
+    return null;
+  }
+  public Void forUnOpApp(UnOpApp u) { size++; return u.arg().accept(this); }
+  public Void forBinOpApp(BinOpApp b) {
+    size++;
+    b.arg1().accept(this);
+    return b.arg2().accept(this);
+  }
+  public Void forApp(App a) {
+    size++;
+    a.rator().accept(this);
+    return visitAll(a.args());
+  }
+  public Void forMap(Map m) {
+    size++;
+    maps++;
+    inFrame(m.body());
+    maps--;
+    return null;
+  }
+  public Void forIf(If i) {
+    size++;
+    i.test().accept(this);
+    i.conseq().accept(this);
+    return i.alt().accept(this);
+  }
+  public Void forLet(Let l) {
+    size++;
+    visitAll(l.exps());
+    inFrame(l.body());
+    return null;
+  }
+  public Void forLetRec(LetRec l) {
+    size++;
+    depth++;
+    visitAll(l.exps());
+    l.body().accept(this);
+    depth--;
+    return null;
+  }
+}
@@ -81,6 +81,36 @@ public class Assign3Test extends TestCase {
     needNeedCheck(name, answer, program);
   }
 
+  /** Constructs an interpreter for program that runs on the specified engine. */
+  private Interpreter engineInterp(Interpreter.Engine engine, String program) {
+      Interpreter interp = new Interpreter(new StringReader(program));
+      interp.setEngine(engine);
+      return interp;
+  }
+
+  /** Constructs an interpreter for program that eliminates tail calls. */
+  private Interpreter tailInterp(String program) {
+      return engineInterp(Interpreter.VisitorEngine.TAIL_CALLS, program);
+  }
+
+  /** Checks the policies that do not re-evaluate arguments (all but the by-name argument policies) on engine. */
+  private void noNameEngineCheck(Interpreter.Engine engine, String name, String answer, String program) {
+    assertEquals(engine + " by-value-value " + name, answer, engineInterp(engine, program).valueValue().toString());
+    assertEquals(engine + " by-value-name " + name, answer, engineInterp(engine, program).valueName().toString());
+    assertEquals(engine + " by-value-need " + name, answer, engineInterp(engine, program).valueNeed().toString());
+    assertEquals(engine + " by-need-value " + name, answer, engineInterp(engine, program).needValue().toString());
+    assertEquals(engine + " by-need-name " + name, answer, engineInterp(engine, program).needName().toString());
+    assertEquals(engine + " by-need-need " + name, answer, engineInterp(engine, program).needNeed().toString());
+  }
+
+  /** Checks all nine policies on engine. */
+  private void allEngineCheck(Interpreter.Engine engine, String name, String answer, String program) {
+    noNameEngineCheck(engine, name, answer, program);
+    assertEquals(engine + " by-name-value " + name, answer, engineInterp(engine, program).nameValue().toString());
+    assertEquals(engine + " by-name-name " + name, answer, engineInterp(engine, program).nameName().toString());
+    assertEquals(engine + " by-name-need " + name, answer, engineInterp(engine, program).nameNeed().toString());
+  }
+
   private void needCheck(String name, String answer, String program) {
     needValueCheck(name, answer, program);
     needNeedCheck(name, answer, program);
@@ -206,6 +236,884 @@ public class Assign3Test extends TestCase {
 	  } //end of func
   
 
+  public void testLexicalAddress() {
+    try {
+      String output = "15";
+      String input = "let x := 1; y := 2; in let x := 10; in let z := map a to x + y + a; in z(3)";
+      allCheck("lexicalAddress", output, input );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("lexicalAddress threw " + e);
+    }
+  } //end of func
+  
+  public void testDeepLet() {
+    try {
+      StringBuffer input = new StringBuffer();
+      for (int i = 0; i < 60; i++) input.append("let v" + i + " := " + i + "; in ");
+      input.append("v0 + v30 + v59");
+      allCheck("deepLet", "89", input.toString() );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("deepLet threw " + e);
+    }
+  } //end of func
+  
+
+  public void testTailCalls() {
+    try {
+      String output = "0";
+      String input = "let Y := map f to let g := map x to f(map n to (x(x))(n)); in g(g); " +
+        "LOOP := map loop to map n to if n = 0 then 0 else let m := n - 1; in loop(m); in (Y(LOOP))(1000000)";
+      noNameEngineCheck(Interpreter.VisitorEngine.TAIL_CALLS, "tailCalls", output, input );
+      
+      String small = "let Y := map f to let g := map x to f(map n to (x(x))(n)); in g(g); " +
+        "LOOP := map loop to map n to if n = 0 then 0 else loop(n - 1); in (Y(LOOP))(200)";
+      assertEquals("tail by-name-name tailCalls", output, tailInterp(small).nameName().toString());
+      assertEquals("tail by-name-value tailCalls", output, tailInterp(small).nameValue().toString());
+      assertEquals("tail by-name-need tailCalls", output, tailInterp(small).nameNeed().toString());
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("tailCalls threw " + e);
+    }
+  } //end of func
+  
+
+  public void testCekEngine() {
+    try {
+      String input = "let Y := map f to let g := map x to f(map z1,z2 to (x(x))(z1,z2)); in g(g); " +
+        "APPEND := map ap to map x,y to if x = null then y else cons(first(x), ap(rest(x), y)); " +
+        "l := cons(1,cons(2,cons(3,null))); in (Y(APPEND))(l,l)";
+      allEngineCheck(CekEngine.ONLY, "cekAppend", "(1 2 3 1 2 3)", input );
+      allEngineCheck(CekEngine.ONLY, "cekMathOp", "18", "2 * 3 + 12" );
+      allEngineCheck(CekEngine.ONLY, "cekLet", "15", 
+                     "let x := 1; y := 2; in let x := 10; in let z := map a to x + y + a; in z(3)" );
+      
+      String deep = "let Y := map f to let g := map x to f(map z to (x(x))(z)); in g(g); " +
+        "BUILD := map build to map n to if n = 0 then null else cons(n, build(n - 1)); " +
+        "LEN := map len to map l to if l = null then 0 else 1 + len(rest(l)); " +
+        "in (Y(LEN))((Y(BUILD))(100000))";
+      noNameEngineCheck(CekEngine.ONLY, "cekDeep", "100000", deep );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("cekEngine threw " + e);
+    }
+  } //end of func
+  
+  public void testCekEvalException() {
+    try {
+      allEngineCheck(CekEngine.ONLY, "cekEvalException", "mojo", "1 + number?" );
+
+         fail("cekEvalException did not throw EvalException exception");
+      } catch (EvalException e) {   
+         //e.printStackTrace();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("cekEvalException threw " + e);
+    }
+  } //end of func
+  
+
+  public void testClosureEngine() {
+    try {
+      String input = "let Y := map f to let g := map x to f(map z1,z2 to (x(x))(z1,z2)); in g(g); " +
+        "APPEND := map ap to map x,y to if x = null then y else cons(first(x), ap(rest(x), y)); " +
+        "l := cons(1,cons(2,cons(3,null))); in (Y(APPEND))(l,l)";
+      allEngineCheck(ClosureEngine.ONLY, "closureAppend", "(1 2 3 1 2 3)", input );
+      allEngineCheck(ClosureEngine.ONLY, "closureMathOp", "18", "2 * 3 + 12" );
+      allEngineCheck(ClosureEngine.ONLY, "closureLet", "15", 
+                     "let x := 1; y := 2; in let x := 10; in let z := map a to x + y + a; in z(3)" );
+      
+      allEngineCheck(ClosureEngine.ONLY, "closureEquals", "(true true false true false true)", 
+                     "let f := map x,y to x = y; g := map x,y to x != y; " +
+                     "in cons(f(1,1), cons(f(true,true), cons(f(null,cons(1,null)), cons(f(cons(1,null),cons(1,null)), " +
+                     "cons(f(1,true), cons(g(null,cons(1,null)), null))))))" );
+      
+      allEngineCheck(ClosureEngine.ONLY, "closureUnboxed", "(true 2147483647)", 
+                     "let x := 2000; in cons((x * x = 4000000) & ((-(x) + 1) = -1999) & (x + 0 = x) & (+(x) = 2000), " +
+                     "cons((2147483647 + 1) - 1, null))" );
+      
+      String ones = "let f := map g to cons(1, g(g)); in first(rest(f(f)))";
+      assertEquals("closure by-value-need closureOnes", "1", 
+                   engineInterp(ClosureEngine.ONLY, ones).valueNeed().toString());
+      assertEquals("closure by-need-name closureOnes", "1", 
+                   engineInterp(ClosureEngine.ONLY, ones).needName().toString());
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("closureEngine threw " + e);
+    }
+  } //end of func
+  
+  public void testClosureEvalException() {
+    try {
+      allEngineCheck(ClosureEngine.ONLY, "closureEvalException", "mojo", "cons(1, 2 + null)" );
+
+         fail("closureEvalException did not throw EvalException exception");
+      } catch (EvalException e) {   
+         //e.printStackTrace();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("closureEvalException threw " + e);
+    }
+  } //end of func
+  
+  public void testRegisterVm() {
+    try {
+      String input = "let Y := map f to let g := map x to f(map z1,z2 to (x(x))(z1,z2)); in g(g); " +
+        "APPEND := map ap to map x,y to if x = null then y else cons(first(x), ap(rest(x), y)); " +
+        "l := cons(1,cons(2,cons(3,null))); in (Y(APPEND))(l,l)";
+      allEngineCheck(VmEngine.ONLY, "vmAppend", "(1 2 3 1 2 3)", input );
+      allEngineCheck(VmEngine.ONLY, "vmMathOp", "7", "(-(2 * 3)) + (13 / (+1))" );
+      allEngineCheck(VmEngine.ONLY, "vmLet", "15", 
+                     "let x := 1; y := 2; in let x := 10; in let z := map a to x + y + a; in z(3)" );
+      allEngineCheck(VmEngine.ONLY, "vmPrim", "(2)", 
+                     "let f := rest; in if number?(arity(f)) then cons(arity(cons), f(cons(2, null))) else null" );
+
+      AST prog = LexicalAddresser.resolve(new Parser(new StringReader(input)).parse());
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(VmCompiler.compile(prog, Interpreter.CallByValueValue.ONLY));
+      out.close();
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+      assertEquals("register serialized vmAppend", "(1 2 3 1 2 3)", ((VmProgram) in.readObject()).run().toString());
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("registerVm threw " + e);
+    }
+  } //end of func
+  
+  public void testRegisterVmEvalException() {
+    try {
+      allEngineCheck(VmEngine.ONLY, "vmEvalException", "mojo", "let f := map x to x; in f(1, 2)" );
+
+         fail("vmEvalException did not throw EvalException exception");
+      } catch (EvalException e) {   
+         //e.printStackTrace();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("vmEvalException threw " + e);
+    }
+  } //end of func
+  
+  /** Returns the constant folded form of the resolved program. */
+  private String folded(String program) {
+    return ConstantFolder.fold(LexicalAddresser.resolve(new Parser(new StringReader(program)).parse())).toString();
+  }
+  
+  public void testConstantFolding() {
+    try {
+      assertEquals("foldLet", "let f := map x to (x * 1); in (f)(4)",
+                   folded("let f := map x to (x * 1) + ((2 * 3) - 6); in if 1 < 2 then f(4) else 1 / 0"));
+      assertEquals("foldLogic", "map b to ((b & false) | ((b & true) & false))",
+                   folded("map b to ((b & false) | false) | (~ ~ (b & true) & false)"));
+      assertEquals("foldError", "(1 / 0)", folded("1 / (2 - 2)"));
+      allCheck("foldIdentity", "(6 true)", "let f := map x to cons(+(x * 2), cons(~ ~ (x > 1), null)); in f(3)" );
+      
+      Interpreter interp = new Interpreter(new StringReader("let f := map x to x; in f(1 / (2 - 2))"));
+      interp.valueValue();
+      fail("foldError did not throw ArithmeticException");
+    } catch (ArithmeticException e) {
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("constantFolding threw " + e);
+    }
+  } //end of func
+  
+  public void testConstantFoldingEvalException() {
+    try {
+      allCheck("foldEvalException", "mojo", "let f := map x to x + 0; in f(true)" );
+
+         fail("foldEvalException did not throw EvalException exception");
+      } catch (EvalException e) {   
+         //e.printStackTrace();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("foldEvalException threw " + e);
+    }
+  } //end of func
+  
+  /** Returns the resolved program as rewritten by the optimization passes for ep. */
+  private String optimized(String program, Interpreter.EvalPolicy ep) {
+    return Interpreter.optimize(LexicalAddresser.resolve(new Parser(new StringReader(program)).parse()), ep).toString();
+  }
+  
+  public void testInlining() {
+    try {
+      assertEquals("inlineDivides", "cons(true, cons(false, null))",
+                   optimized("let divides := map a,b to (((b / a) * a) = b); in " +
+                             "let g := map x to divides(2, x); in cons(g(4), cons(g(5), null))",
+                             Interpreter.CallByNeedNeed.ONLY));
+      assertEquals("inlineImmediate", "map y to let x := first(y); in (x + x)",
+                   optimized("map y to (map x to x + x)(first(y))", Interpreter.CallByNameName.ONLY));
+      allCheck("inlineShadow", "11", "let y := 10; in let f := map x to x + y; in let y := 1; in f(y)" );
+      allCheck("inlineNested", "4", 
+               "let x := 1; in let f := map a to a + x; in let x := 2; g := map b to f(b) + x; in g(x)" );
+      String lazy = "let f := map x,y to y; in let g := map u to f(u, 2); in g(first(null))";
+      nameNameCheck("inlineLazy", "2", lazy );
+      needValueCheck("inlineLazy", "2", lazy );
+      needNeedCheck("inlineLazy", "2", lazy );
+
+      /* a free variable stays unbound wherever the body holding it is run */
+      String free = "let g := map zz to 1; f := map x to zz; in (map zz to f(1))(cons(1, null))";
+      Interpreter.Engine[] engines = { Interpreter.VisitorEngine.RECURSIVE, Interpreter.VisitorEngine.TAIL_CALLS,
+                                       CekEngine.ONLY, BytecodeEngine.ONLY, ClosureEngine.ONLY, VmEngine.ONLY };
+      for (Interpreter.Engine engine : engines) {
+        try {
+          engineInterp(engine, free).valueValue();
+          fail(engine + " inlineFree did not throw EvalException");
+        } catch (EvalException e) {
+          assertEquals(engine + " inlineFree", "variable zz is unbound", e.getMessage());
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("inlining threw " + e);
+    }
+  } //end of func
+  
+  public void testStrictness() {
+    try {
+      AST prog = LexicalAddresser.resolve(new Parser(new StringReader("map x, y to if y = 0 then x else 1")).parse());
+      boolean[] strict = ((Map) Interpreter.optimize(prog, Interpreter.CallByNeedNeed.ONLY)).strict();
+      assertTrue("strictParam", strict != null && ! strict[0] && strict[1]);
+      assertTrue("strictByValue", ((Map) Interpreter.optimize(prog, Interpreter.CallByValueNeed.ONLY)).strict() == null);
+      assertTrue("strictByName", ((Map) Interpreter.optimize(prog, Interpreter.CallByNameNeed.ONLY)).strict() == null);
+      /* a by-name argument builds a new closure at each use */
+      String closures = "let g := map y to map z to z; in let h := map x to x = x; in h(g(1))";
+      nameValueCheck("strictClosures", "false", closures );
+      nameNameCheck("strictClosures", "false", closures );
+      nameNeedCheck("strictClosures", "false", closures );
+      needNeedCheck("strictClosures", "true", closures );
+      
+      String lazy = "let f := map x, y to if y = 0 then x else 1; in f(1/0, 1)";
+      nameNameCheck("strictLazy", "1", lazy );
+      needValueCheck("strictLazy", "1", lazy );
+      needNeedCheck("strictLazy", "1", lazy );
+      assertEquals("closure by-need-need strictLazy", "1", engineInterp(ClosureEngine.ONLY, lazy).needNeed().toString());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("strictness threw " + e);
+    }
+  } //end of func
+  
+  public void testStrictnessEvalException() {
+    try {
+      needNeedCheck("strictEvalException", "mojo", "let f := map x, y to x + y; in f(first(null), 1 / 0)" );
+
+         fail("strictEvalException did not throw EvalException exception");
+      } catch (EvalException e) {   
+         //e.printStackTrace();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("strictEvalException threw " + e);
+    }
+  } //end of func
+
+  public void testDeadCode() {
+    try {
+      assertEquals("deadLazy", "3", optimized("let x := first(null); in 3", Interpreter.CallByNeedNeed.ONLY));
+      assertEquals("deadByValue", "let x := first(null); in 3",
+                   optimized("let x := first(null); in 3", Interpreter.CallByValueValue.ONLY));
+      assertEquals("deadPure", "map z to (5 + z)",
+                   optimized("let x := map u to u; y := 5; in map z to y + z", Interpreter.CallByValueValue.ONLY));
+      assertEquals("deadChain", "7",
+                   optimized("let a := map q to q; in let b := a(first(null)); in 7", Interpreter.CallByNameName.ONLY));
+
+      AST prog = LexicalAddresser.resolve(new Parser(new StringReader("map x, y to x")).parse());
+      boolean[] unused = ((Map) Interpreter.optimize(prog, Interpreter.CallByNameValue.ONLY)).unused();
+      assertTrue("unusedParam", unused != null && ! unused[0] && unused[1]);
+      assertTrue("unusedByValue", ((Map) Interpreter.optimize(prog, Interpreter.CallByValueNeed.ONLY)).unused() == null);
+
+      String lazy = "let f := map x, y to x; in f(2, 1/0)";
+      nameNameCheck("deadLazy", "2", lazy );
+      needNeedCheck("deadLazy", "2", lazy );
+      assertEquals("closure by-name-need deadLazy", "2", engineInterp(ClosureEngine.ONLY, lazy).nameNeed().toString());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("deadCode threw " + e);
+    }
+  } //end of func
+
+  public void testDeadCodeEvalException() {
+    try {
+      valueValueCheck("deadEvalException", "mojo", "let x := first(null); f := map u to 1; in f(2)" );
+
+         fail("deadEvalException did not throw EvalException exception");
+      } catch (EvalException e) {
+         //e.printStackTrace();
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("deadEvalException threw " + e);
+    }
+  } //end of func
+
+  public void testLetFloating() {
+    try {
+      String square = "map k to map x to x + (k * k)";
+      assertEquals("floatNeed", "map k to let inv1 := (k * k); in map x to (x + inv1)",
+                   optimized(square, Interpreter.CallByNeedNeed.ONLY));
+      assertEquals("floatValue", "map k to map x to (x + (k * k))", optimized(square, Interpreter.CallByValueValue.ONLY));
+      /* a closure is never shared between applications in a program that may compare closures */
+      String closure = "map k to map x to (cons(map y to (y + k), x) = x)";
+      assertEquals("floatMapValue", closure, optimized(closure, Interpreter.CallByValueValue.ONLY));
+      assertEquals("floatMapNeed", closure, optimized(closure, Interpreter.CallByNeedNeed.ONLY));
+      assertEquals("floatMapBlind", "map k to let inv1 := map y to (y + k); in map x to cons(inv1, x)",
+                   optimized("map k to map x to cons(map y to (y + k), x)", Interpreter.CallByNeedNeed.ONLY));
+      /* where closures are never compared, Y(FILTER) is hoisted out of the recursive primes */
+      String primes = "let Y := map f to let g := map x to f(x(x)); in g(g); " +
+        "FILTER := map filter to map p,l to if l = null then null else if p(first(l)) then filter(p, rest(l)) " +
+        "else cons(first(l), filter(p, rest(l))); " +
+        "in letrec primes := map l to if l = null then null " +
+        "else cons(first(l), primes((Y(FILTER))(map x to (x / first(l)) * first(l) = x, rest(l)))); " +
+        "in primes(cons(2, cons(3, cons(4, cons(5, cons(6, cons(7, null)))))))";
+      String hoisted = optimized(primes, Interpreter.CallByNeedNeed.ONLY);
+      assertTrue("floatY " + hoisted, hoisted.indexOf(":= letrec filter") >= 0
+                 && hoisted.indexOf(":= letrec filter") < hoisted.indexOf("letrec primes"));
+      needCheck("floatYResult", "(2 3 5 7)", primes );
+      nameNameCheck("floatYResult", "(2 3 5 7)", primes );
+      allCheck("floatClosures", "false", "let g := map f to f(1) = f(2); in g(map x to map y to y)" );
+      allCheck("floatRecClosures", "false", "letrec f := map x to map y to y; in f(1) = f(2)" );
+
+      allCheck("floatDivergent", "0", "let f := map k to map x to if x = 0 then 0 else k / 0; in (f(1))(0)" );
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("letFloating threw " + e);
+    }
+  } //end of func
+
+  public void testHashConsing() {
+    try {
+      String prelude = "let f := map x to (x * 2) + 1; in f(f(3))";
+      HashConser store = new HashConser();
+      AST p1 = store.intern(LexicalAddresser.resolve(new Parser(new StringReader(prelude)).parse()));
+      int size = store.size();
+      AST p2 = store.intern(LexicalAddresser.resolve(new Parser(new StringReader(prelude)).parse()));
+      assertTrue("hashConsShared", p1 == p2 && store.size() == size);
+      AST p3 = store.intern(LexicalAddresser.resolve(new Parser(new StringReader("(map x to (x * 2) + 1)(4)")).parse()));
+      assertTrue("hashConsSubtree", ((App) p3).rator() == ((Let) p1).exps()[0]);
+
+      String square = "map x, y to ((x * 2) + y) * ((x * 2) + y) + (let z := 1; in z + ((x * 2) + y))";
+      assertEquals("cseNeed", "map x,y to let cse1 := ((x * 2) + y); in ((cse1 * cse1) + (1 + cse1))",
+                   optimized(square, Interpreter.CallByNeedNeed.ONLY));
+      assertEquals("cseValue", "map x,y to ((((x * 2) + y) * ((x * 2) + y)) + (1 + ((x * 2) + y)))",
+                   optimized(square, Interpreter.CallByValueValue.ONLY));
+      allCheck("cseResult", "57", "let f := " + square + "; in f(2, 3)" );
+      allCheck("cseClosures", "false", "let f := map x to map y to y; in f(1) = f(1)" );
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("hashConsing threw " + e);
+    }
+  } //end of func
+
+  public void testNativeLetRec() {
+    try {
+      String input = "letrec append := map x,y to if x = null then y else cons(first(x), append(rest(x), y)); " +
+        "in let l := cons(1,cons(2,cons(3,null))); in append(l,l)";
+      allCheck("nativeLetRec", "(1 2 3 1 2 3)", input );
+      String mutual = "letrec even? := map n to if n = 0 then true else odd?(n - 1); " +
+        "odd? := map n to if n = 0 then false else even?(n - 1); dead := map n to dead(n); in cons(even?(10), cons(odd?(7), null))";
+      allCheck("mutualLetRec", "(true true)", mutual );
+      Interpreter.Engine[] engines = { Interpreter.VisitorEngine.TAIL_CALLS, CekEngine.ONLY, ClosureEngine.ONLY,
+        VmEngine.ONLY, BytecodeEngine.ONLY };
+      for (Interpreter.Engine engine : engines) {
+        allEngineCheck(engine, "nativeLetRec", "(1 2 3 1 2 3)", input );
+        allEngineCheck(engine, "mutualLetRec", "(true true)", mutual );
+      }
+      noNameEngineCheck(Interpreter.VisitorEngine.TAIL_CALLS, "letRecTailCalls", "true",
+        "letrec loop := map n to if n = 0 then true else loop(n - 1); in loop(100000)" );
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("nativeLetRec threw " + e);
+    }
+  } //end of func
+
+  public void testNativeLetRecParseException() {
+    try {
+      allCheck("letRecParseException", "mojo", "letrec x := 1; in x" );
+
+         fail("letRecParseException did not throw ParseException exception");
+      } catch (ParseException e) {
+         //e.printStackTrace();
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("letRecParseException threw " + e);
+    }
+  } //end of func
+
+  public void testYCombinatorElimination() {
+    try {
+      String lazyY = "let Y := map f to let g := map x to f(x(x)); in g(g); " +
+        "F := map self to map n to if n = 0 then 0 else self(n - 1); in (Y(F))(3)";
+      String direct = "(letrec self := map n to if (n = 0) then 0 else (self)((n - 1)); in self)(3)";
+      assertEquals("yNeed", direct, optimized(lazyY, Interpreter.CallByNeedNeed.ONLY));
+      assertEquals("yName", direct, optimized(lazyY, Interpreter.CallByNameName.ONLY));
+      assertTrue("yValue", ! optimized(lazyY, Interpreter.CallByValueValue.ONLY).contains("letrec"));
+      String etaY = "let Y := map f to let g := map x to f(map z to (x(x))(z)); in g(g); " +
+        "F := map self to map n to if n = 0 then 0 else self(n - 1); in (Y(F))(3)";
+      assertEquals("yEtaValue", direct, optimized(etaY, Interpreter.CallByValueValue.ONLY));
+      String arity = "let Y := map f to let g := map x to f(map z to (x(x))(z)); in g(g); " +
+        "F := map self to map n,m to n; in (Y(F))(3, 4)";
+      assertTrue("yArity", ! optimized(arity, Interpreter.CallByValueValue.ONLY).contains("letrec"));
+      allCheck("yArityResult", "3", arity );
+      /* each level of Y builds a new closure, so a functional whose self escapes is not rewritten */
+      String escape = "let Y := map f to let g := map x to f(map z to (x(x))(z)); in g(g); " +
+        "F := map self to map n to self; in let r := Y(F); in r = r(1)";
+      assertTrue("yEscape", ! optimized(escape, Interpreter.CallByNeedNeed.ONLY).contains("letrec"));
+      allCheck("yEscapeResult", "false", escape );
+      Interpreter.Engine[] engines = { Interpreter.VisitorEngine.TAIL_CALLS, CekEngine.ONLY, ClosureEngine.ONLY,
+                                       VmEngine.ONLY };
+      for (Interpreter.Engine engine : engines) allEngineCheck(engine, "yEscapeResult", "false", escape );
+      String lazyEscape = "let Y := map f to let g := map x to f(x(x)); in g(g); " +
+        "F := map self to map n to self; in let r := Y(F); in r = r(1)";
+      nameValueCheck("yLazyEscape", "false", lazyEscape );
+      nameNameCheck("yLazyEscape", "false", lazyEscape );
+      nameNeedCheck("yLazyEscape", "false", lazyEscape );
+      needValueCheck("yLazyEscape", "false", lazyEscape );
+      needNameCheck("yLazyEscape", "false", lazyEscape );
+      needNeedCheck("yLazyEscape", "false", lazyEscape );
+      assertEquals("floatLetRec", "map k to let inv1 := (k * k); in letrec f := map n to if (n = 0) then inv1 else (f)((n - 1)); in f",
+                   optimized("map k to letrec f := map n to if n = 0 then k * k else f(n - 1); in f", Interpreter.CallByNeedNeed.ONLY));
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("yCombinatorElimination threw " + e);
+    }
+  } //end of func
+
+  public void testSharedSuspension() {
+    try {
+      final java.util.concurrent.atomic.AtomicInteger computed = new java.util.concurrent.atomic.AtomicInteger();
+      final Interpreter.NeedSuspension slow = new Interpreter.NeedSuspension(null, null) {
+        JamVal compute() {
+          computed.incrementAndGet();
+          try { Thread.sleep(50); } catch (InterruptedException e) { }
+          return IntConstant.valueOf(42);
+        }
+      };
+      final JamVal[] seen = new JamVal[4];
+      Thread[] threads = new Thread[seen.length];
+      for (int i = 0; i < threads.length; i++) {
+        final int k = i;
+        threads[i] = new Thread() { public void run() { seen[k] = slow.eval(); } };
+        threads[i].start();
+      }
+      for (Thread t : threads) t.join();
+      assertEquals("computedOnce", 1, computed.get());
+      for (JamVal v : seen) assertEquals("sharedValue", "42", v.toString());
+
+      final Interpreter.NeedSuspension cyclic = new Interpreter.NeedSuspension(null, null) {
+        JamVal compute() { return eval(); }
+      };
+      try {
+        cyclic.eval();
+        fail("cyclicSuspension did not throw EvalException");
+      } catch (EvalException e) {
+        assertTrue("cyclicMessage", e.getMessage().startsWith("cyclic dependency"));
+      }
+
+      final Interpreter.NeedSuspension failing = new Interpreter.NeedSuspension(null, null) {
+        JamVal compute() {
+          computed.incrementAndGet();
+          throw new EvalException("mojo");
+        }
+      };
+      for (int i = 0; i < 2; i++) {
+        try {
+          failing.eval();
+          fail("failingSuspension did not throw EvalException");
+        } catch (EvalException e) {
+          assertEquals("failedMessage", "mojo", e.getMessage());
+        }
+      }
+      assertEquals("failedOnce", 2, computed.get());
+
+      final JamVal list = new Interpreter(new StringReader("let f := map n to n * n; in cons(f(2), cons(f(3), null))")).nameNeed();
+      final String[] printed = new String[2];
+      Thread other = new Thread() { public void run() { printed[0] = list.toString(); } };
+      other.start();
+      printed[1] = list.toString();
+      other.join();
+      assertEquals("sharedLazyCons", "(4 9)", printed[0]);
+      assertEquals("sharedLazyCons", "(4 9)", printed[1]);
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("sharedSuspension threw " + e);
+    }
+  } //end of func
+
+  public void testAtomicSlots() {
+    try {
+      Variable x = new Variable("x");
+      Interpreter.EvalPolicy ep = Interpreter.CallByNeedNeed.ONLY;
+      Interpreter.NeedSuspension susp = new Interpreter.NeedSuspension(IntConstant.valueOf(7), null);
+      Frame frame = new Frame(new Variable[] { x }, new Object[] { susp }, null);
+      EvalVisitor ev = new Interpreter.FlexEvalVisitor(ep).newVisitor(frame);
+      assertTrue("forwardedSlot", ep.newSlot(new LexicalVariable(x, 0, 0), ev) == susp);
+      assertEquals("constantSlot", "5", ep.newSlot(IntConstant.valueOf(5), ev).toString());
+      assertTrue("mapSlot", ep.newSlot(new Map(new Variable[0], x), ev) instanceof JamClosure);
+      assertTrue("suspendedSlot", ep.newSlot(new UnOpApp(UnOpMinus.ONLY, IntConstant.valueOf(1)), ev)
+                   instanceof Interpreter.NeedSuspension);
+
+      String input = "let f := map x,y,z to if x = 0 then y else z(x); in let n := 3; d := 2 / 1; in f(n, d, map u to u + n)";
+      allCheck("atomicArgs", "6", input );
+      Interpreter.Engine[] engines = { CekEngine.ONLY, ClosureEngine.ONLY, VmEngine.ONLY };
+      for (Interpreter.Engine engine : engines) allEngineCheck(engine, "atomicArgs", "6", input );
+      nameNameCheck("atomicLazyArgs", "6", input.replace("2 / 1", "1 / 0"));
+      needNeedCheck("atomicLazyArgs", "6", input.replace("2 / 1", "1 / 0"));
+
+      /* a by-name Map argument builds a new closure at each use */
+      assertTrue("nameMapSlot", Interpreter.CallByNameName.ONLY.newSlot(new Map(new Variable[0], x), ev)
+                   instanceof Interpreter.Suspension);
+      String same = "(map x to x = x)(map y to y)";
+      Interpreter.Engine[] all = { Interpreter.VisitorEngine.RECURSIVE, CekEngine.ONLY, ClosureEngine.ONLY,
+                                   VmEngine.ONLY };
+      for (Interpreter.Engine engine : all) {
+        assertEquals(engine + " by-name-name mapIdentity", "false", engineInterp(engine, same).nameName().toString());
+        assertEquals(engine + " by-name-value mapIdentity", "false", engineInterp(engine, same).nameValue().toString());
+        assertEquals(engine + " by-need-need mapIdentity", "true", engineInterp(engine, same).needNeed().toString());
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("atomicSlots threw " + e);
+    }
+  } //end of func
+
+  public void testParallelEngine() {
+    try {
+      allEngineCheck(ParallelEngine.ONLY, "parallelFib", "6765",
+                     "letrec fib := map n to if n <= 1 then n else fib(n - 1) + fib(n - 2); in fib(20)" );
+      allEngineCheck(ParallelEngine.ONLY, "parallelLet", "(55 120)",
+                     "letrec sum := map n to if n = 0 then 0 else n + sum(n - 1); " +
+                     "fact := map n to if n = 0 then 1 else n * fact(n - 1); " +
+                     "in let a := sum(10); b := fact(5); in cons(a, cons(b, null))" );
+      allEngineCheck(ParallelEngine.ONLY, "parallelArgs", "(1 2 3 1 2 3)",
+                     "letrec app := map x,y to if x = null then y else cons(first(x), app(rest(x), y)); " +
+                     "in let l := cons(1, cons(2, cons(3, null))); in app(app(null, l), app(l, null))" );
+
+      /* the error raised is the one of the first failing subexpression in evaluation order */
+      String[] failing = {
+        "let f := map x to x; in f(true) + f(1 / 0)",
+        "let g := map a,b to a; f := map x to x; in g(f(1 / 0), f(first(null)))",
+        "let f := map x to x; in let a := f(first(null)); b := f(1 / 0); in a"
+      };
+      for (String input : failing) {
+        String expected = null, actual = null;
+        try { engineInterp(Interpreter.VisitorEngine.RECURSIVE, input).valueValue(); }
+        catch (RuntimeException e) { expected = e.toString(); }
+        try { engineInterp(ParallelEngine.ONLY, input).valueValue(); }
+        catch (RuntimeException e) { actual = e.toString(); }
+        assertTrue("parallelErrorRaised", expected != null);
+        assertEquals("parallelError", expected, actual);
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("parallelEngine threw " + e);
+    }
+  } //end of func
+
+  public void testSparkEngine() {
+    try {
+      final java.util.concurrent.atomic.AtomicInteger computed = new java.util.concurrent.atomic.AtomicInteger();
+      final Interpreter.NeedSuspension failing = new Interpreter.NeedSuspension(null, null) {
+        JamVal compute() {
+          computed.incrementAndGet();
+          throw new EvalException("mojo");
+        }
+      };
+      Thread spark = new SparkEngine.Worker(new Runnable() { public void run() { failing.speculate(); } });
+      spark.start();
+      spark.join();
+      assertEquals("speculated", 1, computed.get());
+      try {
+        failing.eval();
+        fail("failingSuspension did not throw EvalException");
+      } catch (EvalException e) {
+        assertEquals("failureDiscarded", 2, computed.get());
+      }
+
+      /* the program takes over a suspension a spark is stuck on instead of waiting for it */
+      final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+      final Interpreter.NeedSuspension stuck = new Interpreter.NeedSuspension(null, null) {
+        JamVal compute() {
+          if (! (Thread.currentThread() instanceof SparkEngine.Worker)) return IntConstant.valueOf(42);
+          try { release.await(); } catch (InterruptedException e) { }
+          return IntConstant.valueOf(0);
+        }
+      };
+      spark = new SparkEngine.Worker(new Runnable() { public void run() { stuck.speculate(); } });
+      spark.start();
+      while (spark.getState() != Thread.State.WAITING) Thread.yield();
+      assertEquals("takenOver", "42", stuck.eval().toString());
+      release.countDown();
+      spark.join();
+      assertEquals("firstValueKept", "42", stuck.eval().toString());
+
+      /* a thread that overtakes a spark returns the value the spark reported first, so closures keep their identity */
+      final java.util.concurrent.CountDownLatch overtaken = new java.util.concurrent.CountDownLatch(1);
+      final Thread[] sparks = new Thread[1];
+      final JamClosure sparkClosure = new JamClosure(new Map(new Variable[0], IntConstant.valueOf(0)), null);
+      final Interpreter.NeedSuspension raced = new Interpreter.NeedSuspension(null, null) {
+        JamVal compute() {
+          try {
+            if (Thread.currentThread() instanceof SparkEngine.Worker) {
+              overtaken.await();
+              return sparkClosure;
+            }
+            overtaken.countDown();
+            sparks[0].join();
+          } catch (InterruptedException e) { }
+          return new JamClosure(new Map(new Variable[0], IntConstant.valueOf(0)), null);
+        }
+      };
+      sparks[0] = new SparkEngine.Worker(new Runnable() { public void run() { raced.speculate(); } });
+      sparks[0].start();
+      while (sparks[0].getState() != Thread.State.WAITING) Thread.yield();
+      assertSame("overtakerGetsKeptValue", sparkClosure, raced.eval());
+      assertSame("keptValue", sparkClosure, raced.eval());
+
+      String input = "letrec nats := map n to cons(n, nats(n + 1)); " +
+        "take := map k,l to if k = 0 then null else cons(first(l), take(k - 1, rest(l))); " +
+        "in let l := cons(1 / 0, take(5, nats(0))); in rest(l)";
+      assertEquals("sparkStream", "(0 1 2 3 4)", engineInterp(SparkEngine.ONLY, input).valueNeed().toString());
+      assertEquals("sparkStream", "(0 1 2 3 4)", engineInterp(SparkEngine.ONLY, input).needNeed().toString());
+      assertEquals("sparkStream", "(0 1 2 3 4)", engineInterp(SparkEngine.ONLY, input).nameNeed().toString());
+      allEngineCheck(SparkEngine.ONLY, "sparkFib", "55",
+                     "letrec fib := map n to if n <= 1 then n else fib(n - 1) + fib(n - 2); in fib(10)" );
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("sparkEngine threw " + e);
+    }
+  } //end of func
+
+  public void testParallelPrims() {
+    try {
+      String range = "letrec range := map i,n to if i > n then null else cons(i, range(i + 1, n)); in ";
+      allCheck("pmap", "(1 4 9)", "pmap(map x to x * x, cons(1, cons(2, cons(3, null))))" );
+      allCheck("pmapPrim", "(1 2)", "pmap(first, cons(cons(1, null), cons(cons(2, null), null)))" );
+      allCheck("pmapEmpty", "()", "pmap(map x to 1 / 0, null)" );
+      allCheck("preduceEmpty", "0", "preduce(map x,y to x + y, 0, null)" );
+      allCheck("pArity", "(2 3)", "cons(arity(pmap), cons(arity(preduce), null))" );
+      String sum = range + "preduce(map x,y to x + y, 0, pmap(map x to x * x, range(1, 300)))";
+      allCheck("preduce", "9045050", sum );
+      String order = "letrec range := map i,n to if i > n then null else cons(i, range(i + 1, n)); " +
+        "append := map x,y to if x = null then y else cons(first(x), append(rest(x), y)); " +
+        "in preduce(append, null, pmap(map x to cons(x, null), range(1, 5)))";
+      String nested = range + "pmap(map n to preduce(map x,y to x * y, 1, range(1, n)), range(1, 6))";
+      /* pmap builds eager conses, which equal the lazy ones built by cons under the lazy cons policies */
+      String equal = "pmap(map x to x, cons(1, cons(2, null))) = cons(1, cons(2, null))";
+      allCheck("pmapEquals", "true", equal );
+      lazyCheck("pmapEqualsLazy", "true", "cons(1, null) = pmap(map x to x, cons(1, null))" );
+      Interpreter.Engine[] engines = { CekEngine.ONLY, BytecodeEngine.ONLY, ClosureEngine.ONLY, VmEngine.ONLY,
+                                       ParallelEngine.ONLY };
+      for (Interpreter.Engine engine : engines) {
+        allEngineCheck(engine, "preduce", "9045050", sum );
+        noNameEngineCheck(engine, "preduceOrder", "(1 2 3 4 5)", order );
+        noNameEngineCheck(engine, "pmapNested", "(1 2 6 24 120 720)", nested );
+        allEngineCheck(engine, "pmapEquals", "true", equal );
+      }
+
+      /* the error raised is the one of the first failing element */
+      String failing = "pmap(map x to 10 / x, cons(1, cons(0, cons(true, null))))";
+      try {
+        valueValueCheck("pmapError", "mojo", failing);
+        fail("pmapError did not throw ArithmeticException");
+      } catch (ArithmeticException e) { }
+      try {
+        allCheck("pmapArity", "mojo", "pmap(map x,y to x, cons(1, null))" );
+        fail("pmapArity did not throw EvalException");
+      } catch (EvalException e) {
+        assertTrue("pmapArityMessage", e.getMessage().endsWith("applied to 1 arguments"));
+      }
+      try {
+        allCheck("pmapList", "mojo", "pmap(map x to x, 5)" );
+        fail("pmapList did not throw EvalException");
+      } catch (EvalException e) { }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("parallelPrims threw " + e);
+    }
+  } //end of func
+
+  public void testFutures() {
+    try {
+      String fib = "letrec fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in ";
+      String both = fib + "let a := future(fib(15)); b := future(fib(16)); in a + touch(b)";
+      String args = fib + "(map x,y to cons(x, cons(touch(y), null)))(future(fib(10)), future(fib(12)))";
+      String nested = fib + "letrec pfib := map n to if n < 10 then fib(n) else let a := future(pfib(n - 1)); " +
+        "in pfib(n - 2) + a; in pfib(18)";
+      allCheck("futureArity", "(1 1)", "cons(arity(future), cons(arity(touch), null))" );
+      allCheck("futureInPlace", "7", "future(3) + touch(4)" );
+      allCheck("futureUntouched", "5", "let x := future(1 / 0); in 5" );
+      allCheck("futureLet", "1597", both );
+      Interpreter.Engine[] engines = { CekEngine.ONLY, BytecodeEngine.ONLY, ClosureEngine.ONLY, VmEngine.ONLY,
+                                       ParallelEngine.ONLY, SparkEngine.ONLY };
+      for (Interpreter.Engine engine : engines) {
+        allEngineCheck(engine, "futureLet", "1597", both );
+        allEngineCheck(engine, "futureArgs", "(55 144)", args );
+        allEngineCheck(engine, "futureNested", "2584", nested );
+        allEngineCheck(engine, "futureUntouched", "5", "(map x,y to y)(future(1 / 0), 5)" );
+      }
+
+      /* the error of a future is raised where it is touched */
+      for (Interpreter.Engine engine : engines) {
+        try {
+          allEngineCheck(engine, "futureError", "mojo", "let x := future(1 / 0); in if x = 0 then 1 else 2" );
+          fail(engine + " futureError did not throw ArithmeticException");
+        } catch (ArithmeticException e) { }
+      }
+      /* under call-by-value, binding a variable to a future reads it, whether or not the program is optimized */
+      String[] copies = { "let x := future(1 / 0); in let y := x; in 5", "let x := future(1 / 0); in (map y to 5)(x)" };
+      for (String program : copies) {
+        nameValueCheck("futureCopy", "5", program );
+        nameNeedCheck("futureCopy", "5", program );
+        needValueCheck("futureCopy", "5", program );
+        needNeedCheck("futureCopy", "5", program );
+        for (boolean optimizing : new boolean[] { true, false }) {
+          try {
+            Interpreter interp = new Interpreter(new StringReader(program));
+            interp.setOptimizing(optimizing);
+            interp.valueValue();
+            fail("futureCopy " + program + " did not throw ArithmeticException");
+          } catch (ArithmeticException e) { }
+        }
+      }
+      try {
+        allCheck("futureArity", "mojo", "future(1, 2)" );
+        fail("futureArity did not throw EvalException");
+      } catch (EvalException e) { }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("futures threw " + e);
+    }
+  } //end of func
+
+  public void testCompiledProgram() {
+    try {
+      final CompiledProgram prog = CompiledProgram.compile(
+        "letrec fib := map n to if n < 2 then n else fib(n - 1) + fib(n - 2); in cons(fib(15), null)");
+      final Interpreter.EvalPolicy[] policies = {
+        Interpreter.CallByValueValue.ONLY, Interpreter.CallByValueName.ONLY, Interpreter.CallByValueNeed.ONLY,
+        Interpreter.CallByNameValue.ONLY, Interpreter.CallByNameName.ONLY, Interpreter.CallByNameNeed.ONLY,
+        Interpreter.CallByNeedValue.ONLY, Interpreter.CallByNeedName.ONLY, Interpreter.CallByNeedNeed.ONLY };
+      final Interpreter.Engine[] engines = { Interpreter.VisitorEngine.RECURSIVE, CekEngine.ONLY,
+        BytecodeEngine.ONLY, ClosureEngine.ONLY, VmEngine.ONLY, ParallelEngine.ONLY };
+      for (Interpreter.EvalPolicy ep : policies) {
+        assertSame("compiledOptimizedOnce", prog.program(ep), prog.program(ep));
+        for (Interpreter.Engine engine : engines)
+          assertEquals(engine + " " + ep + " compiledFib", "(610)", prog.run(engine, ep).toString());
+      }
+
+      /* the program is run by several threads at once */
+      final Throwable[] failures = new Throwable[4];
+      Thread[] threads = new Thread[failures.length];
+      for (int t = 0; t < threads.length; t++) {
+        final int id = t;
+        threads[t] = new Thread() {
+          public void run() {
+            try {
+              for (int i = 0; i < 20; i++) {
+                Interpreter.EvalPolicy ep = policies[(id + i) % policies.length];
+                assertEquals("concurrentFib", "(610)", prog.run(engines[i % engines.length], ep).toString());
+              }
+            } catch (Throwable e) { failures[id] = e; }
+          }
+        };
+        threads[t].start();
+      }
+      for (Thread t : threads) t.join();
+      for (Throwable f : failures) if (f != null) fail("concurrent run threw " + f);
+
+      try {
+        CompiledProgram.compile("let x := 1; in x + y");
+        fail("compiledFree did not throw SyntaxException");
+      } catch (SyntaxException e) { }
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("compiledProgram threw " + e);
+    }
+  } //end of func
+
+  public void testProgramCache() {
+    try {
+      ProgramCache cache = new ProgramCache(2);
+      String a = "1 + 2", b = "let x := 3; in x * x", c = "cons(1, null)";
+      CompiledProgram pa = cache.get(a);
+      assertSame("cacheHit", pa, cache.get(a));
+      assertEquals("cacheRun", "3", cache.get(a).run(Interpreter.CallByNeedNeed.ONLY).toString());
+      cache.get(b);
+      cache.get(a);  // b is now the least recently used
+      cache.get(c);
+      assertEquals("cacheSize", 2, cache.size());
+      assertEquals("cacheEvictions", 1, cache.evictions());
+      assertSame("cacheKept", pa, cache.get(a));
+      assertEquals("cacheHits", 4, cache.hits());
+      assertEquals("cacheMisses", 3, cache.misses());
+      assertEquals("cacheRecompiled", "9", cache.get(b).run(Interpreter.CallByValueValue.ONLY).toString());
+      assertEquals("cacheMisses", 4, cache.misses());
+
+      try {
+        cache.get("x + 1");
+        fail("cacheFree did not throw SyntaxException");
+      } catch (SyntaxException e) { }
+      assertEquals("cacheFailed", 2, cache.size());
+
+      /* the programs of a cache share the nodes of their common parts */
+      String prelude = "let sq := map x to x * x; in ";
+      CompiledProgram p1 = cache.get(prelude + "sq(3)"), p2 = cache.get(prelude + "sq(4)");
+      assertSame("cacheSharedPrelude", ((Let) p1.program()).exps()[0], ((Let) p2.program()).exps()[0]);
+      assertEquals("cacheSharedRun", "16", p2.run(Interpreter.CallByValueValue.ONLY).toString());
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("programCache threw " + e);
+    }
+  } //end of func
+
+  public void testBytecodeEngine() {
+    try {
+      String input = "let Y := map f to let g := map x to f(map z1,z2 to (x(x))(z1,z2)); in g(g); " +
+        "APPEND := map ap to map x,y to if x = null then y else cons(first(x), ap(rest(x), y)); " +
+        "l := cons(1,cons(2,cons(3,null))); in (Y(APPEND))(l,l)";
+      allEngineCheck(BytecodeEngine.ONLY, "bytecodeAppend", "(1 2 3 1 2 3)", input );
+      allEngineCheck(BytecodeEngine.ONLY, "bytecodeMathOp", "7", "(-(2 * 3)) + (13 / (+1))" );
+      allEngineCheck(BytecodeEngine.ONLY, "bytecodeTest", "true", 
+                     "let x := 3; in if (~(x < 2)) & ((x >= 3) | ((1 / 0) = 0)) then x = 3 else false" );
+      allEngineCheck(BytecodeEngine.ONLY, "bytecodePrim", "(2)", 
+                     "let f := rest; in if number?(arity(f)) then cons(arity(cons), f(cons(2, null))) else null" );
+
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("bytecodeEngine threw " + e);
+    }
+  } //end of func
+  
+  public void testBytecodeEvalException() {
+    try {
+      allEngineCheck(BytecodeEngine.ONLY, "bytecodeEvalException", "mojo", "let x := 1; in ~ (x + 1)" );
+
+         fail("bytecodeEvalException did not throw EvalException exception");
+      } catch (EvalException e) {   
+         //e.printStackTrace();
+      
+    } catch (Exception e) {
+      e.printStackTrace();
+      fail("bytecodeEvalException threw " + e);
+    }
+  } //end of func
+  
+
   public void testAppend() {
     try {
       String output = "(1 2 3 1 2 3)";
@@ -0,0 +1,58 @@
+/** Timing harness for the Jam evaluation engines */
+
+import java.io.IOException;
+
+/** Runs the program in a file on each engine under the call-by-need argument policies (the only ones under which the
+  * sample programs name.sieve.in and name.CBNFib.in finish quickly) and prints the best of several timed runs after a
+  * warm-up, together with the speedup over the FlexEvalVisitor.  The program is parsed once; each run includes context
+  * checking, resolution, any translation done by the engine, evaluation, and printing of the result.
+  *
+  * Usage: java Benchmark <filename> [runs]
+  */
+class Benchmark {
+
+  static final Interpreter.Engine[] ENGINES = {
+    Interpreter.VisitorEngine.RECURSIVE, Interpreter.VisitorEngine.TAIL_CALLS, CekEngine.ONLY, ClosureEngine.ONLY,
+    VmEngine.ONLY
+  };
+
+  static final String[] POLICIES = { "needValue", "needName", "needNeed" };
+
+  /** Evaluates prog under the named policy on engine and prints the result (forcing any lazy structure), returning
+    * the elapsed time in nanoseconds. */
+  static long time(Interpreter interp, AST prog, String policy, Interpreter.Engine engine) {
+    interp.setEngine(engine);
+    long start = System.nanoTime();
+    JamVal result;
+    if (policy.equals("needValue")) result = interp.needValue(prog);
+    else if (policy.equals("needName")) result = interp.needName(prog);
+    else result = interp.needNeed(prog);
+    result.toString();
+    return System.nanoTime() - start;
+  }
+
+  static long best(Interpreter interp, AST prog, String policy, Interpreter.Engine engine, int runs) {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < runs; i++) best = Math.min(best, time(interp, prog, policy, engine));
+    return best;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.out.println("Usage: java Benchmark <filename> [runs]");
+      return;
+    }
+    int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+    Parser p = new Parser(args[0]);
+    AST prog = p.parse();
+    Interpreter interp = new Interpreter(p);
+    for (String policy : POLICIES) {
+      for (Interpreter.Engine e : ENGINES) best(interp, prog, policy, e, runs);  // warm up
+      long base = best(interp, prog, policy, ENGINES[0], runs);
+      for (Interpreter.Engine e : ENGINES) {
+        long t = (e == ENGINES[0]) ? base : best(interp, prog, policy, e, runs);
+        System.out.printf("%-10s %-10s %8.3f ms  x%.2f%n", policy, e, t / 1e6, (double) base / t);
+      }
+    }
+  }
+}
@@ -0,0 +1,884 @@
+/** Compiler from Jam ASTs to JVM bytecode */
+
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/** Engine that compiles call-by-value programs to a hidden JVM class and runs them.  Programs run under any other
+  * policy, and programs the compiler cannot translate, are run by a FlexEvalVisitor. */
+class BytecodeEngine implements Interpreter.Engine {
+  public static final BytecodeEngine ONLY = new BytecodeEngine();
+  private BytecodeEngine() {}
+
+  public JamVal run(AST prog, Interpreter.EvalPolicy ep) {
+    if (ep == Interpreter.CallByValueValue.ONLY) {
+      CompiledCode code = BytecodeCompiler.compile(prog);
+      if (code != null) return code.run();
+    }
+    return Interpreter.VisitorEngine.RECURSIVE.run(prog, ep);
+  }
+  public String toString() { return "bytecode"; }
+}
+
+/** Superclass of the hidden classes generated by BytecodeCompiler.  Method 0 of a generated class is the program;
+  * method k > 0 is the body of the k-th compiled Map, taking the frame that binds its parameters.  Frames and closures
+  * are the same Frame and JamClosure objects the interpreter uses, so compiled code and a call-by-value
+  * FlexEvalVisitor can call each other freely.  The static methods are the runtime support called by generated code;
+  * their error messages match the interpreter's. */
+abstract class CompiledCode {
+
+  /** AST nodes and values referenced by the generated code */
+  Object[] constants;
+
+  /** Runs method index of this in environment env. */
+  public abstract JamVal call(int index, Frame env);
+
+  JamVal run() { return call(0, null); }
+
+  /** Evaluator for the constructs left to the interpreter */
+  private static final EvalVisitor INTERPRETER = new Interpreter.FlexEvalVisitor(Interpreter.CallByValueValue.ONLY);
+
+  static JamVal interpret(AST ast, Frame env) { return ast.accept(INTERPRETER.newVisitor(env)); }
+
+  static JamVal box(int i) { return IntConstant.valueOf(i); }
+
+  static Frame frame(Object[] slots, Variable[] vars, Frame parent) { return new Frame(vars, slots, parent); }
+
+  static Frame recFrame(Variable[] vars, Frame parent) { return new Frame(vars, new Object[vars.length], parent); }
+
+  static void patch(Frame frame, int i, JamClosure closure) { frame.slots[i] = closure; }
+
+  static JamClosure closure(Map m, Frame env, CompiledCode code, int index) {
+    return new CompiledClosure(m, env, code, index);
+  }
+
+  /** Checks the arity of closure before its n arguments are evaluated, as StandardFunVisitor.bindArgs does. */
+  static JamClosure checkArity(JamClosure closure, int n) {
+    if (closure.body().vars().length != n)
+      throw new EvalException("closure " + closure + " applied to " + n + " arguments");
+    return closure;
+  }
+
+  static JamVal applyClosure(JamClosure closure, Object[] args) {
+    Frame env = new Frame(closure.body().vars(), args, closure.env());
+    if (closure instanceof CompiledClosure) {
+      CompiledClosure c = (CompiledClosure) closure;
+      return c.code().call(c.index(), env);
+    }
+    return closure.body().body().accept(INTERPRETER.newVisitor(env));
+  }
+
+  /** Applies a rator that is not a closure; primitives receive the unevaluated args as in the interpreter. */
+  static JamVal applyOther(JamVal rator, App a, Frame env) {
+    if (rator instanceof JamFun)
+      return ((JamFun) rator).accept(Interpreter.CallByValueValue.ONLY.newFunVisitor(a.args(), INTERPRETER.newVisitor(env)));
+    throw new EvalException(rator + " appears at head of application " + a + " but it is not a valid function");
+  }
+
+  static JamVal applyPrim(PrimFun f, JamVal[] vals) {
+    return f.accept(new Interpreter.ValuePrimFunVisitor(vals, INTERPRETER));
+  }
+
+  /** Returns the started future of the expression compiled to method index of code, which runs in env itself. */
+  static Object future(CompiledCode code, int index, Frame env) {
+    return Futures.start(new NodeNeedSuspension(null, new CompiledBody(code, index), env));
+  }
+
+  /** An expression compiled to a method taking the environment it is evaluated in */
+  private static class CompiledBody extends Node {
+    private CompiledCode code;
+    private int index;
+    CompiledBody(CompiledCode c, int i) { code = c; index = i; }
+    JamVal eval(Frame env) { return code.call(index, env); }
+  }
+
+  static JamVal first(JamVal v) { return Interpreter.ValuePrimFunVisitor.consArg(v, "first").first(); }
+  static JamVal rest(JamVal v) { return Interpreter.ValuePrimFunVisitor.consArg(v, "rest").rest(); }
+
+  static boolean equal(JamVal v1, JamVal v2) { return v1.equals(v2); }
+
+  static int intArg(JamVal v, BinOp b) { return Interpreter.ValueBinOpVisitor.intArg(v, b); }
+
+  static boolean boolArg(JamVal v, BinOp b) { return Interpreter.ValueBinOpVisitor.boolArg(v, b) == BoolConstant.TRUE; }
+
+  static int intArg(JamVal v, UnOp op) { return Interpreter.StandardUnOpVisitor.intArg(v, op).value(); }
+
+  static boolean boolArg(JamVal v, UnOp op) { return Interpreter.StandardUnOpVisitor.boolArg(v, op) == BoolConstant.TRUE; }
+
+  static boolean test(JamVal v) {
+    if (v instanceof BoolConstant) return v == BoolConstant.TRUE;
+    throw new EvalException("non Boolean " + v + " used as test in if");
+  }
+}
+
+/** A closure whose body is compiled to method index of code. */
+class CompiledClosure extends JamClosure {
+  private CompiledCode code;
+  private int index;
+
+  CompiledClosure(Map m, Frame e, CompiledCode c, int i) {
+    super(m, e);
+    code = c;
+    index = i;
+  }
+  CompiledCode code() { return code; }
+  int index() { return index; }
+  JamVal call(Frame e, EvalVisitor ev) { return code.call(index, e); }
+}
+
+/** Translates a resolved call-by-value program into a hidden subclass of CompiledCode.  Integer operators whose
+  * operands are integer expressions are computed on unboxed ints (boxing only the final result), and comparisons,
+  * &, |, and ~ in if tests compile to conditional branches.  Free variables and primitive applications with the wrong
+  * number of arguments are left to the interpreter.  Evaluation order and errors match the FlexEvalVisitor: closure
+  * arguments and let right hand sides are evaluated last first, primitive arguments first to last. */
+class BytecodeCompiler implements ASTVisitor<Void> {
+
+  private static final String CODE = "CompiledCode", CLASS = "CompiledJam";
+  private static final String VAL = "LJamVal;", FRAME = "LFrame;";
+  private static final String METHOD = "(" + FRAME + ")" + VAL;
+
+  private JvmClassWriter cw = new JvmClassWriter(CLASS, CODE);
+
+  /** Maps compiled as methods 1, 2, ...; the expression of a future is compiled as the body of a Map without
+    * parameters, whose method runs in the environment of the future itself */
+  private ArrayList<Map> maps = new ArrayList<Map>();
+  private IdentityHashMap<Map,Integer> mapIndex = new IdentityHashMap<Map,Integer>();
+
+  private ArrayList<Object> constants = new ArrayList<Object>();
+  private IdentityHashMap<Object,Integer> constantIndex = new IdentityHashMap<Object,Integer>();
+
+  /** The method being compiled and the local holding its current environment */
+  private JvmCode code;
+  private int env;
+
+  private BytecodeCompiler() {}
+
+  /** Returns the compiled form of the resolved program prog, or null if it cannot be compiled. */
+  static CompiledCode compile(AST prog) {
+    try { return new BytecodeCompiler().compileProgram(prog); }
+    catch (IllegalStateException e) { return null; }        // a method is too large for the class file format
+    catch (LinkageError e) { return null; }
+    catch (ReflectiveOperationException e) { return null; }
+  }
+
+  private CompiledCode compileProgram(AST prog) throws ReflectiveOperationException {
+    compileMethod(0, prog);
+    for (int k = 0; k < maps.size(); k++) compileMethod(k + 1, maps.get(k).body());
+    compileConstructor();
+    compileDispatch(maps.size() + 1);
+
+    MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(cw.toBytes(), true);
+    CompiledCode result = (CompiledCode) lookup.lookupClass().getConstructor().newInstance();
+    result.constants = constants.toArray();
+    return result;
+  }
+
+  private void compileMethod(int index, AST body) {
+    code = new JvmCode(cw, 2);
+    env = 1;
+    body.accept(this);
+    code.op(JvmCode.ARETURN, -1);
+    cw.method("m" + index, METHOD, code);
+  }
+
+  private void compileConstructor() {
+    JvmCode c = new JvmCode(cw, 1);
+    c.load(JvmCode.ALOAD, 0);
+    c.invoke(JvmCode.INVOKESPECIAL, CODE, "<init>", "()V");
+    c.op(JvmCode.RETURN, 0);
+    cw.method("<init>", "()V", c);
+  }
+
+  /** Generates call(index, env), which switches on index to the method compiled for it. */
+  private void compileDispatch(int n) {
+    JvmCode c = new JvmCode(cw, 3);
+    JvmCode.Label[] targets = new JvmCode.Label[n];
+    for (int k = 0; k < n; k++) targets[k] = new JvmCode.Label();
+    JvmCode.Label other = new JvmCode.Label();
+    c.load(JvmCode.ILOAD, 1);
+    c.tableSwitch(other, targets);
+    for (int k = 0; k < n; k++) {
+      c.place(targets[k]);
+      c.load(JvmCode.ALOAD, 0);
+      c.load(JvmCode.ALOAD, 2);
+      c.invoke(JvmCode.INVOKEVIRTUAL, CLASS, "m" + k, METHOD);
+      c.op(JvmCode.ARETURN, -1);
+    }
+    c.place(other);
+    c.op(JvmCode.ACONST_NULL, 1);
+    c.op(JvmCode.ARETURN, -1);
+    cw.method("call", "(I" + FRAME + ")" + VAL, c);
+  }
+
+  /* Helpers emitting common sequences */
+
+  /** Loads the constant c, cast to the class (internal name) cls. */
+  private void constant(Object c, String cls) {
+    Integer i = constantIndex.get(c);
+    if (i == null) {
+      i = constants.size();
+      constants.add(c);
+      constantIndex.put(c, i);
+    }
+    code.load(JvmCode.ALOAD, 0);
+    code.field(JvmCode.GETFIELD, CODE, "constants", "[Ljava/lang/Object;");
+    code.intConst(i);
+    code.op(JvmCode.AALOAD, -1);
+    code.type(JvmCode.CHECKCAST, cls);
+  }
+
+  private void support(String name, String desc) { code.invoke(JvmCode.INVOKESTATIC, CODE, name, desc); }
+
+  private void interpret(AST ast) {
+    constant(ast, "AST");
+    code.load(JvmCode.ALOAD, env);
+    support("interpret", "(LAST;" + FRAME + ")" + VAL);
+  }
+
+  /** Emits the started future of exp in the current environment. */
+  private void future(AST exp) {
+    maps.add(new Map(new Variable[0], exp));
+    code.load(JvmCode.ALOAD, 0);
+    code.intConst(maps.size());
+    code.load(JvmCode.ALOAD, env);
+    support("future", "(L" + CODE + ";I" + FRAME + ")Ljava/lang/Object;");
+  }
+
+  private void boolConstant(BoolConstant b) {
+    code.field(JvmCode.GETSTATIC, "BoolConstant", b == BoolConstant.TRUE ? "TRUE" : "FALSE", "LBoolConstant;");
+  }
+
+  /** Emits an array of the given element class holding the values of asts, evaluated in the order given by up.  The
+    * frame slots (evaluated last first) of futures hold started futures instead (see Futures). */
+  private void values(AST[] asts, String cls, boolean up) {
+    int n = asts.length;
+    code.intConst(n);
+    code.type(JvmCode.ANEWARRAY, cls);
+    for (int j = 0; j < n; j++) {
+      int i = up ? j : n-1-j;
+      code.op(JvmCode.DUP, 1);
+      code.intConst(i);
+      if (! up && Futures.isFuture(asts[i])) future(((App) asts[i]).args()[0]);
+      else asts[i].accept(this);
+      code.op(JvmCode.AASTORE, -3);
+    }
+  }
+
+  /* Classification of operators */
+
+  /** Returns the int instruction for an arithmetic operator, the branch taken when a comparison is false, or one of
+    * AND and OR. */
+  private static final BinOpVisitor<Integer> OPCODE = new BinOpVisitor<Integer>() {
+    public Integer forBinOpPlus(BinOpPlus op) { return JvmCode.IADD; }
+    public Integer forBinOpMinus(BinOpMinus op) { return JvmCode.ISUB; }
+    public Integer forOpTimes(OpTimes op) { return JvmCode.IMUL; }
+    public Integer forOpDivide(OpDivide op) { return JvmCode.IDIV; }
+    public Integer forOpEquals(OpEquals op) { return JvmCode.IF_ICMPNE; }
+    public Integer forOpNotEquals(OpNotEquals op) { return JvmCode.IF_ICMPEQ; }
+    public Integer forOpLessThan(OpLessThan op) { return JvmCode.IF_ICMPGE; }
+    public Integer forOpGreaterThan(OpGreaterThan op) { return JvmCode.IF_ICMPLE; }
+    public Integer forOpLessThanEquals(OpLessThanEquals op) { return JvmCode.IF_ICMPGT; }
+    public Integer forOpGreaterThanEquals(OpGreaterThanEquals op) { return JvmCode.IF_ICMPLT; }
+    public Integer forOpAnd(OpAnd op) { return AND; }
+    public Integer forOpOr(OpOr op) { return OR; }
+  };
+  private static final int AND = -1, OR = -2;
+
+  private static boolean isArithmetic(int opcode) {
+    return opcode == JvmCode.IADD || opcode == JvmCode.ISUB || opcode == JvmCode.IMUL || opcode == JvmCode.IDIV;
+  }
+
+  private static boolean isEquality(BinOp b) { return b == OpEquals.ONLY || b == OpNotEquals.ONLY; }
+
+  /** Returns true if ast always yields an int (or fails). */
+  private static boolean isIntExp(AST ast) {
+    if (ast instanceof IntConstant) return true;
+    if (ast instanceof BinOpApp) return isArithmetic(((BinOpApp) ast).rator().accept(OPCODE));
+    if (ast instanceof UnOpApp) return ((UnOpApp) ast).rator() != OpNot.ONLY;
+    return false;
+  }
+
+  /* Unboxed compilation */
+
+  /** Emits code leaving the int value of ast on the stack.  op (a BinOp or UnOp) is the operator requiring the int;
+    * it is named in the error message if ast yields some other value. */
+  private void compileInt(AST ast, Object op) {
+    if (ast instanceof IntConstant) {
+      code.intConst(((IntConstant) ast).value());
+      return;
+    }
+    if (isIntExp(ast) && ast instanceof BinOpApp) {
+      BinOpApp b = (BinOpApp) ast;
+      compileInt(b.arg1(), b.rator());
+      compileInt(b.arg2(), b.rator());
+      code.op(b.rator().accept(OPCODE), -1);
+      return;
+    }
+    if (isIntExp(ast)) {
+      UnOpApp u = (UnOpApp) ast;
+      compileInt(u.arg(), u.rator());
+      if (u.rator() == UnOpMinus.ONLY) code.op(JvmCode.INEG, 0);
+      return;
+    }
+    ast.accept(this);
+    if (op instanceof BinOp) {
+      constant(op, "BinOp");
+      support("intArg", "(" + VAL + "LBinOp;)I");
+    }
+    else {
+      constant(op, "UnOp");
+      support("intArg", "(" + VAL + "LUnOp;)I");
+    }
+  }
+
+  /** Emits code that falls through if ast is true and jumps to ifFalse if it is false.  op is the operator requiring
+    * a boolean (a BinOp or UnOp), or null for the test of an if. */
+  private void compileTest(AST ast, JvmCode.Label ifFalse, Object op) {
+    if (ast instanceof BinOpApp) {
+      BinOpApp b = (BinOpApp) ast;
+      BinOp rator = b.rator();
+      int opcode = rator.accept(OPCODE);
+      if (opcode == AND) {
+        compileTest(b.arg1(), ifFalse, rator);
+        compileTest(b.arg2(), ifFalse, rator);
+        return;
+      }
+      if (opcode == OR) {
+        JvmCode.Label second = new JvmCode.Label(), done = new JvmCode.Label();
+        compileTest(b.arg1(), second, rator);
+        code.jump(JvmCode.GOTO, done);
+        code.place(second);
+        compileTest(b.arg2(), ifFalse, rator);
+        code.place(done);
+        return;
+      }
+      if (isEquality(rator) && ! (isIntExp(b.arg1()) && isIntExp(b.arg2()))) {
+        b.arg1().accept(this);
+        b.arg2().accept(this);
+        support("equal", "(" + VAL + VAL + ")Z");
+        code.jump(rator == OpEquals.ONLY ? JvmCode.IFEQ : JvmCode.IFNE, ifFalse);
+        return;
+      }
+      if (! isArithmetic(opcode)) {
+        compileInt(b.arg1(), rator);
+        compileInt(b.arg2(), rator);
+        code.jump(opcode, ifFalse);
+        return;
+      }
+    }
+    if (ast instanceof UnOpApp && ((UnOpApp) ast).rator() == OpNot.ONLY) {
+      JvmCode.Label isFalse = new JvmCode.Label();
+      compileTest(((UnOpApp) ast).arg(), isFalse, OpNot.ONLY);
+      code.jump(JvmCode.GOTO, ifFalse);
+      code.place(isFalse);
+      return;
+    }
+    ast.accept(this);
+    if (op == null) support("test", "(" + VAL + ")Z");
+    else if (op instanceof BinOp) {
+      constant(op, "BinOp");
+      support("boolArg", "(" + VAL + "LBinOp;)Z");
+    }
+    else {
+      constant(op, "UnOp");
+      support("boolArg", "(" + VAL + "LUnOp;)Z");
+    }
+    code.jump(JvmCode.IFEQ, ifFalse);
+  }
+
+  /** Emits the BoolConstant value of the boolean operation ast. */
+  private void compileBool(AST ast) {
+    JvmCode.Label isFalse = new JvmCode.Label(), done = new JvmCode.Label();
+    compileTest(ast, isFalse, null);
+    boolConstant(BoolConstant.TRUE);
+    code.jump(JvmCode.GOTO, done);
+    code.place(isFalse);
+    boolConstant(BoolConstant.FALSE);
+    code.place(done);
+  }
+
+  /* ASTVisitor methods: each emits code leaving the JamVal value of its argument on the stack */
+
+  public Void forBoolConstant(BoolConstant b) {
+    boolConstant(b);
+    return null;
+  }
+
+  public Void forIntConstant(IntConstant i) {
+    constant(i, "IntConstant");
+    return null;
+  }
+
+  public Void forNullConstant(NullConstant n) {
+    code.field(JvmCode.GETSTATIC, "JamEmpty", "ONLY", "LJamEmpty;");
+    return null;
+  }
+
+  public Void forVariable(Variable v) {
+    interpret(v);
+    return null;
+  }
+
+  public Void forLexicalVariable(LexicalVariable v) {
+    code.load(JvmCode.ALOAD, env);
+    for (int d = 0; d < v.depth(); d++) code.invoke(JvmCode.INVOKEVIRTUAL, "Frame", "parent", "()" + FRAME);
+    code.intConst(v.slot());
+    code.invoke(JvmCode.INVOKEVIRTUAL, "Frame", "value", "(I)" + VAL);
+    return null;
+  }
+
+  public Void forPrimFun(PrimFun f) {
+    constant(f, "PrimFun");
+    return null;
+  }
+
+  public Void forUnOpApp(UnOpApp u) {
+    if (u.rator() == OpNot.ONLY) compileBool(u);
+    else {
+      compileInt(u, null);
+      support("box", "(I)" + VAL);
+    }
+    return null;
+  }
+
+  public Void forBinOpApp(BinOpApp b) {
+    if (isIntExp(b)) {
+      compileInt(b, null);
+      support("box", "(I)" + VAL);
+    }
+    else compileBool(b);
+    return null;
+  }
+
+  public Void forApp(App a) {
+    AST[] args = a.args();
+    int n = args.length;
+    if (a.rator() instanceof PrimFun) {
+      PrimFun f = (PrimFun) a.rator();
+      if (f == FirstPrim.ONLY || f == RestPrim.ONLY) {
+        if (n != 1) interpret(a);
+        else {
+          args[0].accept(this);
+          support(f == FirstPrim.ONLY ? "first" : "rest", "(" + VAL + ")" + VAL);
+        }
+      }
+      else if (f == ConsPrim.ONLY && n != 2) interpret(a);
+      else {
+        constant(f, "PrimFun");
+        values(args, "JamVal", true);
+        support("applyPrim", "(LPrimFun;[" + VAL + ")" + VAL);
+      }
+      return null;
+    }
+    JvmCode.Label other = new JvmCode.Label(), done = new JvmCode.Label();
+    a.rator().accept(this);
+    code.op(JvmCode.DUP, 1);
+    code.type(JvmCode.INSTANCEOF, "JamClosure");
+    code.jump(JvmCode.IFEQ, other);
+    code.type(JvmCode.CHECKCAST, "JamClosure");
+    code.intConst(n);
+    support("checkArity", "(LJamClosure;I)LJamClosure;");
+    values(args, "java/lang/Object", false);
+    support("applyClosure", "(LJamClosure;[Ljava/lang/Object;)" + VAL);
+    code.jump(JvmCode.GOTO, done);
+    code.place(other);
+    constant(a, "App");
+    code.load(JvmCode.ALOAD, env);
+    support("applyOther", "(" + VAL + "LApp;" + FRAME + ")" + VAL);
+    code.place(done);
+    return null;
+  }
+
+  public Void forMap(Map m) {
+    Integer index = mapIndex.get(m);
+    if (index == null) {
+      maps.add(m);
+      index = maps.size();
+      mapIndex.put(m, index);
+    }
+    constant(m, "Map");
+    code.load(JvmCode.ALOAD, env);
+    code.load(JvmCode.ALOAD, 0);
+    code.intConst(index);
+    support("closure", "(LMap;" + FRAME + "L" + CODE + ";I)LJamClosure;");
+    return null;
+  }
+
+  public Void forIf(If i) {
+    JvmCode.Label alt = new JvmCode.Label(), done = new JvmCode.Label();
+    compileTest(i.test(), alt, null);
+    i.conseq().accept(this);
+    code.jump(JvmCode.GOTO, done);
+    code.place(alt);
+    i.alt().accept(this);
+    code.place(done);
+    return null;
+  }
+
+  public Void forLet(Let l) {
+    values(l.exps(), "java/lang/Object", false);
+    constant(l.vars(), "[LVariable;");
+    code.load(JvmCode.ALOAD, env);
+    support("frame", "([Ljava/lang/Object;[LVariable;" + FRAME + ")" + FRAME);
+    int outer = env;
+    env = code.newLocal();
+    code.store(JvmCode.ASTORE, env);
+    l.body().accept(this);
+    code.freeLocal();
+    env = outer;
+    return null;
+  }
+
+  /** The frame is created empty, then each slot is back-patched with the closure of its Map in that frame. */
+  public Void forLetRec(LetRec l) {
+    AST[] maps = l.exps();
+    constant(l.vars(), "[LVariable;");
+    code.load(JvmCode.ALOAD, env);
+    support("recFrame", "([LVariable;" + FRAME + ")" + FRAME);
+    int outer = env;
+    env = code.newLocal();
+    code.store(JvmCode.ASTORE, env);
+    for (int i = 0; i < maps.length; i++) {
+      code.load(JvmCode.ALOAD, env);
+      code.intConst(i);
+      maps[i].accept(this);
+      support("patch", "(" + FRAME + "ILJamClosure;)V");
+    }
+    l.body().accept(this);
+    code.freeLocal();
+    env = outer;
+    return null;
+  }
+}
+
+/** A minimal writer for JVM class files consisting of a constant pool and methods with code.  Version 49 class files
+  * are written so that the methods need no stack map frames. */
+class JvmClassWriter {
+  private JvmBytes pool = new JvmBytes();
+  private HashMap<String,Integer> poolIndex = new HashMap<String,Integer>();
+  private int poolSize = 1;
+  private JvmBytes methods = new JvmBytes();
+  private int methodCount = 0;
+  private int thisClass, superClass;
+
+  JvmClassWriter(String name, String superName) {
+    thisClass = classRef(name);
+    superClass = classRef(superName);
+  }
+
+  /** Returns the index of the pool entry with the given key, or 0 if there is none yet. */
+  private int lookup(String key) {
+    Integer i = poolIndex.get(key);
+    return (i == null) ? 0 : i;
+  }
+
+  private int add(String key) {
+    poolIndex.put(key, poolSize);
+    return poolSize++;
+  }
+
+  int utf8(String s) {
+    String key = "U" + s;
+    int i = lookup(key);
+    if (i != 0) return i;
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    pool.u1(1);
+    pool.u2(b.length);
+    pool.bytes(b, b.length);
+    return add(key);
+  }
+
+  int intConst(int v) {
+    String key = "I" + v;
+    int i = lookup(key);
+    if (i != 0) return i;
+    pool.u1(3);
+    pool.u4(v);
+    return add(key);
+  }
+
+  int classRef(String name) {
+    String key = "C" + name;
+    int i = lookup(key);
+    if (i != 0) return i;
+    int n = utf8(name);
+    pool.u1(7);
+    pool.u2(n);
+    return add(key);
+  }
+
+  /** Returns the Fieldref (tag 9), Methodref (10), or InterfaceMethodref (11) entry for owner.name:desc. */
+  int memberRef(int tag, String owner, String name, String desc) {
+    String key = tag + owner + "." + name + ":" + desc;
+    int i = lookup(key);
+    if (i != 0) return i;
+    int c = classRef(owner);
+    String ntKey = "N" + name + ":" + desc;
+    int nt = lookup(ntKey);
+    if (nt == 0) {
+      int n = utf8(name), d = utf8(desc);
+      pool.u1(12);
+      pool.u2(n);
+      pool.u2(d);
+      nt = add(ntKey);
+    }
+    pool.u1(tag);
+    pool.u2(c);
+    pool.u2(nt);
+    return add(key);
+  }
+
+  /** Adds the public method name:desc with body code. */
+  void method(String name, String desc, JvmCode code) {
+    int n = utf8(name), d = utf8(desc), attr = utf8("Code");
+    byte[] b = code.bytes();
+    methods.u2(0x0001);
+    methods.u2(n);
+    methods.u2(d);
+    methods.u2(1);
+    methods.u2(attr);
+    methods.u4(12 + b.length);
+    methods.u2(code.maxStack());
+    methods.u2(code.maxLocals());
+    methods.u4(b.length);
+    methods.bytes(b, b.length);
+    methods.u2(0);  // exception table
+    methods.u2(0);  // attributes
+    methodCount++;
+  }
+
+  byte[] toBytes() {
+    JvmBytes out = new JvmBytes();
+    out.u4(0xCAFEBABE);
+    out.u2(0);
+    out.u2(49);
+    out.u2(poolSize);
+    out.bytes(pool.data(), pool.length());
+    out.u2(0x0031);  // public final super
+    out.u2(thisClass);
+    out.u2(superClass);
+    out.u2(0);  // interfaces
+    out.u2(0);  // fields
+    out.u2(methodCount);
+    out.bytes(methods.data(), methods.length());
+    out.u2(0);  // attributes
+    byte[] result = new byte[out.length()];
+    System.arraycopy(out.data(), 0, result, 0, result.length);
+    return result;
+  }
+}
+
+/** Growable big-endian byte buffer. */
+class JvmBytes {
+  private byte[] data = new byte[256];
+  private int length = 0;
+
+  byte[] data() { return data; }
+  int length() { return length; }
+
+  private void ensure(int n) {
+    if (length + n > data.length) {
+      byte[] d = new byte[Math.max(2 * data.length, length + n)];
+      System.arraycopy(data, 0, d, 0, length);
+      data = d;
+    }
+  }
+
+  void u1(int b) {
+    ensure(1);
+    data[length++] = (byte) b;
+  }
+  void u2(int s) {
+    u1(s >> 8);
+    u1(s);
+  }
+  void u4(int i) {
+    u2(i >> 16);
+    u2(i);
+  }
+  void bytes(byte[] b, int n) {
+    ensure(n);
+    System.arraycopy(b, 0, data, length, n);
+    length += n;
+  }
+
+  /** Overwrites the 2 or 4 bytes at pos with v. */
+  void patch(int pos, int v, int size) {
+    for (int k = size - 1; k >= 0; k--) {
+      data[pos + k] = (byte) v;
+      v >>= 8;
+    }
+  }
+}
+
+/** The code of one method under construction.  Tracks the operand stack depth of the emitted instructions to compute
+  * max_stack; each emitting method adjusts the depth by the net effect of its instruction. */
+class JvmCode {
+  static final int ACONST_NULL = 1, ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19, ILOAD = 21,
+    ALOAD = 25, ASTORE = 58, AALOAD = 50, AASTORE = 83, DUP = 89, IADD = 96, ISUB = 100, IMUL = 104, IDIV = 108,
+    INEG = 116, IFEQ = 153, IFNE = 154, IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162,
+    IF_ICMPGT = 163, IF_ICMPLE = 164, GOTO = 167, TABLESWITCH = 170, ARETURN = 176, RETURN = 177, GETSTATIC = 178,
+    GETFIELD = 180, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184, ANEWARRAY = 189, CHECKCAST = 192,
+    INSTANCEOF = 193;
+
+  /** A branch target.  depth is the stack depth on entry, known once a branch to the label or the label itself has
+    * been emitted. */
+  static class Label {
+    private int pos = -1;
+    private int depth = -1;
+    /** (instruction position, offset position, offset size) of each branch emitted before the label was placed */
+    private ArrayList<int[]> refs = new ArrayList<int[]>();
+  }
+
+  private JvmClassWriter cw;
+  private JvmBytes code = new JvmBytes();
+  private int depth = 0, maxStack = 0;
+  private int nextLocal, maxLocals;
+
+  /** Constructs the code for a method whose receiver and parameters occupy the first params locals. */
+  JvmCode(JvmClassWriter w, int params) {
+    cw = w;
+    nextLocal = maxLocals = params;
+  }
+
+  int maxStack() { return maxStack; }
+  int maxLocals() { return maxLocals; }
+
+  byte[] bytes() {
+    if (code.length() > 0xFFFF) throw new IllegalStateException("method too large");
+    byte[] b = new byte[code.length()];
+    System.arraycopy(code.data(), 0, b, 0, b.length);
+    return b;
+  }
+
+  int newLocal() {
+    maxLocals = Math.max(maxLocals, nextLocal + 1);
+    return nextLocal++;
+  }
+  void freeLocal() { nextLocal--; }
+
+  private void adjust(int delta) {
+    depth += delta;
+    maxStack = Math.max(maxStack, depth);
+  }
+
+  /** Emits an instruction without operands. */
+  void op(int opcode, int delta) {
+    code.u1(opcode);
+    adjust(delta);
+  }
+
+  void intConst(int v) {
+    if (v >= -1 && v <= 5) code.u1(ICONST_0 + v);
+    else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+      code.u1(BIPUSH);
+      code.u1(v);
+    }
+    else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+      code.u1(SIPUSH);
+      code.u2(v);
+    }
+    else {
+      int i = cw.intConst(v);
+      if (i < 256) {
+        code.u1(LDC);
+        code.u1(i);
+      }
+      else {
+        code.u1(LDC_W);
+        code.u2(i);
+      }
+    }
+    adjust(1);
+  }
+
+  private void local(int opcode, int local) {
+    if (local > 255) throw new IllegalStateException("too many locals");
+    code.u1(opcode);
+    code.u1(local);
+  }
+
+  /** Emits ILOAD or ALOAD of local. */
+  void load(int opcode, int local) {
+    local(opcode, local);
+    adjust(1);
+  }
+
+  void store(int opcode, int local) {
+    local(opcode, local);
+    adjust(-1);
+  }
+
+  void field(int opcode, String owner, String name, String desc) {
+    code.u1(opcode);
+    code.u2(cw.memberRef(9, owner, name, desc));
+    adjust(opcode == GETSTATIC ? 1 : 0);
+  }
+
+  void invoke(int opcode, String owner, String name, String desc) {
+    code.u1(opcode);
+    code.u2(cw.memberRef(10, owner, name, desc));
+    int delta = desc.endsWith("V") ? 0 : 1;
+    for (int i = 1; desc.charAt(i) != ')'; i++) {
+      char c = desc.charAt(i);
+      while (c == '[') c = desc.charAt(++i);
+      if (c == 'L') i = desc.indexOf(';', i);
+      delta--;
+    }
+    if (opcode != INVOKESTATIC) delta--;
+    adjust(delta);
+  }
+
+  /** Emits CHECKCAST, INSTANCEOF, or ANEWARRAY for the class with internal name cls. */
+  void type(int opcode, String cls) {
+    code.u1(opcode);
+    code.u2(cw.classRef(cls));
+  }
+
+  private void branch(int pos, Label l, int size) {
+    if (l.depth < 0) l.depth = depth;
+    if (l.pos >= 0) code.patch(code.length() - size, l.pos - pos, size);
+    else l.refs.add(new int[] { pos, code.length() - size, size });
+  }
+
+  /** Emits a GOTO or a conditional branch to l. */
+  void jump(int opcode, Label l) {
+    int pos = code.length();
+    code.u1(opcode);
+    code.u2(0);
+    if (opcode == IFEQ || opcode == IFNE) adjust(-1);
+    else if (opcode != GOTO) adjust(-2);
+    branch(pos, l, 2);
+  }
+
+  /** Emits a TABLESWITCH on the int on the stack to targets[0 ..], or other when it is out of range. */
+  void tableSwitch(Label other, Label[] targets) {
+    int pos = code.length();
+    code.u1(TABLESWITCH);
+    while (code.length() % 4 != 0) code.u1(0);
+    adjust(-1);
+    code.u4(0);
+    branch(pos, other, 4);
+    code.u4(0);
+    code.u4(targets.length - 1);
+    for (Label l : targets) {
+      code.u4(0);
+      branch(pos, l, 4);
+    }
+  }
+
+  /** Binds l to the current position.  Code following an unconditional branch resumes at the depth of l. */
+  void place(Label l) {
+    if (l.depth >= 0) depth = l.depth;
+    else l.depth = depth;
+    l.pos = code.length();
+    for (int[] r : l.refs) {
+      int offset = l.pos - r[0];
+      if (r[2] == 2 && offset > Short.MAX_VALUE) throw new IllegalStateException("branch offset too large");
+      code.patch(r[1], offset, r[2]);
+    }
+    l.refs.clear();
+  }
+}
@@ -0,0 +1,339 @@
+/** CEK abstract machine engine for Jam */
+
+import java.util.ArrayList;
+
+/** Engine that runs programs on a CekMachine. */
+class CekEngine implements Interpreter.Engine {
+  public static final CekEngine ONLY = new CekEngine();
+  private CekEngine() {}
+
+  public JamVal run(AST prog, Interpreter.EvalPolicy ep) { return new CekMachine(ep).run(prog, null); }
+  public String toString() { return "cek"; }
+}
+
+/** A control/environment/continuation machine for resolved Jam programs.  Instead of recursing through accept calls,
+  * the machine keeps the pending work of every non-tail subexpression on an explicit stack of continuations in the
+  * heap, so the depth of Jam recursion is bounded by the heap rather than the Java thread stack.
+  *
+  * Each step visits the current control expression in the current environment.  A visitor method either returns
+  * the value of the expression (when it is immediate) or returns null after pushing continuations and installing the
+  * subexpression to evaluate next.  Values are passed to the continuation on top of the stack until the stack is
+  * empty.
+  *
+  * Argument and let slots, conses, and operators follow the embedded EvalPolicy: under a strict policy the machine
+  * evaluates arguments itself (last argument first, as newFrame does); otherwise it asks the policy for the slot
+  * contents.  Suspensions met during lookup or by first/rest are evaluated by the machine; a NeedSuspension is first
+  * claimed (see NeedSuspension.claim), and an update continuation remembers its value.  Suspensions that escape into
+  * the result are ordinary Suspensions and can still be forced by a FlexEvalVisitor.
+  */
+class CekMachine implements ASTVisitor<JamVal> {
+
+  private Interpreter.EvalPolicy policy;
+  /** Visitor from which the EvalVisitors embedded in new suspensions are derived. */
+  private EvalVisitor root;
+
+  /* machine registers */
+  private AST control;
+  private Frame env;
+  private ArrayList<Cont> stack = new ArrayList<Cont>();
+
+  CekMachine(Interpreter.EvalPolicy ep) {
+    policy = ep;
+    root = new Interpreter.FlexEvalVisitor(ep);
+  }
+
+  /** Runs the machine on exp in environment e until the continuation stack is empty. */
+  JamVal run(AST exp, Frame e) {
+    control = exp;
+    env = e;
+    JamVal value = null;
+    try {
+      while (true) {
+        if (control != null) {
+          AST c = control;
+          control = null;
+          value = c.accept(this);
+        }
+        else if (stack.isEmpty()) return value;
+        else value = stack.remove(stack.size() - 1).apply(value, this);
+      }
+    }
+    catch (RuntimeException x) {
+      abandon(x);
+      throw x;
+    }
+    catch (Error x) {
+      abandon(x);
+      throw x;
+    }
+  }
+
+  private void push(Cont k) { stack.add(k); }
+
+  /** Releases the NeedSuspensions claimed by the pending update continuations after the machine failed with t. */
+  private void abandon(Throwable t) {
+    for (int i = stack.size() - 1; i >= 0; i--)
+      if (stack.get(i) instanceof UpdateCont) ((UpdateCont) stack.get(i)).susp.abandon(t);
+    stack.clear();
+  }
+
+  /** Schedules the evaluation of exp in e; always returns null. */
+  private JamVal eval(AST exp, Frame e) {
+    control = exp;
+    env = e;
+    return null;
+  }
+
+  /** Returns the value held in a frame slot or suspension field, or schedules the evaluation of a suspension. */
+  private JamVal force(Object slot) {
+    if (! (slot instanceof Interpreter.Suspension)) return (JamVal) slot;
+    Interpreter.Suspension susp = (Interpreter.Suspension) slot;
+    if (susp instanceof Interpreter.NeedSuspension) {
+      Interpreter.NeedSuspension need = (Interpreter.NeedSuspension) susp;
+      if (! need.claim()) return need.value();
+      push(new UpdateCont(need));
+    }
+    return eval(susp.exp(), susp.ev().env());
+  }
+
+  /** Evaluator for suspensions and lazy conses created in environment e. */
+  private EvalVisitor visitor(Frame e) { return root.newVisitor(e); }
+
+  /** Binds vars to exps evaluated in e in a new frame on top of parent, then evaluates body in that frame. */
+  private JamVal enterFrame(Variable[] vars, AST[] exps, Frame e, Frame parent, AST body) {
+    int n = vars.length;
+    Object[] slots = new Object[n];
+    if (policy.isStrict()) return new SlotCont(vars, exps, slots, e, parent, body).next(this);
+    EvalVisitor ev = (n > 0) ? visitor(e) : null;
+    for (int i = n-1; i >= 0; i--)
+      slots[i] = Futures.isFuture(exps[i]) ? future(exps[i], e) : policy.newSlot(exps[i], ev);
+    return eval(body, new Frame(vars, slots, parent));
+  }
+
+  /** Returns the started future bound to the application future(e) exp in e (see Futures). */
+  private Interpreter.NeedSuspension future(AST exp, Frame e) {
+    return Futures.start(new Interpreter.NeedSuspension(exp, visitor(e)));
+  }
+
+  /* ASTVisitor methods: each either returns the value of its argument or schedules its evaluation */
+
+  public JamVal forBoolConstant(BoolConstant b) { return b; }
+  public JamVal forIntConstant(IntConstant i) { return i; }
+  public JamVal forNullConstant(NullConstant n) { return JamEmpty.ONLY; }
+  public JamVal forPrimFun(PrimFun f) { return f; }
+  public JamVal forMap(Map m) { return new JamClosure(m, env); }
+
+  /** A resolved program has no bound plain Variables. */
+  public JamVal forVariable(Variable v) { throw new EvalException("variable " + v + " is unbound"); }
+
+  public JamVal forLexicalVariable(LexicalVariable v) { return force(env.up(v.depth()).slots[v.slot()]); }
+
+  public JamVal forUnOpApp(UnOpApp u) {
+    push(new UnOpCont(u.rator()));
+    return eval(u.arg(), env);
+  }
+
+  public JamVal forBinOpApp(BinOpApp b) {
+    push(new BinOpArg1Cont(b, env));
+    return eval(b.arg1(), env);
+  }
+
+  public JamVal forApp(App a) {
+    push(new RatorCont(a, env));
+    return eval(a.rator(), env);
+  }
+
+  public JamVal forIf(If i) {
+    push(new IfCont(i, env));
+    return eval(i.test(), env);
+  }
+
+  public JamVal forLet(Let l) { return enterFrame(l.vars(), l.exps(), env, env, l.body()); }
+
+  public JamVal forLetRec(LetRec l) { return eval(l.body(), Interpreter.recFrame(l.vars(), l.exps(), env)); }
+
+  /** Applies the function value rator to the unevaluated args in e. */
+  private JamVal apply(JamVal rator, App a, Frame e) {
+    AST[] args = a.args();
+    if (rator instanceof JamClosure) {
+      JamClosure closure = (JamClosure) rator;
+      Map map = closure.body();
+      if (map.vars().length != args.length)
+        throw new EvalException("closure " + closure + " applied to " + args.length + " arguments");
+      return enterFrame(map.vars(), args, e, closure.env(), map.body());
+    }
+    if (rator instanceof PrimFun) return ((PrimFun) rator).accept(new PrimApplier(args, e));
+    throw new EvalException(rator + " appears at head of application " + a + " but it is not a valid function");
+  }
+
+  /** Schedules the application of a primitive function to its arguments. */
+  private class PrimApplier implements PrimFunVisitor<JamVal> {
+    private AST[] args;
+    private Frame e;
+
+    PrimApplier(AST[] as, Frame fr) { args = as; e = fr; }
+
+    /** Evaluates all args left to right, then applies prim to their values. */
+    private JamVal evalArgs(PrimFun prim) {
+      int n = args.length;
+      if (n == 0) return prim.accept(new Interpreter.ValuePrimFunVisitor(new JamVal[0], visitor(e)));
+      push(new PrimArgCont(prim, args, new JamVal[n], e));
+      return eval(args[0], e);
+    }
+
+    public JamVal forFunctionPPrim() { return evalArgs(FunctionPPrim.ONLY); }
+    public JamVal forNumberPPrim() { return evalArgs(NumberPPrim.ONLY); }
+    public JamVal forListPPrim() { return evalArgs(ListPPrim.ONLY); }
+    public JamVal forConsPPrim() { return evalArgs(ConsPPrim.ONLY); }
+    public JamVal forNullPPrim() { return evalArgs(NullPPrim.ONLY); }
+    public JamVal forArityPrim() { return evalArgs(ArityPrim.ONLY); }
+
+    public JamVal forConsPrim() {
+      if (args.length != 2) return Interpreter.ValuePrimFunVisitor.primFunError("cons", args.length);
+      if (policy.consPolicy() == Interpreter.ConsEvalPolicyByValue.ONLY) return evalArgs(ConsPrim.ONLY);
+      return policy.consPolicy().newCons(args[0], args[1], visitor(e));
+    }
+
+    public JamVal forFirstPrim() {
+      push(new SelectCont(true));
+      return eval(args[0], e);
+    }
+
+    public JamVal forRestPrim() {
+      push(new SelectCont(false));
+      return eval(args[0], e);
+    }
+
+    public JamVal forPMapPrim() { return evalArgs(PMapPrim.ONLY); }
+    public JamVal forPReducePrim() { return evalArgs(PReducePrim.ONLY); }
+    public JamVal forFuturePrim() { return evalArgs(FuturePrim.ONLY); }
+    public JamVal forTouchPrim() { return evalArgs(TouchPrim.ONLY); }
+  }
+
+  /* Continuations */
+
+  /** A pending computation waiting for the value of a subexpression. apply follows the convention of the visitor
+    * methods: it returns the value to pass on, or null after scheduling further evaluation. */
+  static abstract class Cont {
+    abstract JamVal apply(JamVal v, CekMachine m);
+  }
+
+  /** Remembers the value computed for a NeedSuspension. */
+  static class UpdateCont extends Cont {
+    private Interpreter.NeedSuspension susp;
+    UpdateCont(Interpreter.NeedSuspension s) { susp = s; }
+    JamVal apply(JamVal v, CekMachine m) { return susp.setValue(v); }
+  }
+
+  static class UnOpCont extends Cont {
+    private UnOp rator;
+    UnOpCont(UnOp r) { rator = r; }
+    JamVal apply(JamVal v, CekMachine m) { return rator.accept(m.policy.newUnOpVisitor(v)); }
+  }
+
+  static class BinOpArg1Cont extends Cont {
+    private BinOpApp b;
+    private Frame e;
+    BinOpArg1Cont(BinOpApp bo, Frame fr) { b = bo; e = fr; }
+    JamVal apply(JamVal v, CekMachine m) {
+      JamVal result = Interpreter.ValueBinOpVisitor.checkFirstArg(b.rator(), v);
+      if (result != null) return result;
+      m.push(new BinOpArg2Cont(b.rator(), v));
+      return m.eval(b.arg2(), e);
+    }
+  }
+
+  static class BinOpArg2Cont extends Cont {
+    private BinOp rator;
+    private JamVal val1;
+    BinOpArg2Cont(BinOp r, JamVal v1) { rator = r; val1 = v1; }
+    JamVal apply(JamVal v, CekMachine m) { return rator.accept(new Interpreter.ValueBinOpVisitor(val1, v)); }
+  }
+
+  static class IfCont extends Cont {
+    private If i;
+    private Frame e;
+    IfCont(If iff, Frame fr) { i = iff; e = fr; }
+    JamVal apply(JamVal test, CekMachine m) {
+      if (! (test instanceof BoolConstant)) throw new EvalException("non Boolean " + test + " used as test in if");
+      return m.eval(test == BoolConstant.TRUE ? i.conseq() : i.alt(), e);
+    }
+  }
+
+  static class RatorCont extends Cont {
+    private App a;
+    private Frame e;
+    RatorCont(App ap, Frame fr) { a = ap; e = fr; }
+    JamVal apply(JamVal rator, CekMachine m) { return m.apply(rator, a, e); }
+  }
+
+  /** Collects the values of strictly evaluated slots from last to first, then evaluates body in the new frame; the
+    * slots of futures are bound to started futures in passing. */
+  static class SlotCont extends Cont {
+    private Variable[] vars;
+    private AST[] exps;
+    private Object[] slots;
+    private Frame e, parent;
+    private AST body;
+    private int i;  // slot whose value is being computed
+
+    SlotCont(Variable[] vs, AST[] es, Object[] ss, Frame fr, Frame p, AST b) {
+      vars = vs; exps = es; slots = ss; e = fr; parent = p; body = b; i = vs.length;
+    }
+    JamVal apply(JamVal v, CekMachine m) {
+      slots[i] = v;
+      return next(m);
+    }
+    /** Schedules the evaluation of the next slot below i, or of body once all the slots are filled. */
+    JamVal next(CekMachine m) {
+      while (i > 0) {
+        i--;
+        if (! Futures.isFuture(exps[i])) {
+          m.push(this);
+          return m.eval(exps[i], e);
+        }
+        slots[i] = m.future(exps[i], e);
+      }
+      return m.eval(body, new Frame(vars, slots, parent));
+    }
+  }
+
+  /** Collects the values of primitive arguments from first to last, then applies the primitive. */
+  static class PrimArgCont extends Cont {
+    private PrimFun prim;
+    private AST[] args;
+    private JamVal[] vals;
+    private Frame e;
+    private int i = 0;  // argument whose value is being computed
+
+    PrimArgCont(PrimFun p, AST[] as, JamVal[] vs, Frame fr) { prim = p; args = as; vals = vs; e = fr; }
+    JamVal apply(JamVal v, CekMachine m) {
+      vals[i] = v;
+      i++;
+      if (i == args.length) return prim.accept(new Interpreter.ValuePrimFunVisitor(vals, m.visitor(e)));
+      m.push(this);
+      return m.eval(args[i], e);
+    }
+  }
+
+  /** Implements first (isFirst) or rest on the value of the argument, forcing the field of a lazy cons. */
+  static class SelectCont extends Cont {
+    private boolean isFirst;
+    SelectCont(boolean f) { isFirst = f; }
+    JamVal apply(JamVal v, CekMachine m) {
+      JamCons c = Interpreter.ValuePrimFunVisitor.consArg(v, isFirst ? "first" : "rest");
+      if (! (c instanceof Interpreter.JamLazyCons)) return isFirst ? c.first() : c.rest();
+      Interpreter.JamLazyCons lazy = (Interpreter.JamLazyCons) c;
+      if (isFirst) return m.force(lazy.firstSusp());
+      m.push(CheckListCont.ONLY);
+      return m.force(lazy.restSusp());
+    }
+  }
+
+  /** Checks that the rest of a lazy cons is a list. */
+  static class CheckListCont extends Cont {
+    static final CheckListCont ONLY = new CheckListCont();
+    private CheckListCont() {}
+    JamVal apply(JamVal v, CekMachine m) { return Interpreter.JamLazyCons.checkList(v); }
+  }
+}
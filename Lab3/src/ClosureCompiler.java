@@ -0,0 +1,625 @@
+/** Closure compilation engine for Jam */
+
+/** Engine that translates a program once into a tree of executable Nodes for the given policy and runs the tree. */
+class ClosureEngine implements Interpreter.Engine {
+  public static final ClosureEngine ONLY = new ClosureEngine();
+  private ClosureEngine() {}
+
+  public JamVal run(AST prog, Interpreter.EvalPolicy ep) { return ClosureCompiler.compile(prog, ep).eval(null); }
+  public String toString() { return "closure"; }
+}
+
+/** An executable AST node.  The operator, arity, policy, and variable address of the AST node it was translated from
+  * are resolved when the Node is built, so evaluating it involves no visitor dispatch or allocation. */
+abstract class Node {
+  /** Returns the value of this node in environment env. */
+  abstract JamVal eval(Frame env);
+
+  /** Returns the contents of a lazy slot bound to this node in env when it needs no suspension (the value of a
+    * constant, or the shared slot of a variable, as in Interpreter.atomicSlot), or null.  A Map needs none only in a
+    * by-need slot (see ClosureCompiler.slot). */
+  Object binding(Frame env) { return null; }
+}
+
+/** Constructs the contents of a frame slot or lazy cons field for an expression, as EvalPolicy.newSlot does. */
+abstract class SlotMaker {
+  abstract Object slot(Node n, AST ast, Frame env);
+
+  static final SlotMaker VALUE = new SlotMaker() {
+    Object slot(Node n, AST ast, Frame env) { return n.eval(env); }
+  };
+  static final SlotMaker NAME = new SlotMaker() {
+    Object slot(Node n, AST ast, Frame env) { return new NodeSuspension(ast, n, env); }
+  };
+  static final SlotMaker NEED = new SlotMaker() {
+    Object slot(Node n, AST ast, Frame env) { return SparkEngine.offer(new NodeNeedSuspension(ast, n, env)); }
+  };
+}
+
+/** A Suspension of a translated expression; the AST is kept only for printing. */
+class NodeSuspension extends Interpreter.Suspension {
+  private Node node;
+  private Frame env;
+
+  NodeSuspension(AST ast, Node n, Frame e) {
+    super(ast, null);
+    node = n;
+    env = e;
+  }
+  JamVal compute() { return node.eval(env); }
+  void release() {
+    super.release();
+    node = null;
+    env = null;
+  }
+}
+
+/** A NeedSuspension of a translated expression. */
+class NodeNeedSuspension extends Interpreter.NeedSuspension {
+  private Node node;
+  private Frame env;
+
+  NodeNeedSuspension(AST ast, Node n, Frame e) {
+    super(ast, null);
+    node = n;
+    env = e;
+  }
+  JamVal compute() { return node.eval(env); }
+  void release() {
+    super.release();
+    node = null;
+    env = null;
+  }
+}
+
+/** A closure whose body is the translated Node code. */
+class NodeClosure extends JamClosure {
+  private Node code;
+
+  NodeClosure(Map m, Frame e, Node c) {
+    super(m, e);
+    code = c;
+  }
+  Node code() { return code; }
+  JamVal call(Frame e, EvalVisitor ev) { return code.eval(e); }
+}
+
+/** Translates a resolved AST into Nodes for a fixed EvalPolicy.  Evaluation order and error messages match the
+  * FlexEvalVisitor: closure arguments and let right hand sides are bound last first, primitive arguments are
+  * evaluated first to last, and operands are checked as soon as they are evaluated. */
+class ClosureCompiler implements ASTVisitor<Node> {
+
+  /** Slot construction for closure arguments and let right hand sides */
+  private SlotMaker args;
+  /** Field construction for conses */
+  private SlotMaker fields;
+  /** Whether independent heavy subexpressions are evaluated in parallel (only under strict policies) */
+  private boolean parallel;
+
+  private ClosureCompiler(Interpreter.EvalPolicy ep, boolean p) {
+    parallel = p && ep.isStrict();
+    args = ep.isStrict() ? SlotMaker.VALUE : (ep.isNeed() ? SlotMaker.NEED : SlotMaker.NAME);
+    Interpreter.ConsEvalPolicy cp = ep.consPolicy();
+    if (cp == Interpreter.ConsEvalPolicyByValue.ONLY) fields = SlotMaker.VALUE;
+    else if (cp == Interpreter.ConsEvalPolicyByName.ONLY) fields = SlotMaker.NAME;
+    else fields = SlotMaker.NEED;
+  }
+
+  /** Returns the translation of the resolved program prog under ep. */
+  static Node compile(AST prog, Interpreter.EvalPolicy ep) { return compile(prog, ep, false); }
+
+  /** Returns the translation of prog under ep, evaluating independent subexpressions in parallel if parallel is set
+    * and ep is strict (see ParallelEngine). */
+  static Node compile(AST prog, Interpreter.EvalPolicy ep, boolean parallel) {
+    return prog.accept(new ClosureCompiler(ep, parallel));
+  }
+
+  /** Returns the translation of the application of op to the operands translated to arg1 and arg2. */
+  static Node binOp(BinOp op, Node arg1, Node arg2) { return op.accept(new BinOpCompiler(arg1, arg2)); }
+
+  /** Returns the mask of the expressions in exps worth evaluating in parallel, or null if fewer than two are.
+    * Futures run in parallel anyway, and are not counted. */
+  private boolean[] forkable(AST[] exps) {
+    if (! parallel) return null;
+    boolean[] heavy = new boolean[exps.length];
+    int count = 0;
+    for (int i = 0; i < exps.length; i++)
+      if (heavy[i] = ParallelEngine.isHeavy(exps[i]) && ! Futures.isFuture(exps[i])) count++;
+    return (count < 2) ? null : heavy;
+  }
+
+  private Node[] compileAll(AST[] asts) {
+    Node[] nodes = new Node[asts.length];
+    for (int i = 0; i < asts.length; i++) nodes[i] = asts[i].accept(this);
+    return nodes;
+  }
+
+  /** Constructs the frame binding vars to the slots for exps (translated to nodes) in env on top of parent.  The
+    * slots marked in strict (if it is not null) hold values, whatever the policy; those marked in unused are left
+    * empty, as in Interpreter.newFrame. */
+  private static Frame bind(SlotMaker maker, boolean[] strict, boolean[] unused, Variable[] vars, AST[] exps,
+                            Node[] nodes, Frame env, Frame parent) {
+    int n = nodes.length;
+    Object[] slots = new Object[n];
+    if (strict == null && unused == null) for (int i = n-1; i >= 0; i--) slots[i] = slot(maker, nodes[i], exps[i], env);
+    else for (int i = n-1; i >= 0; i--) {
+      if (unused != null && unused[i]) continue;
+      slots[i] = (strict != null && strict[i]) ? valueSlot(nodes[i], env) : slot(maker, nodes[i], exps[i], env);
+    }
+    return new Frame(vars, slots, parent);
+  }
+
+  /** Returns the contents of a frame slot bound to node n (translated from ast) in env; lazy slots of atomic
+    * expressions (and by-need slots of Maps) are bound directly, as in Interpreter.isAtomic. */
+  private static Object slot(SlotMaker maker, Node n, AST ast, Frame env) {
+    if (maker == SlotMaker.VALUE) return valueSlot(n, env);
+    if (maker == SlotMaker.NEED && n instanceof MapNode) return n.eval(env);
+    Object b = n.binding(env);
+    return (b != null) ? b : maker.slot(n, ast, env);
+  }
+
+  /** Returns the contents of a strict frame slot bound to node n in env: its value, or a started future. */
+  static Object valueSlot(Node n, Frame env) {
+    return (n instanceof FutureNode) ? ((FutureNode) n).start(env) : n.eval(env);
+  }
+
+  /* ASTVisitor methods */
+
+  public Node forBoolConstant(BoolConstant b) { return new Const(b); }
+  public Node forIntConstant(IntConstant i) { return new IntConst(i); }
+  public Node forNullConstant(NullConstant n) { return new Const(JamEmpty.ONLY); }
+  public Node forPrimFun(PrimFun f) { return new Const(f); }
+
+  /** A resolved program has no bound plain Variables. */
+  public Node forVariable(final Variable v) {
+    return new Node() {
+      JamVal eval(Frame env) { throw new EvalException("variable " + v + " is unbound"); }
+    };
+  }
+
+  public Node forLexicalVariable(LexicalVariable v) {
+    if (v.depth() == 0) return new Local0(v.slot());
+    return new Local(v.depth(), v.slot());
+  }
+
+  public Node forUnOpApp(UnOpApp u) { return u.rator().accept(new UnOpCompiler(u.arg().accept(this))); }
+
+  /** The operands of & and | are not evaluated in parallel, since the second one may not be needed. */
+  public Node forBinOpApp(BinOpApp b) {
+    Node arg1 = b.arg1().accept(this), arg2 = b.arg2().accept(this);
+    Node seq = binOp(b.rator(), arg1, arg2);
+    if (b.rator() == OpAnd.ONLY || b.rator() == OpOr.ONLY || forkable(new AST[] { b.arg1(), b.arg2() }) == null)
+      return seq;
+    return new ParallelEngine.ForkBinOpNode(b.rator(), arg1, arg2, seq);
+  }
+
+  public Node forApp(App a) {
+    Node[] nodes = compileAll(a.args());
+    if (a.rator() instanceof PrimFun) return ((PrimFun) a.rator()).accept(new PrimCompiler(a.args(), nodes));
+    boolean[] heavy = forkable(a.args());
+    if (heavy != null) return new ParallelEngine.ForkAppNode(this, a, a.rator().accept(this), nodes, heavy);
+    return new AppNode(this, a, a.rator().accept(this), nodes);
+  }
+
+  public Node forMap(Map m) { return new MapNode(m, m.body().accept(this)); }
+
+  public Node forIf(If i) { return new IfNode(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)); }
+
+  public Node forLet(Let l) {
+    boolean[] heavy = forkable(l.exps());
+    Node[] nodes = compileAll(l.exps());
+    if (heavy != null) return new ParallelEngine.ForkLetNode(l.vars(), nodes, heavy, l.body().accept(this));
+    return new LetNode(args, l.strict(), l.vars(), l.exps(), nodes, l.body().accept(this));
+  }
+
+  public Node forLetRec(LetRec l) { return new LetRecNode(l.vars(), compileAll(l.exps()), l.body().accept(this)); }
+
+  /* Nodes */
+
+  static class Const extends Node {
+    private JamVal value;
+    Const(JamVal v) { value = v; }
+    JamVal eval(Frame env) { return value; }
+    Object binding(Frame env) { return value; }
+  }
+
+  /** A node that always yields an int, which the operators consuming it take unboxed from evalInt.  The value is
+    * only boxed (as a shared IntConstant where possible) when it escapes into a frame, a cons, or a result. */
+  abstract static class IntNode extends Node {
+    abstract int evalInt(Frame env);
+    JamVal eval(Frame env) { return IntConstant.valueOf(evalInt(env)); }
+  }
+
+  static class IntConst extends IntNode {
+    private IntConstant value;
+    IntConst(IntConstant v) { value = v; }
+    int evalInt(Frame env) { return value.value(); }
+    JamVal eval(Frame env) { return value; }
+    Object binding(Frame env) { return value; }
+  }
+
+  /** A variable bound in the innermost frame */
+  static class Local0 extends Node {
+    private int slot;
+    Local0(int s) { slot = s; }
+    JamVal eval(Frame env) { return env.value(slot); }
+    Object binding(Frame env) { return env.slots[slot]; }
+  }
+
+  static class Local extends Node {
+    private int depth, slot;
+    Local(int d, int s) { depth = d; slot = s; }
+    JamVal eval(Frame env) { return env.up(depth).value(slot); }
+    Object binding(Frame env) { return env.up(depth).slots[slot]; }
+  }
+
+  static class MapNode extends Node {
+    private Map map;
+    private Node body;
+    MapNode(Map m, Node b) { map = m; body = b; }
+    JamVal eval(Frame env) { return new NodeClosure(map, env, body); }
+  }
+
+  static class IfNode extends Node {
+    private Node test, conseq, alt;
+    IfNode(Node t, Node c, Node a) { test = t; conseq = c; alt = a; }
+    JamVal eval(Frame env) {
+      JamVal t = test.eval(env);
+      if (! (t instanceof BoolConstant)) throw new EvalException("non Boolean " + t + " used as test in if");
+      return (t == BoolConstant.TRUE) ? conseq.eval(env) : alt.eval(env);
+    }
+  }
+
+  /** The closures of the Maps share the frame that holds them, which is created empty and back-patched. */
+  static class LetRecNode extends Node {
+    private Variable[] vars;
+    private Node[] maps;
+    private Node body;
+    LetRecNode(Variable[] v, Node[] m, Node b) { vars = v; maps = m; body = b; }
+    JamVal eval(Frame env) {
+      int n = maps.length;
+      Frame frame = new Frame(vars, new Object[n], env);
+      for (int i = 0; i < n; i++) frame.slots[i] = maps[i].eval(frame);
+      return body.eval(frame);
+    }
+  }
+  static class LetNode extends Node {
+    private SlotMaker maker;
+    private boolean[] strict;
+    private Variable[] vars;
+    private AST[] exps;
+    private Node[] nodes;
+    private Node body;
+    LetNode(SlotMaker m, boolean[] s, Variable[] v, AST[] e, Node[] n, Node b) {
+      maker = m; strict = s; vars = v; exps = e; nodes = n; body = b;
+    }
+    JamVal eval(Frame env) { return body.eval(bind(maker, strict, null, vars, exps, nodes, env, env)); }
+  }
+
+  /** Application of a computed rator */
+  static class AppNode extends Node {
+    private ClosureCompiler compiler;
+    private App app;
+    private Node rator;
+    private Node[] args;
+    AppNode(ClosureCompiler c, App a, Node r, Node[] as) { compiler = c; app = a; rator = r; args = as; }
+
+    JamVal eval(Frame env) {
+      JamVal r = rator.eval(env);
+      if (r instanceof NodeClosure) {
+        NodeClosure closure = (NodeClosure) r;
+        Variable[] vars = closure.body().vars();
+        if (vars.length != args.length)
+          throw new EvalException("closure " + closure + " applied to " + args.length + " arguments");
+        return closure.code().eval(bindArgs(closure.body(), args, env, closure.env()));
+      }
+      /* a primitive passed as a value; translated at each application */
+      if (r instanceof PrimFun) return ((PrimFun) r).accept(compiler.new PrimCompiler(app.args(), args)).eval(env);
+      throw new EvalException(r + " appears at head of application " + app + " but it is not a valid function");
+    }
+
+    /** Constructs the frame binding the parameters of map to the arguments (translated to nodes) in env. */
+    Frame bindArgs(Map map, Node[] nodes, Frame env, Frame parent) {
+      return bind(compiler.args, map.strict(), map.unused(), map.vars(), app.args(), nodes, env, parent);
+    }
+  }
+
+  /** Primitive application with an evaluated argument */
+  abstract static class Prim1 extends Node {
+    private Node arg;
+    Prim1(Node a) { arg = a; }
+    abstract JamVal apply(JamVal v);
+    JamVal eval(Frame env) { return apply(arg.eval(env)); }
+  }
+
+  /** Primitive applied to its arguments evaluated first to last */
+  static class PrimN extends Node {
+    private PrimFun prim;
+    private Node[] args;
+    PrimN(PrimFun p, Node[] as) { prim = p; args = as; }
+    JamVal eval(Frame env) {
+      JamVal[] vals = new JamVal[args.length];
+      for (int i = 0; i < args.length; i++) vals[i] = args[i].eval(env);
+      return prim.accept(new Interpreter.ValuePrimFunVisitor(vals));
+    }
+  }
+
+  /** future(e) written in place: in a let or argument slot, it binds a future (see Futures); elsewhere, it is the
+    * value of e. */
+  static class FutureNode extends Node {
+    private AST ast;
+    private Node arg;
+    FutureNode(AST a, Node n) { ast = a; arg = n; }
+    JamVal eval(Frame env) { return arg.eval(env); }
+    Object binding(Frame env) { return start(env); }
+    Interpreter.NeedSuspension start(Frame env) { return Futures.start(new NodeNeedSuspension(ast, arg, env)); }
+  }
+
+  /** Strict primitive applied to the wrong number of arguments: the arguments are evaluated before the error. */
+  static class PrimArityError extends Node {
+    private String name;
+    private Node[] args;
+    PrimArityError(String n, Node[] as) { name = n; args = as; }
+    JamVal eval(Frame env) {
+      for (Node a : args) a.eval(env);
+      return Interpreter.ValuePrimFunVisitor.primFunError(name, args.length);
+    }
+  }
+
+  static class ConsNode extends Node {
+    private SlotMaker maker;
+    private AST first, rest;
+    private Node f, r;
+    ConsNode(SlotMaker m, AST fa, AST ra, Node fn, Node rn) { maker = m; first = fa; rest = ra; f = fn; r = rn; }
+    JamVal eval(Frame env) {
+      if (maker == SlotMaker.VALUE) {
+        JamVal v = f.eval(env);
+        return Interpreter.ValuePrimFunVisitor.cons(v, r.eval(env));
+      }
+      return new Interpreter.JamLazyCons((Interpreter.Suspension) maker.slot(f, first, env),
+                                         (Interpreter.Suspension) maker.slot(r, rest, env));
+    }
+  }
+
+  /** Translates the application of a primitive to args. */
+  private class PrimCompiler implements PrimFunVisitor<Node> {
+    private AST[] asts;
+    private Node[] args;
+
+    PrimCompiler(AST[] as, Node[] ns) { asts = as; args = ns; }
+
+    public Node forFunctionPPrim() {
+      if (args.length != 1) return new PrimArityError("function?", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return BoolConstant.toBoolConstant(v instanceof JamFun); }
+      };
+    }
+    public Node forNumberPPrim() {
+      if (args.length != 1) return new PrimArityError("number?", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return BoolConstant.toBoolConstant(v instanceof IntConstant); }
+      };
+    }
+    public Node forListPPrim() {
+      if (args.length != 1) return new PrimArityError("list?", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return BoolConstant.toBoolConstant(v instanceof JamList); }
+      };
+    }
+    public Node forConsPPrim() {
+      if (args.length != 1) return new PrimArityError("cons?", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return BoolConstant.toBoolConstant(v instanceof JamCons); }
+      };
+    }
+    public Node forNullPPrim() {
+      if (args.length != 1) return new PrimArityError("null?", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return BoolConstant.toBoolConstant(v instanceof JamEmpty); }
+      };
+    }
+    public Node forArityPrim() {
+      if (args.length != 1) return new PrimArityError("arity", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return Interpreter.ValuePrimFunVisitor.arity(v); }
+      };
+    }
+    /** The cons arity is checked before any argument is evaluated. */
+    public Node forConsPrim() {
+      if (args.length != 2) return new PrimArityError("cons", new Node[0]) {
+        JamVal eval(Frame env) { return Interpreter.ValuePrimFunVisitor.primFunError("cons", asts.length); }
+      };
+      return new ConsNode(fields, asts[0], asts[1], args[0], args[1]);
+    }
+    /** Only the first argument of first and rest is evaluated. */
+    public Node forFirstPrim() {
+      if (args.length == 0) return new PrimArityError("first", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return Interpreter.ValuePrimFunVisitor.consArg(v, "first").first(); }
+      };
+    }
+    public Node forRestPrim() {
+      if (args.length == 0) return new PrimArityError("rest", args);
+      return new Prim1(args[0]) {
+        JamVal apply(JamVal v) { return Interpreter.ValuePrimFunVisitor.consArg(v, "rest").rest(); }
+      };
+    }
+    public Node forPMapPrim() { return new PrimN(PMapPrim.ONLY, args); }
+    public Node forPReducePrim() { return new PrimN(PReducePrim.ONLY, args); }
+    public Node forFuturePrim() {
+      if (args.length != 1) return new PrimN(FuturePrim.ONLY, args);
+      return new FutureNode(asts[0], args[0]);
+    }
+    public Node forTouchPrim() { return new PrimN(TouchPrim.ONLY, args); }
+  }
+
+  /* Operators */
+
+  /** Unary operator application; the operand is checked as soon as it is evaluated. */
+  abstract static class UnOpNode extends Node {
+    UnOp op;
+    Node arg;
+    UnOpNode(UnOp o, Node a) { op = o; arg = a; }
+    BoolConstant boolArg(Frame env) { return Interpreter.StandardUnOpVisitor.boolArg(arg.eval(env), op); }
+  }
+
+  /** Returns the int value of operand n of op in env, unboxed if n is an IntNode. */
+  static int intOperand(Node n, UnOp op, Frame env) {
+    if (n instanceof IntNode) return ((IntNode) n).evalInt(env);
+    return Interpreter.StandardUnOpVisitor.intArg(n.eval(env), op).value();
+  }
+
+  static int intOperand(Node n, BinOp op, Frame env) {
+    if (n instanceof IntNode) return ((IntNode) n).evalInt(env);
+    return Interpreter.ValueBinOpVisitor.intArg(n.eval(env), op);
+  }
+
+  private static class UnOpCompiler implements UnOpVisitor<Node> {
+    private Node arg;
+    UnOpCompiler(Node a) { arg = a; }
+
+    public Node forUnOpPlus(UnOpPlus op) {
+      if (arg instanceof IntNode) return arg;
+      return new UnOpNode(op, arg) {
+        JamVal eval(Frame env) { return Interpreter.StandardUnOpVisitor.intArg(arg.eval(env), op); }
+      };
+    }
+    public Node forUnOpMinus(final UnOpMinus op) {
+      return new IntNode() {
+        int evalInt(Frame env) { return - intOperand(arg, op, env); }
+      };
+    }
+    public Node forOpNot(OpNot op) {
+      return new UnOpNode(op, arg) {
+        JamVal eval(Frame env) { return boolArg(env).not(); }
+      };
+    }
+  }
+
+  /** Binary operator application */
+  abstract static class BinOpNode extends Node {
+    private BinOp op;
+    Node arg1, arg2;
+    BinOpNode(BinOp o, Node a1, Node a2) { op = o; arg1 = a1; arg2 = a2; }
+    int int1(Frame env) { return intOperand(arg1, op, env); }
+    int int2(Frame env) { return intOperand(arg2, op, env); }
+    BoolConstant bool1(Frame env) { return Interpreter.ValueBinOpVisitor.boolArg(arg1.eval(env), op); }
+    BoolConstant bool2(Frame env) { return Interpreter.ValueBinOpVisitor.boolArg(arg2.eval(env), op); }
+  }
+
+  /** Integer operator application, yielding its result unboxed */
+  abstract static class IntBinOpNode extends IntNode {
+    private BinOp op;
+    private Node arg1, arg2;
+    IntBinOpNode(BinOp o, Node a1, Node a2) { op = o; arg1 = a1; arg2 = a2; }
+    int int1(Frame env) { return intOperand(arg1, op, env); }
+    int int2(Frame env) { return intOperand(arg2, op, env); }
+  }
+
+  /** Equality test (negated for !=) that rewrites itself for the operand types it sees.  It starts uninitialized;
+    * its first execution specializes it to a comparison of ints, of booleans, or against the empty list, according to
+    * the operands; and a specialized test that is given operands of other types falls back for good to the generic
+    * equals.  The other operators need no such rewriting: their operand types are fixed by the operator, so the nodes
+    * built for them are already the int and boolean versions, and an operand of another type is an error. */
+  static class EqualsNode extends Node {
+    private static final int UNINITIALIZED = 0, INT = 1, BOOL = 2, EMPTY = 3, GENERIC = 4;
+    private int state = UNINITIALIZED;
+    private boolean negated;
+    private Node arg1, arg2;
+    EqualsNode(boolean n, Node a1, Node a2) { negated = n; arg1 = a1; arg2 = a2; }
+
+    JamVal eval(Frame env) {
+      if (arg1 instanceof IntNode && arg2 instanceof IntNode)
+        return BoolConstant.toBoolConstant((((IntNode) arg1).evalInt(env) == ((IntNode) arg2).evalInt(env)) != negated);
+      JamVal a = arg1.eval(env);
+      return BoolConstant.toBoolConstant(equal(a, arg2.eval(env)) != negated);
+    }
+
+    private boolean equal(JamVal a, JamVal b) {
+      switch (state) {
+        case INT:
+          if (a instanceof IntConstant && b instanceof IntConstant)
+            return ((IntConstant) a).value() == ((IntConstant) b).value();
+          break;
+        case BOOL:
+          if (a instanceof BoolConstant && b instanceof BoolConstant) return a == b;
+          break;
+        case EMPTY:
+          if (a == JamEmpty.ONLY || b == JamEmpty.ONLY) return a == b;
+          break;
+        case GENERIC:
+          return a.equals(b);
+        default:
+          state = specialization(a, b);
+          return equal(a, b);
+      }
+      state = GENERIC;
+      return a.equals(b);
+    }
+
+    private static int specialization(JamVal a, JamVal b) {
+      if (a instanceof IntConstant && b instanceof IntConstant) return INT;
+      if (a instanceof BoolConstant && b instanceof BoolConstant) return BOOL;
+      if (a == JamEmpty.ONLY || b == JamEmpty.ONLY) return EMPTY;
+      return GENERIC;
+    }
+  }
+
+  private static class BinOpCompiler implements BinOpVisitor<Node> {
+    private Node arg1, arg2;
+    BinOpCompiler(Node a1, Node a2) { arg1 = a1; arg2 = a2; }
+
+    public Node forBinOpPlus(BinOpPlus op) {
+      return new IntBinOpNode(op, arg1, arg2) {
+        int evalInt(Frame env) { return int1(env) + int2(env); }
+      };
+    }
+    public Node forBinOpMinus(BinOpMinus op) {
+      return new IntBinOpNode(op, arg1, arg2) {
+        int evalInt(Frame env) { return int1(env) - int2(env); }
+      };
+    }
+    public Node forOpTimes(OpTimes op) {
+      return new IntBinOpNode(op, arg1, arg2) {
+        int evalInt(Frame env) { return int1(env) * int2(env); }
+      };
+    }
+    public Node forOpDivide(OpDivide op) {
+      return new IntBinOpNode(op, arg1, arg2) {
+        int evalInt(Frame env) { return int1(env) / int2(env); }
+      };
+    }
+    public Node forOpEquals(OpEquals op) { return new EqualsNode(false, arg1, arg2); }
+    public Node forOpNotEquals(OpNotEquals op) { return new EqualsNode(true, arg1, arg2); }
+    public Node forOpLessThan(OpLessThan op) {
+      return new BinOpNode(op, arg1, arg2) {
+        JamVal eval(Frame env) { return BoolConstant.toBoolConstant(int1(env) < int2(env)); }
+      };
+    }
+    public Node forOpGreaterThan(OpGreaterThan op) {
+      return new BinOpNode(op, arg1, arg2) {
+        JamVal eval(Frame env) { return BoolConstant.toBoolConstant(int1(env) > int2(env)); }
+      };
+    }
+    public Node forOpLessThanEquals(OpLessThanEquals op) {
+      return new BinOpNode(op, arg1, arg2) {
+        JamVal eval(Frame env) { return BoolConstant.toBoolConstant(int1(env) <= int2(env)); }
+      };
+    }
+    public Node forOpGreaterThanEquals(OpGreaterThanEquals op) {
+      return new BinOpNode(op, arg1, arg2) {
+        JamVal eval(Frame env) { return BoolConstant.toBoolConstant(int1(env) >= int2(env)); }
+      };
+    }
+    public Node forOpAnd(OpAnd op) {
+      return new BinOpNode(op, arg1, arg2) {
+        JamVal eval(Frame env) { return (bool1(env) == BoolConstant.FALSE) ? BoolConstant.FALSE : bool2(env); }
+      };
+    }
+    public Node forOpOr(OpOr op) {
+      return new BinOpNode(op, arg1, arg2) {
+        JamVal eval(Frame env) { return (bool1(env) == BoolConstant.TRUE) ? BoolConstant.TRUE : bool2(env); }
+      };
+    }
+  }
+}
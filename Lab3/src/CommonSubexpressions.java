@@ -0,0 +1,138 @@
+/** Common subexpression elimination for Jam programs */
+
+import java.util.LinkedHashMap;
+
+/** Rewriter that binds the subexpressions repeated in a frame body once, with a Let around the body, and replaces
+  * their occurrences by the new variable.  Two occurrences are the same expression if they are structurally identical
+  * once moved to the top of the body (the variables they refer to are the same slots of the same frames), which a
+  * HashConser decides.  Only the expressions that refer to no frame inside the body can be bound at its top; the
+  * largest repeated one is bound first, and the body is searched again until nothing is repeated.
+  *
+  * Jam is pure, but an expression that creates a closure yields a new one each time, and closures are compared by
+  * identity, so only the expressions whose repeated evaluations yield equal values are shared: operator applications
+  * and primitive applications over constants and variables (but not first and rest when cons fields are re-evaluated
+  * by name, since a field may build a new closure each time).  Binding an expression evaluates it when the frame is
+  * built, which under call-by-value might fail or diverge where the program did not, and under call-by-name gains
+  * nothing, so the pass only runs under call-by-need, where the binding is a suspension evaluated at its first use.
+  * Even then a new frame costs more than evaluating a tiny expression again, so only expressions of at least MIN_SIZE
+  * nodes are bound.
+  */
+class CommonSubexpressions extends ASTRewriter {
+
+  /** The smallest expression (in AST nodes) worth binding: a smaller one costs less to evaluate again than the frame
+    * and suspension binding it */
+  static final int MIN_SIZE = 5;
+
+  /** Whether first and rest yield the same value each time */
+  private boolean memoCons;
+  /** The number of variables introduced so far, used to name them */
+  private int count = 0;
+
+  private CommonSubexpressions(boolean mc) { memoCons = mc; }
+
+  /** Returns prog with its repeated subexpressions bound once, where that is safe under ep. */
+  public static AST eliminate(AST prog, Interpreter.EvalPolicy ep) {
+    if (! ep.isNeed()) return prog;
+    CommonSubexpressions cse = new CommonSubexpressions(ep.consPolicy() != Interpreter.ConsEvalPolicyByName.ONLY);
+    return cse.share(cse.rewrite(prog));
+  }
+
+  /** Returns true if every evaluation of exp yields an equal value. */
+  private boolean isShareable(AST exp) {
+    if (exp instanceof Constant || exp instanceof PrimFun || exp instanceof LexicalVariable) return true;
+    if (exp instanceof UnOpApp) return isShareable(((UnOpApp) exp).arg());
+    if (exp instanceof BinOpApp) return isShareable(((BinOpApp) exp).arg1()) && isShareable(((BinOpApp) exp).arg2());
+    if (! (exp instanceof App) || ! (((App) exp).rator() instanceof PrimFun)) return false;
+    PrimFun p = (PrimFun) ((App) exp).rator();
+    if (! memoCons && (p == FirstPrim.ONLY || p == RestPrim.ONLY)) return false;
+    if (p == FuturePrim.ONLY) return false;  // binding a future elsewhere would start it elsewhere
+    for (AST a : ((App) exp).args()) if (! isShareable(a)) return false;
+    return true;
+  }
+
+  /** Returns true if exp is worth binding and can be shared. */
+  private boolean isCandidate(AST exp) {
+    return (exp instanceof UnOpApp || exp instanceof BinOpApp || exp instanceof App) && isShareable(exp) &&
+      Occurrences.size(exp) >= MIN_SIZE;
+  }
+
+  /** Returns body (already rewritten) with its repeated subexpressions bound by Lets at its top. */
+  private AST share(AST body) {
+    while (true) {
+      HashConser store = new HashConser();
+      Counter counter = new Counter(store);
+      counter.rewrite(body);
+      AST best = null;
+      int bestSize = 0;
+      for (java.util.Map.Entry<AST, Integer> e : counter.counts.entrySet()) {
+        if (e.getValue() < 2) continue;
+        int size = Occurrences.size(e.getKey());
+        if (size > bestSize) {
+          best = e.getKey();
+          bestSize = size;
+        }
+      }
+      if (best == null) return body;
+      Variable v = new Variable("cse" + ++count);
+      body = let(new Variable[] { v }, new AST[] { best }, new Replacer(store, best, v).rewrite(body));
+    }
+  }
+
+  /* ASTVisitor methods */
+  public AST forMap(Map m) { return new Map(m.vars(), share(inFrame(m.body()))); }
+  public AST forLet(Let l) { return let(l.vars(), rewriteAll(l.exps()), share(inFrame(l.body()))); }
+  public AST forLetRec(LetRec l) {
+    depth++;
+    try { return letRec(l.vars(), rewriteAll(l.exps()), share(rewrite(l.body()))); }
+    finally { depth--; }
+  }
+
+  /** Returns the canonical form of the subexpression ast of a frame body, moved to the top of the body, or null if
+    * it refers to a frame inside the body (depth is its depth in the body). */
+  private static AST atTop(HashConser store, AST ast, int depth) {
+    if (LetFloater.reach(ast) < depth) return null;
+    return store.intern(Shifter.shift(ast, -depth));
+  }
+
+  /** Visitor that counts the occurrences of the candidate subexpressions of a frame body by their canonical forms */
+  private class Counter extends ASTRewriter {
+    private HashConser store;
+    LinkedHashMap<AST, Integer> counts = new LinkedHashMap<AST, Integer>();
+
+    Counter(HashConser s) { store = s; }
+
+    AST rewrite(AST ast) {
+      if (isCandidate(ast)) {
+        AST canonical = atTop(store, ast, depth);
+        if (canonical != null) {
+          Integer n = counts.get(canonical);
+          counts.put(canonical, (n == null) ? 1 : n + 1);
+        }
+      }
+      return ast.accept(this);
+    }
+  }
+
+  /** Rewriter for a frame body that replaces the occurrences of the expression shared (in canonical form) by the
+    * variable bound in a new frame around the body, moving the other variables that refer outside the body under the
+    * new frame. */
+  private class Replacer extends ASTRewriter {
+    private HashConser store;
+    private AST shared;
+    private Variable var;
+
+    Replacer(HashConser s, AST sh, Variable v) { store = s; shared = sh; var = v; }
+
+    AST rewrite(AST ast) {
+      if (isCandidate(ast) && atTop(store, ast, depth) == shared) return new LexicalVariable(var, depth, 0);
+      return ast.accept(this);
+    }
+
+    public AST forLexicalVariable(LexicalVariable v) {
+      return (v.depth() >= depth) ? new LexicalVariable(v.var(), v.depth() + 1, v.slot()) : v;
+    }
+
+    /** A definition left bound to the shared variable is substituted away. */
+    public AST forLet(Let l) { return Inliner.simplifyLet(l.vars(), rewriteAll(l.exps()), inFrame(l.body())); }
+  }
+}
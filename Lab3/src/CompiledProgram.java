@@ -0,0 +1,82 @@
+/** Jam programs compiled once and run many times */
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A Jam program parsed, context checked and resolved once, which can then be run any number of times, by any number
+  * of threads at once, under any of the nine policies and on any engine.  The optimized form of the program under a
+  * policy is computed the first time the program runs under that policy, and kept.
+  *
+  * The program is immutable: AST nodes are never modified once built, each run builds its own frames, suspensions
+  * and engine state, and the optimized forms are published through a concurrent map.  Two threads running the
+  * program under a new policy at the same time may both optimize it; the passes are deterministic, so either form
+  * can be kept.
+  *
+  * A program compiled with a HashConser store has its resolved and optimized forms interned in it, so that programs
+  * compiled with the same store share the nodes of their common parts (a prelude of library functions, say).
+  */
+class CompiledProgram {
+
+  /** The resolved program */
+  private final AST program;
+  /** Whether the program is optimized before it is run */
+  private final boolean optimizing;
+  /** The store the program's forms are interned in, or null */
+  private final HashConser store;
+  /** The optimized forms of program, by policy */
+  private final ConcurrentHashMap<Interpreter.EvalPolicy, AST> optimized =
+    new ConcurrentHashMap<Interpreter.EvalPolicy, AST>();
+
+  /** Context checks prog and resolves its variable occurrences to lexical addresses; the resolved program is
+    * optimized before it is run if o is set.  Throws a SyntaxException if prog is not well formed. */
+  CompiledProgram(AST prog, boolean o) { this(prog, o, null); }
+
+  /** Context checks prog and resolves its variable occurrences to lexical addresses; the resolved program, and its
+    * optimized forms if o is set, are interned in s unless it is null. */
+  CompiledProgram(AST prog, boolean o, HashConser s) {
+    Interpreter.contextCheck(prog, null);
+    AST resolved = LexicalAddresser.resolve(prog);
+    program = (s == null) ? resolved : s.intern(resolved);
+    optimizing = o;
+    store = s;
+  }
+
+  /** Parses, checks, and resolves the program read from reader, to be optimized before it is run. */
+  static CompiledProgram compile(Reader reader) { return compile(reader, null); }
+
+  /** Parses, checks, and resolves the program read from reader, to be optimized before it is run; its forms are
+    * interned in store unless it is null. */
+  static CompiledProgram compile(Reader reader, HashConser store) {
+    return new CompiledProgram(new Parser(reader).parse(), true, store);
+  }
+
+  /** Parses, checks, and resolves the program text source, to be optimized before it is run. */
+  static CompiledProgram compile(String source) { return compile(new StringReader(source)); }
+
+  /** Parses, checks, and resolves the program text source, to be optimized before it is run; its forms are interned
+    * in store unless it is null. */
+  static CompiledProgram compile(String source, HashConser store) { return compile(new StringReader(source), store); }
+
+  /** Returns the resolved program. */
+  AST program() { return program; }
+
+  /** Returns the program as it is run under ep: resolved, and optimized for ep unless optimizing is off. */
+  AST program(Interpreter.EvalPolicy ep) {
+    if (! optimizing) return program;
+    AST prog = optimized.get(ep);
+    if (prog != null) return prog;
+    prog = Interpreter.optimize(program, ep);
+    if (store != null) prog = store.intern(prog);
+    AST other = optimized.putIfAbsent(ep, prog);
+    return (other != null) ? other : prog;
+  }
+
+  /** Runs the program under ep on the FlexEvalVisitor. */
+  JamVal run(Interpreter.EvalPolicy ep) { return run(Interpreter.VisitorEngine.RECURSIVE, ep); }
+
+  /** Runs the program under ep on engine. */
+  JamVal run(Interpreter.Engine engine, Interpreter.EvalPolicy ep) { return engine.run(program(ep), ep); }
+
+  public String toString() { return program.toString(); }
+}
@@ -0,0 +1,127 @@
+/** Constant folding pass for Jam programs */
+
+/** Visitor that rebuilds a resolved AST with its constant subexpressions evaluated.  Operator applications whose
+  * operands are constants are replaced by their values, ifs with constant tests by the selected branch, and & and | by
+  * their result when the literal operand decides it.  The identities e + 0, 0 + e, e - 0, e * 1, 1 * e, e / 1, + e,
+  * - - e, ~ ~ e, true & e, e & true, false | e, and e | false are reduced to e only when e is an int (respectively
+  * boolean) expression, since otherwise the operator would report a value of the wrong type.  An application that
+  * fails when folded (such as 1 / 0 or 1 + true) is left in place so that the error is still reported at run time.
+  */
+class ConstantFolder implements ASTVisitor<AST> {
+
+  public static final ConstantFolder ONLY = new ConstantFolder();
+  private ConstantFolder() {}
+
+  /** Returns prog with its constant subexpressions folded. */
+  public static AST fold(AST prog) { return prog.accept(ONLY); }
+
+  private AST[] foldAll(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  /** Returns true if ast always yields an int (or fails). */
+  static boolean isIntExp(AST ast) {
+    if (ast instanceof IntConstant) return true;
+    if (ast instanceof UnOpApp) return ((UnOpApp) ast).rator() != OpNot.ONLY;
+    if (ast instanceof BinOpApp) {
+      BinOp op = ((BinOpApp) ast).rator();
+      return op == BinOpPlus.ONLY || op == BinOpMinus.ONLY || op == OpTimes.ONLY || op == OpDivide.ONLY;
+    }
+    return false;
+  }
+
+  /** Returns true if ast always yields a boolean (or fails). */
+  static boolean isBoolExp(AST ast) {
+    if (ast instanceof BoolConstant) return true;
+    if (ast instanceof UnOpApp) return ((UnOpApp) ast).rator() == OpNot.ONLY;
+    return ast instanceof BinOpApp && ! isIntExp(ast);
+  }
+
+  private static boolean isInt(AST ast, int i) { return ast instanceof IntConstant && ((IntConstant) ast).value() == i; }
+
+  /** Returns the value of the closed operator application ast as an AST, or ast itself if evaluating it fails. */
+  private static AST evaluate(AST ast) {
+    try { return (AST) Interpreter.VisitorEngine.RECURSIVE.run(ast, Interpreter.CallByValueValue.ONLY); }
+    catch (EvalException e) { return ast; }
+    catch (ArithmeticException e) { return ast; }
+  }
+
+  /* ASTVisitor methods */
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forNullConstant(NullConstant n) { return n; }
+  public AST forPrimFun(PrimFun f) { return f; }
+  public AST forVariable(Variable v) { return v; }
+  public AST forLexicalVariable(LexicalVariable v) { return v; }
+
+  public AST forUnOpApp(UnOpApp u) {
+    UnOp op = u.rator();
+    AST arg = u.arg().accept(this);
+    if (arg instanceof IntConstant || arg instanceof BoolConstant) return evaluate(new UnOpApp(op, arg));
+    if (op == UnOpPlus.ONLY && isIntExp(arg)) return arg;
+    if (arg instanceof UnOpApp && ((UnOpApp) arg).rator() == op) {
+      AST inner = ((UnOpApp) arg).arg();
+      if ((op == UnOpMinus.ONLY && isIntExp(inner)) || (op == OpNot.ONLY && isBoolExp(inner))) return inner;
+    }
+    return new UnOpApp(op, arg);
+  }
+
+  public AST forBinOpApp(BinOpApp b) {
+    BinOp op = b.rator();
+    AST arg1 = b.arg1().accept(this);
+    AST arg2 = b.arg2().accept(this);
+    if (op == OpAnd.ONLY) {
+      if (arg1 == BoolConstant.FALSE) return arg1;
+      if ((arg1 == BoolConstant.TRUE && isBoolExp(arg2)) || (arg2 == BoolConstant.TRUE && isBoolExp(arg1)))
+        return (arg1 == BoolConstant.TRUE) ? arg2 : arg1;
+    }
+    else if (op == OpOr.ONLY) {
+      if (arg1 == BoolConstant.TRUE) return arg1;
+      if ((arg1 == BoolConstant.FALSE && isBoolExp(arg2)) || (arg2 == BoolConstant.FALSE && isBoolExp(arg1)))
+        return (arg1 == BoolConstant.FALSE) ? arg2 : arg1;
+    }
+    if (arg1 instanceof Constant && arg2 instanceof Constant) return evaluate(new BinOpApp(op, arg1, arg2));
+    if (op == BinOpPlus.ONLY) {
+      if (isInt(arg2, 0) && isIntExp(arg1)) return arg1;
+      if (isInt(arg1, 0) && isIntExp(arg2)) return arg2;
+    }
+    else if (op == OpTimes.ONLY) {
+      if (isInt(arg2, 1) && isIntExp(arg1)) return arg1;
+      if (isInt(arg1, 1) && isIntExp(arg2)) return arg2;
+    }
+    else if ((op == BinOpMinus.ONLY && isInt(arg2, 0)) || (op == OpDivide.ONLY && isInt(arg2, 1))) {
+      if (isIntExp(arg1)) return arg1;
+    }
+    return new BinOpApp(op, arg1, arg2);
+  }
+
+  public AST forApp(App a) { return new App(a.rator().accept(this), foldAll(a.args())); }
+
+  public AST forMap(Map m) { return new Map(m.vars(), m.body().accept(this)); }
+
+  public AST forIf(If i) {
+    AST test = i.test().accept(this);
+    if (test == BoolConstant.TRUE) return i.conseq().accept(this);
+    if (test == BoolConstant.FALSE) return i.alt().accept(this);
+    return new If(test, i.conseq().accept(this), i.alt().accept(this));
+  }
+
+  public AST forLet(Let l) {
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(this));
+    return new Let(newDefs, l.body().accept(this));
+  }
+
+  public AST forLetRec(LetRec l) {
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(this));
+    return new LetRec(newDefs, l.body().accept(this));
+  }
+}
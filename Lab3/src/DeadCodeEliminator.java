@@ -0,0 +1,119 @@
+/** Dead binding elimination for Jam programs */
+
+/** Rewriter that removes the Let definitions whose variables are never referenced, and marks the Map parameters that
+  * are never referenced as unused.  Since let is not recursive, a definition can only be referenced by the Let body,
+  * never by its sibling definitions.  Under call-by-name and call-by-need a definition is suspended, so a dead one can
+  * always be dropped; under call-by-value its rhs is evaluated when the frame is built, so a dead one is only dropped if
+  * that evaluation cannot fail or diverge (see isPure).  The body is rewritten first, so a definition used only by dead
+  * ones is dropped too.  A variable is pure under call-by-value unless the program mentions future, whose slots hold
+  * suspensions under every policy: reading one can fail or diverge.
+  *
+  * An argument bound to an unused parameter is only evaluated under call-by-value, where the evaluation must still
+  * happen at each application of the closure; under the lazy policies, the engines that honor the unused marks leave
+  * its slot empty instead of building a suspension nobody forces.  Like the strict marks, the unused marks are dropped
+  * when another pass rewrites the AST, so this pass runs after the passes that rewrite and before StrictnessAnalyzer.
+  */
+class DeadCodeEliminator extends ASTRewriter {
+
+  /** Whether the slots of frames hold values */
+  private boolean strict;
+  /** Whether cons suspends its arguments */
+  private boolean lazyCons;
+  /** Whether slots may be bound to futures */
+  private boolean futures;
+
+  private DeadCodeEliminator(boolean s, boolean lc, boolean f) { strict = s; lazyCons = lc; futures = f; }
+
+  /** Returns prog without the dead bindings that can be removed under ep, and with its unused parameters marked. */
+  public static AST eliminate(AST prog, Interpreter.EvalPolicy ep) {
+    return prog.accept(new DeadCodeEliminator(ep.isStrict(), ep.consPolicy() != Interpreter.ConsEvalPolicyByValue.ONLY,
+                                              Futures.mentions(prog)));
+  }
+
+  /** Returns true if evaluating exp in a frame whose slots hold values cannot fail or diverge. */
+  private boolean isPure(AST exp) {
+    if (exp instanceof Constant || exp instanceof PrimFun || exp instanceof Map) return true;
+    if (exp instanceof LexicalVariable) return ! futures;
+    if (! (exp instanceof App)) return false;
+    App a = (App) exp;
+    /* a lazy cons suspends its arguments */
+    return a.rator() == ConsPrim.ONLY && a.args().length == 2 && lazyCons;
+  }
+
+  /* ASTVisitor methods */
+
+  public AST forMap(Map m) {
+    AST body = inFrame(m.body());
+    if (strict) return new Map(m.vars(), body);
+    int n = m.vars().length;
+    Occurrences occ = Occurrences.of(body, n);
+    boolean[] unused = new boolean[n];
+    boolean any = false;
+    for (int i = 0; i < n; i++) if (occ.counts[i] == 0) unused[i] = any = true;
+    return new Map(m.vars(), body, null, any ? unused : null);
+  }
+
+  public AST forLet(Let l) {
+    AST[] exps = rewriteAll(l.exps());
+    AST body = inFrame(l.body());
+    int n = exps.length;
+    Occurrences occ = Occurrences.of(body, n);
+    /* a removed slot is never referenced, so its replacement is never substituted */
+    AST[] removed = new AST[n];
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      if (occ.counts[i] == 0 && (! strict || isPure(exps[i]))) removed[i] = exps[i];
+      else kept++;
+    }
+    if (kept == n) return let(l.vars(), exps, body);
+    Variable[] keptVars = new Variable[kept];
+    AST[] keptExps = new AST[kept];
+    for (int i = 0, j = 0; i < n; i++) {
+      if (removed[i] != null) continue;
+      keptVars[j] = l.vars()[i];
+      keptExps[j++] = exps[i];
+    }
+    body = Substituter.substitute(body, removed);
+    return (kept == 0) ? body : let(keptVars, keptExps, body);
+  }
+
+  /** A LetRec definition is dead if the body does not reach it, directly or through the rhs's of the live ones; its
+    * rhs is a Map, so it can be dropped under any policy. */
+  public AST forLetRec(LetRec l) {
+    AST[] exps;
+    AST body;
+    depth++;
+    try {
+      exps = rewriteAll(l.exps());
+      body = rewrite(l.body());
+    }
+    finally { depth--; }
+    int n = exps.length;
+    boolean[] live = new boolean[n];
+    int[] pending = new int[n];
+    int top = 0;
+    Occurrences occ = Occurrences.of(body, n);
+    for (int i = 0; i < n; i++) if (occ.counts[i] > 0) live[pending[top++] = i] = true;
+    while (top > 0) {
+      Occurrences uses = Occurrences.of(exps[pending[--top]], n);
+      for (int i = 0; i < n; i++) if (uses.counts[i] > 0 && ! live[i]) live[pending[top++] = i] = true;
+    }
+    /* a removed slot is never referenced by the live code, so its replacement is never substituted */
+    AST[] removed = new AST[n];
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      if (live[i]) kept++;
+      else removed[i] = exps[i];
+    }
+    if (kept == n) return letRec(l.vars(), exps, body);
+    Variable[] keptVars = new Variable[kept];
+    AST[] keptExps = new AST[kept];
+    for (int i = 0, j = 0; i < n; i++) {
+      if (! live[i]) continue;
+      keptVars[j] = l.vars()[i];
+      keptExps[j++] = Substituter.substitute(exps[i], removed);
+    }
+    body = Substituter.substitute(body, removed);
+    return (kept == 0) ? body : letRec(keptVars, keptExps, body);
+  }
+}
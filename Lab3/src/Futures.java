@@ -0,0 +1,70 @@
+/** Explicit futures for Jam */
+
+import java.util.concurrent.ForkJoinPool;
+
+/** Support for future(e), which evaluates e in parallel with the code that binds it.  Where future(e) is written in
+  * place as the right hand side of a let or as an argument of a closure application, its slot is bound, whatever the
+  * policy, to a NeedSuspension of future(e) whose evaluation is started at once as a task of the pool.  The slot is
+  * the placeholder: reading the variable forces it, as it forces any suspended slot, so the operators, if tests and
+  * primitives only ever see the value of e.  The reader waits for the task if it is running, and evaluates e itself
+  * if the task has not started yet; touch(x) reads x explicitly and returns its value.  Elsewhere, future(e) is the
+  * value of e, computed in place.
+  *
+  * Jam evaluation has no effects, so a program computes the same values with or without futures; only errors and
+  * divergence move.  The error raised by e is raised where (and each time) the future is touched, and a future that
+  * is never touched is never waited for: its failure or divergence goes unobserved.  This holds under call-by-value
+  * too: a future bound to a variable that is never read no longer raises its error when the frame is built, as e
+  * written without future would, so under call-by-value the failures of futures that are never touched are silently
+  * ignored.
+  *
+  * Since its slot holds a suspension even under call-by-value, reading a variable that may be bound to a future can
+  * fail or diverge under every policy.  The optimizing passes that drop or move variable reads because slots hold
+  * values (DeadCodeEliminator, Inliner) therefore keep them in programs that mention future (see mentions).
+  */
+class Futures {
+
+  /** The pool running the futures */
+  static final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  /** Returns true if exp is an application future(e) written in place, which binds a future. */
+  static boolean isFuture(AST exp) {
+    if (! (exp instanceof App)) return false;
+    App a = (App) exp;
+    return a.rator() == FuturePrim.ONLY && a.args().length == 1;
+  }
+
+  /** Returns true if prog mentions the future primitive, so that its variables may be bound to futures. */
+  static boolean mentions(AST prog) { return prog.accept(Mentions.ONLY); }
+
+  /** Starts the evaluation of s in the pool and returns s.  The failure of the task is remembered by s, which raises
+    * it again when it is touched. */
+  static <S extends Interpreter.NeedSuspension> S start(final S s) {
+    pool.execute(new Runnable() { public void run() { s.speculate(); } });
+    return s;
+  }
+
+  /** Visitor that computes mentions */
+  private static class Mentions implements ASTVisitor<Boolean> {
+    static final Mentions ONLY = new Mentions();
+    private Mentions() {}
+
+    private Boolean any(AST... asts) {
+      for (AST a : asts) if (a.accept(this)) return true;
+      return false;
+    }
+
+    public Boolean forBoolConstant(BoolConstant b) { return false; }
+    public Boolean forIntConstant(IntConstant i) { return false; }
+    public Boolean forNullConstant(NullConstant n) { return false; }
+    public Boolean forPrimFun(PrimFun f) { return f == FuturePrim.ONLY; }
+    public Boolean forVariable(Variable v) { return false; }
+    public Boolean forLexicalVariable(LexicalVariable v) { return false; }
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Boolean forBinOpApp(BinOpApp b) { return any(b.arg1(), b.arg2()); }
+    public Boolean forApp(App a) { return a.rator().accept(this) || any(a.args()); }
+    public Boolean forMap(Map m) { return m.body().accept(this); }
+    public Boolean forIf(If i) { return any(i.test(), i.conseq(), i.alt()); }
+    public Boolean forLet(Let l) { return any(l.exps()) || l.body().accept(this); }
+    public Boolean forLetRec(LetRec l) { return any(l.exps()) || l.body().accept(this); }
+  }
+}
@@ -0,0 +1,107 @@
+/** Hash-consing of Jam ASTs */
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Store of canonical AST nodes: intern returns, for any AST, the structurally identical AST kept in the store, adding
+  * it (with its subtrees interned) the first time it is seen.  Interned subtrees are shared, so ASTs interned in the
+  * same store can be compared for structural identity with ==, and programs built from common parts (a prelude of
+  * library functions, say) hold one copy of those parts.  AST nodes are immutable, so sharing them is safe.
+  *
+  * The store is meant for resolved programs: LexicalVariables and the variables bound by Maps and Lets are compared
+  * by name, while unresolved Variables are compared by identity, since the context checker identifies them that way.
+  * The strict and unused marks of Maps and Lets are part of their structure.  A store can be shared by several threads
+  * (ProgramCache interns all the programs it compiles in one store).
+  */
+class HashConser extends ASTRewriter {
+
+  private HashMap<Shape, AST> table = new HashMap<Shape, AST>();
+
+  /** Returns the canonical AST structurally identical to ast. */
+  synchronized AST intern(AST ast) { return rewrite(ast); }
+
+  /** Returns the number of distinct nodes in the store. */
+  synchronized int size() { return table.size(); }
+
+  AST rewrite(AST ast) {
+    AST copy = ast.accept(this);  // with its children interned
+    Shape s = new Shape(copy.accept(ShapeOf.ONLY));
+    AST canonical = table.get(s);
+    if (canonical != null) return canonical;
+    table.put(s, copy);
+    return copy;
+  }
+
+  /* ASTVisitor methods; the default ones drop the marks */
+  public AST forMap(Map m) { return new Map(m.vars(), inFrame(m.body()), m.strict(), m.unused()); }
+  public AST forLet(Let l) {
+    AST[] exps = rewriteAll(l.exps());
+    Def[] defs = new Def[exps.length];
+    for (int i = 0; i < defs.length; i++) defs[i] = new Def(l.vars()[i], exps[i]);
+    return new Let(defs, inFrame(l.body()), l.strict());
+  }
+
+  /** The key of a node: its components, where children (already interned) are compared by identity and the other
+    * components with equals. */
+  private static class Shape {
+    private Object[] parts;
+    private int hash = 0;
+
+    Shape(Object[] p) {
+      parts = p;
+      for (Object o : p) hash = 31 * hash + ((o instanceof AST) ? System.identityHashCode(o) : o.hashCode());
+    }
+
+    public int hashCode() { return hash; }
+
+    public boolean equals(Object other) {
+      if (! (other instanceof Shape)) return false;
+      Object[] ps = ((Shape) other).parts;
+      if (ps.length != parts.length) return false;
+      for (int i = 0; i < ps.length; i++) {
+        if (parts[i] instanceof AST ? parts[i] != ps[i] : ! parts[i].equals(ps[i])) return false;
+      }
+      return true;
+    }
+  }
+
+  /** Visitor that returns the components of a node for its Shape */
+  private static class ShapeOf implements ASTVisitor<Object[]> {
+    static final ShapeOf ONLY = new ShapeOf();
+    private ShapeOf() {}
+
+    private static Object[] binder(String kind, Variable[] vars, AST[] exps, AST body, boolean[]... marks) {
+      Object[] parts = new Object[3 + 2 * vars.length + marks.length];
+      int k = 0;
+      parts[k++] = kind;
+      parts[k++] = vars.length;
+      for (Variable v : vars) parts[k++] = v.name();
+      for (AST e : exps) parts[k++] = e;
+      for (boolean[] m : marks) parts[k++] = Arrays.toString(m);
+      parts[k++] = body;
+      return Arrays.copyOf(parts, k);
+    }
+
+    public Object[] forBoolConstant(BoolConstant b) { return new Object[] { b }; }
+    public Object[] forIntConstant(IntConstant i) { return new Object[] { "int", i.value() }; }
+    public Object[] forNullConstant(NullConstant n) { return new Object[] { n }; }
+    public Object[] forPrimFun(PrimFun f) { return new Object[] { f }; }
+    public Object[] forVariable(Variable v) { return new Object[] { v }; }
+    public Object[] forLexicalVariable(LexicalVariable v) {
+      return new Object[] { "var", v.var().name(), v.depth(), v.slot() };
+    }
+    public Object[] forUnOpApp(UnOpApp u) { return new Object[] { u.rator(), u.arg() }; }
+    public Object[] forBinOpApp(BinOpApp b) { return new Object[] { b.rator(), b.arg1(), b.arg2() }; }
+    public Object[] forApp(App a) {
+      Object[] parts = new Object[a.args().length + 2];
+      parts[0] = "app";
+      parts[1] = a.rator();
+      System.arraycopy(a.args(), 0, parts, 2, a.args().length);
+      return parts;
+    }
+    public Object[] forMap(Map m) { return binder("map", m.vars(), new AST[0], m.body(), m.strict(), m.unused()); }
+    public Object[] forIf(If i) { return new Object[] { "if", i.test(), i.conseq(), i.alt() }; }
+    public Object[] forLet(Let l) { return binder("let", l.vars(), l.exps(), l.body(), l.strict()); }
+    public Object[] forLetRec(LetRec l) { return binder("letrec", l.vars(), l.exps(), l.body()); }
+  }
+}
@@ -0,0 +1,124 @@
+/** Inlining pass for Jam programs */
+
+/** Rewriter that beta-reduces applications of small Maps.  An application of a Map to the right number of arguments,
+  * either immediately ((map x to e)(a)) or through a variable bound by a Let to a Map of at most MAX_SIZE nodes,
+  * becomes a Let binding the parameters to the arguments in the Map body.  Let binds its right hand sides exactly as an
+  * application binds its arguments (last first, each slot built by the policy), so the rewrite is valid under every
+  * policy, and no argument is duplicated.  Since let is not recursive, a Map bound by a Let cannot refer to itself.
+  * A Map whose body holds unresolved Variables (free in the program) is never inlined, so that they stay unbound.
+  *
+  * Bindings left trivial are then eliminated: a variable bound to a constant, a primitive, or another (resolved)
+  * variable is replaced by that term, which yields the same value whether the slot holds it or a suspension of it,
+  * and a Map binding that is no longer used is dropped, since evaluating a Map has no effect.  In a program that
+  * mentions future, a variable may be bound to a future, whose slot holds a suspension even under call-by-value, so
+  * a variable bound to another one is kept: the read that binds it can fail or diverge.
+  */
+class Inliner extends ASTRewriter {
+
+  /** The largest Map body (in AST nodes) copied to the applications of its variable */
+  static final int MAX_SIZE = 40;
+
+  /** For each enclosing frame, innermost first, the small Maps bound to its slots (null for other slots) */
+  private PureList<Map[]> scope = new Empty<Map[]>();
+  /** Whether slots may be bound to futures */
+  private final boolean futures;
+
+  private Inliner(boolean f) { futures = f; }
+
+  /** Returns prog with its small Map applications inlined. */
+  public static AST inline(AST prog) { return prog.accept(new Inliner(Futures.mentions(prog))); }
+
+  /** Returns the Map known to be bound to v, or null. */
+  private Map known(LexicalVariable v) {
+    PureList<Map[]> s = scope;
+    for (int i = v.depth(); i > 0 && s instanceof Cons; i--) s = ((Cons<Map[]>) s).rest();
+    if (! (s instanceof Cons)) return null;
+    Map[] frame = ((Cons<Map[]>) s).first();
+    return (v.slot() < frame.length) ? frame[v.slot()] : null;
+  }
+
+  /** Rewrites body, which runs in a frame binding the Maps in known. */
+  private AST inFrame(AST body, Map[] known) {
+    PureList<Map[]> saved = scope;
+    scope = scope.cons(known);
+    try { return inFrame(body); }
+    finally { scope = saved; }
+  }
+
+  /** Returns true if the value of the binding exp is the same whether its slot holds it or a suspension of it, and
+    * evaluating it has no effect; variables only count if they cannot be bound to futures. */
+  static boolean isTrivial(AST exp, boolean futures) {
+    return exp instanceof Constant || exp instanceof PrimFun || (exp instanceof LexicalVariable && ! futures);
+  }
+
+  /** Returns the Let binding vars to exps in body (already rewritten), less its trivial and unused Map bindings, for
+    * the passes that only run under call-by-need, where reading a variable bound to a future is itself suspended. */
+  static AST simplifyLet(Variable[] vars, AST[] exps, AST body) { return simplifyLet(vars, exps, body, false); }
+
+  /** Returns the Let binding vars to exps in body (already rewritten), less its trivial and unused Map bindings; its
+    * variable bindings are kept if futures is set. */
+  static AST simplifyLet(Variable[] vars, AST[] exps, AST body, boolean futures) {
+    int n = vars.length;
+    Occurrences occ = Occurrences.of(body, n);
+    AST[] replacements = new AST[n];
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      if (isTrivial(exps[i], futures) || (exps[i] instanceof Map && occ.counts[i] == 0)) replacements[i] = exps[i];
+      else kept++;
+    }
+    if (kept == n) return let(vars, exps, body);
+    Variable[] keptVars = new Variable[kept];
+    AST[] keptExps = new AST[kept];
+    for (int i = 0, j = 0; i < n; i++) {
+      if (replacements[i] != null) continue;
+      keptVars[j] = vars[i];
+      keptExps[j++] = exps[i];
+    }
+    body = Substituter.substitute(body, replacements);
+    return (kept == 0) ? body : let(keptVars, keptExps, body);
+  }
+
+  /* ASTVisitor methods */
+
+  public AST forApp(App a) {
+    AST rator = rewrite(a.rator());
+    AST[] args = rewriteAll(a.args());
+    if (rator instanceof Map && ((Map) rator).vars().length == args.length && ! Occurrences.unresolved(rator)) {
+      Map m = (Map) rator;
+      return simplifyLet(m.vars(), args, m.body(), futures);
+    }
+    if (rator instanceof LexicalVariable) {
+      LexicalVariable v = (LexicalVariable) rator;
+      Map m = known(v);
+      /* the Map runs in the scope enclosing the Let frame at depth v.depth() */
+      if (m != null && m.vars().length == args.length)
+        return simplifyLet(m.vars(), args, Shifter.shift(m.body(), v.depth() + 1, 1), futures);
+    }
+    return new App(rator, args);
+  }
+
+  public AST forMap(Map m) { return new Map(m.vars(), inFrame(m.body(), new Map[0])); }
+
+  /** The Maps bound by a LetRec may be recursive, so they are not inlined. */
+  public AST forLetRec(LetRec l) {
+    PureList<Map[]> saved = scope;
+    scope = scope.cons(new Map[l.vars().length]);
+    depth++;
+    try { return letRec(l.vars(), rewriteAll(l.exps()), rewrite(l.body())); }
+    finally {
+      depth--;
+      scope = saved;
+    }
+  }
+
+  public AST forLet(Let l) {
+    AST[] exps = rewriteAll(l.exps());
+    Map[] known = new Map[exps.length];
+    for (int i = 0; i < exps.length; i++)
+      if (exps[i] instanceof Map) {
+        Occurrences occ = Occurrences.of(((Map) exps[i]).body(), 0);
+        if (occ.size <= MAX_SIZE && ! occ.unresolved) known[i] = (Map) exps[i];
+      }
+    return simplifyLet(l.vars(), exps, inFrame(l.body(), known), futures);
+  }
+}
@@ -11,9 +11,12 @@ import java.util.List;
 /** A visitor interface for interpreting Jam AST's */
 interface EvalVisitor extends ASTVisitor<JamVal> {
   /** Constructs a new visitor of same class with specified environment e. */
-  EvalVisitor newVisitor(PureList<Binding> e);
-  PureList<Binding> env();
-  Binding newBinding(Variable var, AST ast);
+  EvalVisitor newVisitor(Frame e);
+  Frame env();
+  /** Constructs the contents of a Frame slot bound to ast (a JamVal or a Suspension). */
+  Object newSlot(AST ast);
+  /** Constructs the cons of f and r according to the embedded cons policy. */
+  JamCons newCons(AST f, AST r);
 }
 
 /** A class that implements call-by-value, call-by-name, and call-by-need interpretation of Jam programs. */
@@ -21,6 +24,9 @@ class Interpreter {
   
   Parser parser = null;
   
+  /** The engine used to run checked and resolved programs. */
+  Engine engine = VisitorEngine.RECURSIVE;
+  
   /** Constructor for a program given in a file. */
   Interpreter(String fileName) throws IOException { parser = new Parser(fileName); }
   
@@ -30,8 +36,25 @@ class Interpreter {
   /** Constructor for a program embedded in a Reader. */
   Interpreter(Reader reader) { parser = new Parser(reader); }
   
+  /** Selects the engine used by the top-level evaluation methods. */
+  void setEngine(Engine e) { engine = e; }
+  
+  /** Whether resolved programs are optimized before they are run */
+  boolean optimizing = true;
+  
+  /** Turns the optimization passes run before evaluation on or off. */
+  void setOptimizing(boolean b) { optimizing = b; }
+  
+  /** Returns the resolved program prog rewritten by the optimization passes, which preserve its meaning under ep. */
+  static AST optimize(AST prog, EvalPolicy ep) {
+    AST inlined = Inliner.inline(YCombinatorEliminator.eliminate(prog, ep));
+    AST folded = LetFloater.floatOut(ConstantFolder.fold(inlined), ep);
+    AST shared = CommonSubexpressions.eliminate(folded, ep);
+    return StrictnessAnalyzer.analyze(DeadCodeEliminator.eliminate(shared, ep), ep);
+  }
+  
   /** Class representing a context used for context sensitive checking */
-  class Context {
+  static class Context {
 	  HashSet<Variable> encounteredVars;
 	  HashSet<Variable> currentVars;
 	  Context() {
@@ -63,7 +86,7 @@ class Interpreter {
   }
   
   /** Traverses the AST tree for free variables or repeated variables in map or let */
-  public void contextCheck(AST prog, Context cIn) throws SyntaxException {
+  public static void contextCheck(AST prog, Context cIn) throws SyntaxException {
 	  Context context;
 	  if (cIn == null) {
 		  context = new Context();
@@ -114,6 +137,11 @@ class Interpreter {
 					}
 				}
 		
+				@Override
+				public AST[] forLexicalVariable(LexicalVariable v) {
+					return forVariable(v.var());
+				}
+		
 				@Override
 				public AST[] forPrimFun(PrimFun f) {
 					AST[] visRes = new AST[1];
@@ -177,6 +205,21 @@ class Interpreter {
 					visRes[i] = l.body();
 					return visRes;
 				}
+		
+				@Override
+				public AST[] forLetRec(LetRec l) {
+					int i;
+					AST[] visRes = new AST[l.defs().length + 1];
+					for (i = 0; i < l.defs().length; i++) {
+						if (!context.add(l.defs()[i].lhs())) {
+							throw new SyntaxException(l.defs()[i].lhs() + " is repeated in letrec");
+						}
+						visRes[i] = l.defs()[i].rhs();
+					}
+					context.flush();
+					visRes[i] = l.body();
+					return visRes;
+				}
 				  
 			  })));
 		  }
@@ -184,127 +227,108 @@ class Interpreter {
 	  return;
   }
   
+  /** Context checks prog, resolves its variable occurrences to lexical addresses, optimizes it unless optimizing is
+    * off, and runs it under policy ep. */
+  private JamVal eval(AST prog, EvalPolicy ep) { return new CompiledProgram(prog, optimizing).run(engine, ep); }
+  
+  /** Parses, context checks and resolves the input embedded in parser into a program that can be run many times,
+    * concurrently, under any policy. */
+  public CompiledProgram compile() { return new CompiledProgram(parser.parse(), optimizing); }
+  
   /* Top-level Value Cons Eval */
   
   /** Parses and CBV interprets the input embeded in parser */
   public JamVal valueValue() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(valueValueEvalVisitor);
+    return eval(parser.parse(), CallByValueValue.ONLY);
   }
   
   /** Parses and CBNm interprets the input embeded in parser */
   public JamVal nameValue() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(nameValueEvalVisitor);
+    return eval(parser.parse(), CallByNameValue.ONLY);
   }
   
   /** Parses and CBNd interprets the input embeded in parser */
   public JamVal needValue() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(needValueEvalVisitor);
+    return eval(parser.parse(), CallByNeedValue.ONLY);
   }
  
   /** CBV Interprets prog with respect to symbols in lexer */
   public JamVal valueValue(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(valueValueEvalVisitor);
+    return eval(prog, CallByValueValue.ONLY);
   }
   
   /** CBName Interprets prog with respect to symbols in lexer */
   public JamVal nameValue(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(nameValueEvalVisitor); 
+    return eval(prog, CallByNameValue.ONLY);
   }
   
   /** CBNeed Interprets prog with respect to symbols in lexer */
   public JamVal needValue(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(needValueEvalVisitor);
+    return eval(prog, CallByNeedValue.ONLY);
   }
   
   /* Top-level Name Cons Eval */
   
   /** Parses and CBV interprets the input embeded in parser */
   public JamVal valueName() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(valueNameEvalVisitor);
+    return eval(parser.parse(), CallByValueName.ONLY);
   }
   
   /** Parses and CBNm interprets the input embeded in parser */
   public JamVal nameName() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(nameNameEvalVisitor);
+    return eval(parser.parse(), CallByNameName.ONLY);
   }
   
   /** Parses and CBNd interprets the input embeded in parser */
   public JamVal needName() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(needNameEvalVisitor);
+    return eval(parser.parse(), CallByNeedName.ONLY);
   }
  
   /** CBV Interprets prog with respect to symbols in lexer */
   public JamVal valueName(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(valueNameEvalVisitor);
+    return eval(prog, CallByValueName.ONLY);
   }
   
   /** CBName Interprets prog with respect to symbols in lexer */
   public JamVal nameName(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(nameNameEvalVisitor); 
+    return eval(prog, CallByNameName.ONLY);
   }
   
   /** CBNeed Interprets prog with respect to symbols in lexer */
   public JamVal needName(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(needNameEvalVisitor);
+    return eval(prog, CallByNeedName.ONLY);
   }
   
   /* Top-level Need Cons Eval */
   
   /** Parses and CBV interprets the input embeded in parser */
   public JamVal valueNeed() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(valueNeedEvalVisitor);
+    return eval(parser.parse(), CallByValueNeed.ONLY);
   }
   
   /** Parses and CBNm interprets the input embeded in parser */
   public JamVal nameNeed() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(nameNeedEvalVisitor);
+    return eval(parser.parse(), CallByNameNeed.ONLY);
   }
   
   /** Parses and CBNd interprets the input embeded in parser */
   public JamVal needNeed() {
-    AST prog = parser.parse();
-    contextCheck(prog, null);
-    return prog.accept(needNeedEvalVisitor);
+    return eval(parser.parse(), CallByNeedNeed.ONLY);
   }
  
   /** CBV Interprets prog with respect to symbols in lexer */
   public JamVal valueNeed(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(valueNeedEvalVisitor);
+    return eval(prog, CallByValueNeed.ONLY);
   }
   
   /** CBName Interprets prog with respect to symbols in lexer */
   public JamVal nameNeed(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(nameNeedEvalVisitor); 
+    return eval(prog, CallByNameNeed.ONLY);
   }
   
   /** CBNeed Interprets prog with respect to symbols in lexer */
   public JamVal needNeed(AST prog) {
-	  contextCheck(prog, null);
-	  return prog.accept(needNeedEvalVisitor);
+    return eval(prog, CallByNeedNeed.ONLY);
   }
   
   /** A class representing an unevaluated expresssion (together with the corresponding evaluator). */
@@ -318,62 +342,141 @@ class Interpreter {
     public EvalVisitor ev() { return ev; }
     public void putEv(EvalVisitor e) { ev = e; }
     
+    /** Drops the references to exp and ev once they are no longer needed. */
+    void release() { exp = null; ev = null; }
+    
     /** Evaluates this suspension. */
     JamVal eval() { 
       // System.err.println("eval() called on the susp with AST = " + exp);
-      return exp.accept(ev);  } 
+      return compute();  } 
+    
+    /** Computes the value of exp; overridden by suspensions that hold a translated form of exp. */
+    JamVal compute() { return exp.accept(ev); }
     
     public String toString() { return "<" + exp + ", " + ev + ">"; }
   }
   
-  /** Class representing a binding in CBV evaluation. */
-  static class ValueBinding extends Binding {
-    ValueBinding(Variable v, JamVal jv) { super(v, jv); }
-    public JamVal value() { return value; }
-    public String toString() { return "[" + var + ", " + value + "]"; }
-  }
-  
-  /** Class representing a binding in CBNm evaluation. */
-  static class NameBinding extends Binding {
-    protected Suspension susp;
-    NameBinding(Variable v, Suspension s) { 
-      super(v,null);
-      susp = s;
+  /** A Suspension that remembers its value after the first evaluation; used for CBNd slots.  Forcing follows a
+    * state machine, so a NeedSuspension can be shared by several threads: it is UNEVALUATED until some thread claims
+    * it, EVALUATING (black-holed) while that thread computes its value, then EVALUATED or FAILED.  A thread that forces
+    * it while another one is evaluating it waits for the outcome instead of computing it again; the evaluating thread
+    * forcing it again means its value depends on itself, which is reported as an EvalException instead of recursing
+    * until the stack overflows.  A failed evaluation throws the same exception at every later force, as recomputing
+    * it would (an Error, such as a stack overflow, depends on where the force happens, so it returns the suspension
+    * to UNEVALUATED instead).
+    *
+    * A speculative evaluation (see SparkEngine) never waits and is never waited for: a spark thread that meets a
+    * suspension claimed by another thread gives up, a thread that forces a suspension claimed by a spark takes it
+    * over and computes it itself (the first value reported is kept, and is the one every force returns, so a
+    * closure-valued suspension yields the same closure to all), and the failure of a spark is discarded by
+    * returning the suspension to UNEVALUATED. */
+  static class NeedSuspension extends Suspension {
+    private static final int UNEVALUATED = 0, EVALUATING = 1, EVALUATED = 2, FAILED = 3;
+    
+    /** The state; value and failure are written before it, so a thread that reads EVALUATED sees the value */
+    private volatile int state = UNEVALUATED;
+    private JamVal value = null;
+    private RuntimeException failure = null;
+    /** The thread computing the value while EVALUATING */
+    private Thread owner = null;
+    
+    NeedSuspension(AST a, EvalVisitor e) { super(a, e); }
+    
+    JamVal eval() {
+      if (state == EVALUATED) return value;
+      if (! claim()) return value;
+      JamVal v;
+      try { v = compute(); }
+      catch (RuntimeException e) {
+        abandon(e);
+        throw e;
+      }
+      catch (Error e) {
+        abandon(e);
+        throw e;
+      }
+      return setValue(v);
     }
-    public JamVal value() { return susp.eval(); }
-    public String toString() { return "[" + var + ", " + susp + "]"; }
-  }
-  
-  /** Class representing a binding in CBNd evaluation. */
-  static class NeedBinding extends NameBinding {
-    NeedBinding(Variable v, Suspension s) { super(v,s); }
-    public JamVal value() {
-      if (value == null) {  // a legitimate JamVal CANNOT be null
-        setValue(susp.eval());
-        susp = null;  // release susp object for GC!
+    
+    /** Returns the remembered value, or null if this has not been evaluated yet. */
+    JamVal value() { return (state == EVALUATED) ? value : null; }
+    
+    /** Evaluates this on the current spark or future thread unless some thread has claimed it already.  Returns the
+      * value remembered (which may have been reported first by a thread that overtook the claim), or null if this was
+      * claimed already or the evaluation failed. */
+    JamVal speculate() {
+      synchronized (this) {
+        if (state != UNEVALUATED) return null;
+        owner = Thread.currentThread();
+        state = EVALUATING;
       }
-      return value;
+      try { return setValue(compute()); }
+      catch (RuntimeException e) { abandon(e); }
+      catch (Error e) { abandon(e); }
+      return null;
     }
-    public void setValue(JamVal v) { value = v; }
-    public String toString() { return "[" + var + ", " + value + ", " + susp + "]"; }
-  }
-  
-  /** Visitor class implementing a lookup method on environments.
-    * @return value() for variable var for both lazy and eager environments. */
-  static class LookupVisitor implements PureListVisitor<Binding,JamVal> {
-
-    Variable var;   // the lexer guarantees that there is only one Variable for a given name
     
-    LookupVisitor(Variable v) { var = v; }
+    /** Claims the evaluation of this for the current thread; used by engines that evaluate exp themselves.  Returns
+      * true if the caller must now compute the value and report it with setValue (or its failure with abandon), and
+      * false if the value is already remembered.  Waits while another thread evaluates this (unless that thread is a
+      * spark, which is overtaken), and throws if the current thread is already evaluating it or if its evaluation
+      * failed.  On a spark thread, throws instead of waiting. */
+    synchronized boolean claim() {
+      Thread me = Thread.currentThread();
+      boolean speculating = me instanceof SparkEngine.Worker;
+      if (speculating) SparkEngine.checkCancelled();
+      while (state == EVALUATING) {
+        if (owner == me) throw new EvalException("cyclic dependency: the value of " + exp() + " depends on itself");
+        if (speculating) throw SparkEngine.ABANDONED;
+        if (owner instanceof SparkEngine.Worker) break;
+        try { wait(); }
+        catch (InterruptedException e) {
+          me.interrupt();
+          throw new EvalException("interrupted while waiting for the value of " + exp());
+        }
+      }
+      if (state == FAILED) throw failure;
+      if (state == EVALUATED) return false;
+      owner = me;
+      state = EVALUATING;
+      return true;
+    }
     
-    /* Visitor methods. */
-    public JamVal forEmpty(Empty<Binding> e) { throw new EvalException("variable " + var + " is unbound"); }
+    /** Remembers v as the value of this, claimed by the current thread, and wakes the threads waiting for it; returns
+      * the value remembered, which is the one another thread reported first if the claim was overtaken.  In that
+      * case, exp and ev are kept until the overtaking thread reports too. */
+    synchronized JamVal setValue(JamVal v) {
+      Thread me = Thread.currentThread();
+      if (state == EVALUATING) {
+        value = v;
+        state = EVALUATED;
+        notifyAll();
+      }
+      if (owner == me || owner == null) {
+        owner = null;
+        release();  // release exp and ev for GC!
+      }
+      return (state == EVALUATED) ? value : v;
+    }
     
-    public JamVal forCons(Cons<Binding> c) {
-      Binding b = c.first();
-      if (var == b.var()) return b.value();
-      return c.rest().accept(this);
+    /** Records that the evaluation of this, claimed by the current thread, threw t, and wakes the threads waiting
+      * for it.  Does nothing if another thread has overtaken the claim, and keeps the value a spark remembered
+      * meanwhile. */
+    synchronized void abandon(Throwable t) {
+      Thread me = Thread.currentThread();
+      if (owner != me) return;
+      owner = null;
+      if (state == EVALUATED) release();
+      else if (t instanceof RuntimeException && ! (me instanceof SparkEngine.Worker)) {
+        failure = (RuntimeException) t;
+        state = FAILED;
+        release();
+      }
+      else state = UNEVALUATED;
+      notifyAll();
     }
+    
+    public String toString() { return (state == EVALUATED) ? value.toString() : super.toString(); }
   }
  
   /** The interface supported by various evaluation policies (CBV, CBNm, CBNd) for map applications and variable 
@@ -382,8 +485,9 @@ class Interpreter {
     * environment changes.  An EvalPolicy should NOT contain an EvalVisitor field.
     */
   interface EvalPolicy {
-    /** Evaluates the let construct composed of var, exps, and body */
-    JamVal letEval(Variable[] vars, AST[] exps, AST body, EvalVisitor ev);
+    /** Evaluates the let construct composed of var, exps, and body; the rhs's marked in strict (if not null) are
+      * evaluated immediately */
+    JamVal letEval(Variable[] vars, AST[] exps, boolean[] strict, AST body, EvalVisitor ev);
     
     /** Constructs a UnOpVisitor with the specified evaluated argument */
     UnOpVisitor<JamVal> newUnOpVisitor(JamVal arg);
@@ -394,11 +498,17 @@ class Interpreter {
     /** Constructs a JamFunVisitor with the specified array of unevaluated arguments and EvalVisitor */
     JamFunVisitor<JamVal> newFunVisitor(AST args[], EvalVisitor ev);
 
-    /** Constructs the appropriate binding object for this, binding var to ast in the evaluator ev */
-    Binding newBinding(Variable var, AST ast, EvalVisitor ev);
+    /** Constructs the appropriate Frame slot contents for this, binding ast in the evaluator ev */
+    Object newSlot(AST ast, EvalVisitor ev);
     
-    /** Constructs the appropriate cons object for this, incorporating the correct consEvalPolicy */
-    JamCons newCons(AST f, AST r);
+    /** Returns true if newSlot evaluates its ast immediately (call-by-value) rather than suspending it. */
+    boolean isStrict();
+    
+    /** Returns true if the suspensions built by newSlot remember their values (call-by-need). */
+    boolean isNeed();
+    
+    /** Returns the policy used to construct conses */
+    ConsEvalPolicy consPolicy();
   }
   
   /** An EvalVisitor class where details of behavior are determined by an embedded EvalPolicy. */
@@ -410,32 +520,46 @@ class Interpreter {
      * * The only objects used as boolean values are BoolConstant.TRUE and BoolConstant.FALSE.
      * Hence,  == can be used to compare Variable objects, OpTokens, and BoolConstants. */
     
-    PureList<Binding> env;  // the embdedded environment
+    Frame env;  // the embdedded environment; null is the empty environment
     EvalPolicy evalPolicy;  // the embedded EvalPolicy
+    boolean tailCalls;  // iterate through tail positions instead of recursing
     
     /** Recursive constructor. */
-    private FlexEvalVisitor(PureList<Binding> e, EvalPolicy ep) { 
+    private FlexEvalVisitor(Frame e, EvalPolicy ep, boolean tc) { 
       env = e; 
       evalPolicy = ep;
+      tailCalls = tc;
     }
     
     /** Top level constructor. */
-    public FlexEvalVisitor(EvalPolicy ep) { this(new Empty<Binding>(), ep); }
+    public FlexEvalVisitor(EvalPolicy ep) { this(null, ep, false); }
+    
+    /** Top level constructor selecting whether tail calls are eliminated. */
+    public FlexEvalVisitor(EvalPolicy ep, boolean tc) { this(null, ep, tc); }
     
     /** factory method that constructs a new visitor of This class with environment env */
-    public EvalVisitor newVisitor(PureList<Binding> e) { return new FlexEvalVisitor(e, evalPolicy); }
+    public EvalVisitor newVisitor(Frame e) { return new FlexEvalVisitor(e, evalPolicy, tailCalls); }
     
-    /** Factory method that constructs a Binding of var to ast corresponding to this */
-    public Binding newBinding(Variable var, AST ast) { return evalPolicy.newBinding(var, ast, this); }
+    /** Factory method that constructs the slot contents for ast corresponding to this */
+    public Object newSlot(AST ast) { return evalPolicy.newSlot(ast, this); }
+    
+    /** Factory method that constructs the cons of f and r corresponding to this */
+    public JamCons newCons(AST f, AST r) { return evalPolicy.consPolicy().newCons(f, r, this); }
     
     /** Getter for env field */
-    public PureList<Binding> env() { return env; }
+    public Frame env() { return env; }
     
     /* EvalVisitor methods */
     public JamVal forBoolConstant(BoolConstant b) { return b; }
     public JamVal forIntConstant(IntConstant i) { return i; }
     public JamVal forNullConstant(NullConstant n) { return JamEmpty.ONLY; }
-    public JamVal forVariable(Variable v) {  return env.accept(new LookupVisitor(v)); }
+    
+    /** A resolved program has no bound plain Variables: an unresolved one is free, and is never looked up by name in
+      * env, whose frames may bind the same name in another scope. */
+    public JamVal forVariable(Variable v) { throw new EvalException("variable " + v + " is unbound"); }
+    
+    /** Fetches the slot at the resolved address in env without scanning for v. */
+    public JamVal forLexicalVariable(LexicalVariable v) { return env.up(v.depth()).value(v.slot()); }
     
     public JamVal forPrimFun(PrimFun f) { return f; }
     
@@ -448,6 +572,7 @@ class Interpreter {
     }
     
     public JamVal forApp(App a) {
+      if (tailCalls) return evalTail(a);
       JamVal rator = a.rator().accept(this);
       if (rator instanceof JamFun) return ((JamFun) rator).accept(evalPolicy.newFunVisitor(a.args(), this));
       throw new EvalException(rator + " appears at head of application " + a + " but it is not a valid function");
@@ -456,6 +581,7 @@ class Interpreter {
     public JamVal forMap(Map m) { return new JamClosure(m,env); }
     
     public JamVal forIf(If i) {
+      if (tailCalls) return evalTail(i);
       JamVal test = i.test().accept(this);
       if (! (test instanceof BoolConstant)) throw new EvalException("non Boolean " + test + " used as test in if");
       if (test == BoolConstant.TRUE) return i.conseq().accept(this);
@@ -463,31 +589,112 @@ class Interpreter {
     }
     
     public JamVal forLet(Let l) {
-      Def[] defs = l.defs();
-      int n = defs.length;
-      
-      Variable[] vars = new Variable[n];
-      for (int i = 0; i < n; i++) vars[i] = defs[i].lhs();
-      
-      AST[] exps =  new AST[n];
-      for (int i = 0; i < n; i++) exps[i] = defs[i].rhs();
-      
-      return evalPolicy.letEval(vars, exps, l.body(), this);
+      if (tailCalls) return evalTail(l);
+      return evalPolicy.letEval(l.vars(), l.exps(), l.strict(), l.body(), this);
     }
+    
+    public JamVal forLetRec(LetRec l) {
+      if (tailCalls) return evalTail(l);
+      return l.body().accept(newVisitor(recFrame(l.vars(), l.exps(), env)));
+    }
+    
+    /** Evaluates exp in env, iterating rather than recursing through the tail positions of if, let, and closure
+      * application so that tail calls run in constant Java stack space.  Non-tail subexpressions (tests, operands,
+      * arguments under CBV) are still evaluated recursively.  The let case builds the same frame as
+      * CommonEvalPolicy.letEval. */
+    private JamVal evalTail(AST exp) {
+      EvalVisitor ev = this;
+      while (true) {
+        if (exp instanceof If) {
+          If i = (If) exp;
+          JamVal test = i.test().accept(ev);
+          if (! (test instanceof BoolConstant)) throw new EvalException("non Boolean " + test + " used as test in if");
+          exp = (test == BoolConstant.TRUE) ? i.conseq() : i.alt();
+        }
+        else if (exp instanceof Let) {
+          Let l = (Let) exp;
+          ev = ev.newVisitor(newFrame(l.vars(), l.exps(), l.strict(), null, ev, ev.env()));
+          exp = l.body();
+        }
+        else if (exp instanceof LetRec) {
+          LetRec l = (LetRec) exp;
+          ev = ev.newVisitor(recFrame(l.vars(), l.exps(), ev.env()));
+          exp = l.body();
+        }
+        else if (exp instanceof App) {
+          App a = (App) exp;
+          JamVal rator = a.rator().accept(ev);
+          if (rator instanceof JamClosure) {
+            JamClosure closure = (JamClosure) rator;
+            ev = ev.newVisitor(StandardFunVisitor.bindArgs(closure, a.args(), ev));
+            exp = closure.body().body();
+          }
+          else if (rator instanceof JamFun) return ((JamFun) rator).accept(evalPolicy.newFunVisitor(a.args(), ev));
+          else throw new EvalException(rator + " appears at head of application " + a + " but it is not a valid function");
+        }
+        else return exp.accept(ev);
+      }
+    }
+  }
+  
+  /** The interface supported by the engines that run a checked and resolved program under an EvalPolicy. */
+  interface Engine {
+    JamVal run(AST prog, EvalPolicy ep);
+  }
+  
+  /** Engines that evaluate programs using a FlexEvalVisitor, with or without tail call elimination. */
+  static class VisitorEngine implements Engine {
+    public static final VisitorEngine RECURSIVE = new VisitorEngine(false);
+    public static final VisitorEngine TAIL_CALLS = new VisitorEngine(true);
+    
+    private boolean tailCalls;
+    private VisitorEngine(boolean tc) { tailCalls = tc; }
+    
+    public JamVal run(AST prog, EvalPolicy ep) { return prog.accept(new FlexEvalVisitor(ep, tailCalls)); }
+    public String toString() { return tailCalls ? "tail-call" : "recursive"; }
+  }
+  
+  /** Constructs the frame binding vars to slots for the corresponding exps (built by ev) on top of parent.  The slots
+    * marked in strict (if it is not null) hold the values of their exps, whatever the policy; those marked in unused
+    * (only ever set under lazy policies) are never read, and are left empty.  The slots of futures hold started
+    * suspensions, whatever the policy (see Futures). */
+  static Frame newFrame(Variable[] vars, AST[] exps, boolean[] strict, boolean[] unused, EvalVisitor ev, Frame parent) {
+    int n = vars.length;
+    Object[] slots = new Object[n];
+    for (int i = n-1; i >= 0; i--) {
+      if (unused != null && unused[i]) continue;
+      if (Futures.isFuture(exps[i])) slots[i] = Futures.start(new NeedSuspension(exps[i], ev));
+      else slots[i] = (strict != null && strict[i]) ? exps[i].accept(ev) : ev.newSlot(exps[i]);
+    }
+    return new Frame(vars, slots, parent);
   }
   
-  /** Top-level FlexVisitors implementing CBV, CBNm, and CBNd evaluation. */
-  static EvalVisitor valueValueEvalVisitor = new FlexEvalVisitor(CallByValueValue.ONLY);
-  static EvalVisitor nameValueEvalVisitor = new FlexEvalVisitor(CallByNameValue.ONLY);
-  static EvalVisitor needValueEvalVisitor = new FlexEvalVisitor(CallByNeedValue.ONLY);
+  /** Returns true if arg is a constant, primitive, or resolved variable, or a Map if need is set, whose lazy slot needs
+    * no suspension.  A Map is atomic only in a by-need slot: each evaluation of a Map builds a new closure, and
+    * closures are compared by identity, so a by-name slot must build one at each use. */
+  static boolean isAtomic(AST arg, boolean need) {
+    return arg instanceof Constant || arg instanceof PrimFun || arg instanceof LexicalVariable
+      || (need && arg instanceof Map);
+  }
   
-  static EvalVisitor valueNameEvalVisitor = new FlexEvalVisitor(CallByValueName.ONLY);
-  static EvalVisitor nameNameEvalVisitor = new FlexEvalVisitor(CallByNameName.ONLY);
-  static EvalVisitor needNameEvalVisitor = new FlexEvalVisitor(CallByNeedName.ONLY);
+  /** Returns the contents of a lazy slot bound to the atomic arg in ev: the value of a constant, primitive, or (by-need)
+    * Map, which is computed cheaply and cannot fail, or the contents of the slot a variable refers to, which is shared
+    * rather than wrapped in a suspension that would look it up (forcing a shared NeedSuspension remembers the value
+    * for both slots, and a shared by-name Suspension evaluates the same expression in the same environment). */
+  static Object atomicSlot(AST arg, EvalVisitor ev) {
+    if (! (arg instanceof LexicalVariable)) return arg.accept(ev);
+    LexicalVariable v = (LexicalVariable) arg;
+    return ev.env().up(v.depth()).slots[v.slot()];
+  }
   
-  static EvalVisitor valueNeedEvalVisitor = new FlexEvalVisitor(CallByValueNeed.ONLY);
-  static EvalVisitor nameNeedEvalVisitor = new FlexEvalVisitor(CallByNameNeed.ONLY);
-  static EvalVisitor needNeedEvalVisitor = new FlexEvalVisitor(CallByNeedNeed.ONLY);
+  /** Constructs the frame of a letrec binding vars to the closures of maps in that frame, on top of parent.  The frame
+    * is created with empty slots, which are then back-patched. */
+  static Frame recFrame(Variable[] vars, AST[] maps, Frame parent) {
+    int n = vars.length;
+    Frame frame = new Frame(vars, new Object[n], parent);
+    for (int i = 0; i < n; i++) frame.slots[i] = new JamClosure((Map) maps[i], frame);
+    return frame;
+  }
   
   /** Class that implements the evaluation of function applications given the embedded arguments and evalVisitor. */
   static class StandardFunVisitor implements JamFunVisitor<JamVal> {
@@ -507,20 +714,20 @@ class Interpreter {
       primFunFactory = pff;
     }
     
-    /* Visitor methods. */
-    public JamVal forJamClosure(JamClosure closure) {
-      Map map = closure.body();
-      
+    /** Constructs the environment for the body of closure applied to args: the closure env extended by one frame. */
+    static Frame bindArgs(JamClosure closure, AST[] args, EvalVisitor ev) {
       int n = args.length;
-      Variable[] vars = map.vars();
+      Variable[] vars = closure.body().vars();
       if (vars.length != n) 
         throw new EvalException("closure " + closure + " applied to " + n + " arguments");
+      return newFrame(vars, args, closure.body().strict(), closure.body().unused(), ev, closure.env());
+    }
+    
+    /* Visitor methods. */
+    public JamVal forJamClosure(JamClosure closure) {
+      Map map = closure.body();
       
-      // construct newEnv for JamClosure body using JamClosure env
-      PureList<Binding> newEnv = closure.env();
-      for (int i = n-1; i >= 0; i--) 
-        newEnv = newEnv.cons(evalVisitor.newBinding(vars[i], args[i]));
-      return map.body().accept(evalVisitor.newVisitor(newEnv));
+      return map.body().accept(evalVisitor.newVisitor(bindArgs(closure, args, evalVisitor)));
     }
    
     public JamVal forPrimFun(PrimFun primFun) {
@@ -534,16 +741,11 @@ class Interpreter {
   
   abstract static class CommonEvalPolicy implements EvalPolicy {
     
-    public JamVal letEval(Variable[] vars, AST[] exps, AST body, EvalVisitor evalVisitor) {
+    public JamVal letEval(Variable[] vars, AST[] exps, boolean[] strict, AST body, EvalVisitor evalVisitor) {
       /* let semantics */
       
-      int n = vars.length;
-   
       // construct newEnv for Let body; vars are bound to values of corresponding exps using evalVisitor
-      PureList<Binding> newEnv = evalVisitor.env();
-      for (int i = n-1; i >= 0; i--) newEnv = newEnv.cons(evalVisitor.newBinding(vars[i], exps[i]));
-      
-      EvalVisitor newEvalVisitor = evalVisitor.newVisitor(newEnv);  
+      EvalVisitor newEvalVisitor = evalVisitor.newVisitor(newFrame(vars, exps, strict, null, evalVisitor, evalVisitor.env()));  
       
       return body.accept(newEvalVisitor);
     }
@@ -560,42 +762,6 @@ class Interpreter {
     }
   }
   
-  /** Substitution method for callByValue let-rec*/
-  public static JamVal letRecEvalValue(Variable[] vars, AST[] exps, AST body, EvalVisitor evalVisitor) {
-      /* let semantics */
-      
-      int n = vars.length;
-      EvalVisitor newEvalVisitor = evalVisitor;
-   
-      // construct newEnv for Let body; vars are bound to values of corresponding exps using evalVisitor
-      PureList<Binding> newEnv = evalVisitor.env();
-      for (int i = n-1; i >= 0; i--) newEnv = newEnv.cons(evalVisitor.newBinding(vars[i], null));
-      for (int i = 0; i < n; i++){
-    	  newEnv = newEnv.cons(new ValueBinding(vars[i], letRecEvalValue(vars, exps, body, evalVisitor)));
-      }
-      newEvalVisitor = evalVisitor.newVisitor(newEnv);
-        
-      
-      return body.accept(newEvalVisitor);
-    }
-  
-  /** Substitution method for callByName and CallByNeed let-rec*/
-  public static JamVal letRecEvalName(Variable[] vars, AST[] exps, AST body, EvalVisitor evalVisitor) {
-      /* let semantics */
-      
-      int n = vars.length;
-      EvalVisitor newEvalVisitor = evalVisitor;
-   
-      // construct newEnv for Let body; vars are bound to values of corresponding exps using evalVisitor
-      PureList<Binding> newEnv = evalVisitor.env();
-      for (int i = n-1; i >= 0; i--) newEnv = newEnv.cons(evalVisitor.newBinding(vars[i], exps[i]));
-      //letRecEvalName(vars,exps,body,evalVisitor);
-      newEvalVisitor = evalVisitor.newVisitor(newEnv);
-        
-      
-      return body.accept(newEvalVisitor);
-    }
-     
   /* Value Cons Constructor Policies */
   
   static class CallByValueValue extends CommonEvalPolicy {
@@ -603,35 +769,41 @@ class Interpreter {
     public static final CallByValueValue ONLY = new CallByValueValue();
     private CallByValueValue() { }
     
-    /** Inherited letEval works because newBinding method is customized! */
-    
-    /*public JamVal letEval(Variable[] vars, AST[] exps, AST body, EvalVisitor evalVisitor){
-    	return letRecEvalValue(vars,exps,body,evalVisitor);
-    }*
+    /** Inherited letEval works because newSlot method is customized! */
     
-    /** Constructs binding of var to value of arg in ev */
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new ValueBinding(var, arg.accept(ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByValue.ONLY.newCons(f, r);}
+    /** Constructs slot holding the value of arg in ev */
+    public Object newSlot(AST arg, EvalVisitor ev) { return arg.accept(ev); }
+    public boolean isStrict() { return true; }
+    public boolean isNeed() { return false; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByValue.ONLY; }
   }
     
   static class CallByNameValue extends CommonEvalPolicy {
     public static final CallByNameValue ONLY = new CallByNameValue();
     private CallByNameValue() {}
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new NameBinding(var, new Suspension(arg, ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByValue.ONLY.newCons(f, r);}
+    public Object newSlot(AST arg, EvalVisitor ev) {
+      return isAtomic(arg, false) ? atomicSlot(arg, ev) : new Suspension(arg, ev);
+    }
+    public boolean isStrict() { return false; }
+    public boolean isNeed() { return false; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByValue.ONLY; }
   }
   
   static class CallByNeedValue extends CommonEvalPolicy {
     public static final CallByNeedValue ONLY = new CallByNeedValue();
     private CallByNeedValue() {}
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new NeedBinding(var, new Suspension(arg, ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByValue.ONLY.newCons(f, r);}
+    public Object newSlot(AST arg, EvalVisitor ev) {
+      return isAtomic(arg, true) ? atomicSlot(arg, ev) : SparkEngine.offer(new NeedSuspension(arg, ev));
+    }
+    public boolean isStrict() { return false; }
+    public boolean isNeed() { return true; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByValue.ONLY; }
   }
   
   /* Name Cons Constructor Policies */
@@ -641,31 +813,41 @@ class Interpreter {
     public static final CallByValueName ONLY = new CallByValueName();
     private CallByValueName() { }
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    /** Constructs binding of var to value of arg in ev */
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new ValueBinding(var, arg.accept(ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByName.ONLY.newCons(f, r);}
+    /** Constructs slot holding the value of arg in ev */
+    public Object newSlot(AST arg, EvalVisitor ev) { return arg.accept(ev); }
+    public boolean isStrict() { return true; }
+    public boolean isNeed() { return false; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByName.ONLY; }
   }
     
   static class CallByNameName extends CommonEvalPolicy {
     public static final CallByNameName ONLY = new CallByNameName();
     private CallByNameName() {}
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new NameBinding(var, new Suspension(arg, ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByName.ONLY.newCons(f, r);}
+    public Object newSlot(AST arg, EvalVisitor ev) {
+      return isAtomic(arg, false) ? atomicSlot(arg, ev) : new Suspension(arg, ev);
+    }
+    public boolean isStrict() { return false; }
+    public boolean isNeed() { return false; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByName.ONLY; }
   }
   
   static class CallByNeedName extends CommonEvalPolicy {
     public static final CallByNeedName ONLY = new CallByNeedName();
     private CallByNeedName() {}
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new NeedBinding(var, new Suspension(arg, ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByName.ONLY.newCons(f, r);}
+    public Object newSlot(AST arg, EvalVisitor ev) {
+      return isAtomic(arg, true) ? atomicSlot(arg, ev) : SparkEngine.offer(new NeedSuspension(arg, ev));
+    }
+    public boolean isStrict() { return false; }
+    public boolean isNeed() { return true; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByName.ONLY; }
   }
 
   
@@ -676,31 +858,41 @@ class Interpreter {
     public static final CallByValueNeed ONLY = new CallByValueNeed();
     private CallByValueNeed() { }
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    /** Constructs binding of var to value of arg in ev */
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new ValueBinding(var, arg.accept(ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByNeed.ONLY.newCons(f, r);}
+    /** Constructs slot holding the value of arg in ev */
+    public Object newSlot(AST arg, EvalVisitor ev) { return arg.accept(ev); }
+    public boolean isStrict() { return true; }
+    public boolean isNeed() { return false; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByNeed.ONLY; }
   }
     
   static class CallByNameNeed extends CommonEvalPolicy {
-    public static final CallByNameValue ONLY = new CallByNameValue();
+    public static final CallByNameNeed ONLY = new CallByNameNeed();
     private CallByNameNeed() {}
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new NameBinding(var, new Suspension(arg, ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByNeed.ONLY.newCons(f, r);}
+    public Object newSlot(AST arg, EvalVisitor ev) {
+      return isAtomic(arg, false) ? atomicSlot(arg, ev) : new Suspension(arg, ev);
+    }
+    public boolean isStrict() { return false; }
+    public boolean isNeed() { return false; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByNeed.ONLY; }
   }
   
   static class CallByNeedNeed extends CommonEvalPolicy {
     public static final CallByNeedNeed ONLY = new CallByNeedNeed();
     private CallByNeedNeed() {}
     
-    /** Inherited letEval works because newBinding method is customized! */
+    /** Inherited letEval works because newSlot method is customized! */
     
-    public Binding newBinding(Variable var, AST arg, EvalVisitor ev) { return new NeedBinding(var, new Suspension(arg, ev)); }
-    public JamCons newCons(AST f, AST r) {return ConsEvalPolicyByNeed.ONLY.newCons(f, r);}
+    public Object newSlot(AST arg, EvalVisitor ev) {
+      return isAtomic(arg, true) ? atomicSlot(arg, ev) : SparkEngine.offer(new NeedSuspension(arg, ev));
+    }
+    public boolean isStrict() { return false; }
+    public boolean isNeed() { return true; }
+    public ConsEvalPolicy consPolicy() { return ConsEvalPolicyByNeed.ONLY; }
   }
 
   
@@ -708,19 +900,22 @@ class Interpreter {
     private JamVal val;
     StandardUnOpVisitor(JamVal jv) { val = jv; }
     
-    private IntConstant checkInteger(UnOp op) {
+    static IntConstant intArg(JamVal val, UnOp op) {
       if (val instanceof IntConstant) return (IntConstant) val;
       throw new EvalException("Unary operator `" + op + "' applied to non-integer " + val);
     }
     
-    private BoolConstant checkBoolean(UnOp op) {
+    static BoolConstant boolArg(JamVal val, UnOp op) {
       if (val instanceof BoolConstant) return (BoolConstant) val;
       throw new EvalException("Unary operator `" + op + "' applied to non-boolean " + val);
     }
+    
+    private IntConstant checkInteger(UnOp op) { return intArg(val, op); }
+    private BoolConstant checkBoolean(UnOp op) { return boolArg(val, op); }
 
     public JamVal forUnOpPlus(UnOpPlus op) { return checkInteger(op); }
     public JamVal forUnOpMinus(UnOpMinus op) { 
-      return new IntConstant(- checkInteger(op).value()); 
+      return IntConstant.valueOf(- checkInteger(op).value()); 
     }
     public JamVal forOpNot(OpNot op) { return checkBoolean(op).not(); }
     // public JamVal forOpBang(OpBang op) { return ... ; }  // Supports addition of ref cells to Jam
@@ -746,18 +941,18 @@ class Interpreter {
     }
     
     public JamVal forBinOpPlus(BinOpPlus op) {
-      return new IntConstant(evalIntegerArg(arg1,op).value() + evalIntegerArg(arg2,op).value());
+      return IntConstant.valueOf(evalIntegerArg(arg1,op).value() + evalIntegerArg(arg2,op).value());
     }
     public JamVal forBinOpMinus(BinOpMinus op) {
-      return new IntConstant(evalIntegerArg(arg1,op).value() - evalIntegerArg(arg2,op).value());
+      return IntConstant.valueOf(evalIntegerArg(arg1,op).value() - evalIntegerArg(arg2,op).value());
     }
     
     public JamVal forOpTimes(OpTimes op) {
-      return new IntConstant(evalIntegerArg(arg1,op).value() * evalIntegerArg(arg2,op).value());
+      return IntConstant.valueOf(evalIntegerArg(arg1,op).value() * evalIntegerArg(arg2,op).value());
     }
     
     public JamVal forOpDivide(OpDivide op) {
-      return new IntConstant(evalIntegerArg(arg1,op).value() / evalIntegerArg(arg2,op).value());
+      return IntConstant.valueOf(evalIntegerArg(arg1,op).value() / evalIntegerArg(arg2,op).value());
     }
     
     public JamVal forOpEquals(OpEquals op) {
@@ -795,6 +990,56 @@ class Interpreter {
       return evalBooleanArg(arg2,op);
     }
     // public JamVal forOpGets(OpGets op) { return ... ; }  // Supports addition of ref cells to Jam
+  }  
+  /** BinOpVisitor applying a binary operator to already evaluated operands; used by engines that evaluate operands
+    * without an EvalVisitor.  The caller is responsible for the short-circuit behavior of & and | and for reporting
+    * a bad first operand before evaluating the second (see checkFirstArg); the error messages match
+    * StandardBinOpVisitor. */
+  static class ValueBinOpVisitor implements BinOpVisitor<JamVal> {
+    private JamVal val1, val2;
+    
+    ValueBinOpVisitor(JamVal v1, JamVal v2) { val1 = v1; val2 = v2; }
+    
+    static int intArg(JamVal val, BinOp b) {
+      if (val instanceof IntConstant) return ((IntConstant) val).value();
+      throw new EvalException("Binary operator `" + b + "' applied to non-integer " + val);
+    }
+    
+    static BoolConstant boolArg(JamVal val, BinOp b) {
+      if (val instanceof BoolConstant) return (BoolConstant) val;
+      throw new EvalException("Binary operator `" + b + "' applied to non-boolean " + val);
+    }
+    
+    /** Checks the first operand v1 of b as StandardBinOpVisitor does before it evaluates the second operand.  Returns
+      * the result of b if it is determined by v1 (short-circuit & and |), null otherwise. */
+    static JamVal checkFirstArg(BinOp b, JamVal v1) {
+      if (b == OpAnd.ONLY) return (boolArg(v1, b) == BoolConstant.FALSE) ? BoolConstant.FALSE : null;
+      if (b == OpOr.ONLY) return (boolArg(v1, b) == BoolConstant.TRUE) ? BoolConstant.TRUE : null;
+      if (b != OpEquals.ONLY && b != OpNotEquals.ONLY) intArg(v1, b);
+      return null;
+    }
+    
+    public JamVal forBinOpPlus(BinOpPlus op) { return IntConstant.valueOf(intArg(val1,op) + intArg(val2,op)); }
+    public JamVal forBinOpMinus(BinOpMinus op) { return IntConstant.valueOf(intArg(val1,op) - intArg(val2,op)); }
+    public JamVal forOpTimes(OpTimes op) { return IntConstant.valueOf(intArg(val1,op) * intArg(val2,op)); }
+    public JamVal forOpDivide(OpDivide op) { return IntConstant.valueOf(intArg(val1,op) / intArg(val2,op)); }
+    public JamVal forOpEquals(OpEquals op) { return BoolConstant.toBoolConstant(val1.equals(val2)); }
+    public JamVal forOpNotEquals(OpNotEquals op) { return BoolConstant.toBoolConstant(! val1.equals(val2)); }
+    public JamVal forOpLessThan(OpLessThan op) { 
+      return BoolConstant.toBoolConstant(intArg(val1,op) < intArg(val2,op)); 
+    }
+    public JamVal forOpGreaterThan(OpGreaterThan op) { 
+      return BoolConstant.toBoolConstant(intArg(val1,op) > intArg(val2,op)); 
+    }
+    public JamVal forOpLessThanEquals(OpLessThanEquals op) { 
+      return BoolConstant.toBoolConstant(intArg(val1,op) <= intArg(val2,op)); 
+    }
+    public JamVal forOpGreaterThanEquals(OpGreaterThanEquals op) { 
+      return BoolConstant.toBoolConstant(intArg(val1,op) >= intArg(val2,op)); 
+    }
+    /** Reached only when the first operand did not short-circuit. */
+    public JamVal forOpAnd(OpAnd op) { return boolArg(val2,op); }
+    public JamVal forOpOr(OpOr op) { return boolArg(val2,op); }
   }
   
   /** Interface for a factory that constructs a PrimFunVisitor with a given EvalVisitor and args. */
@@ -828,90 +1073,171 @@ class Interpreter {
         return vals;
       }
       
-      
-      private JamVal primFunError(String fn) {
-        throw new EvalException("Primitive function `" + fn + "' applied to " + 
-                                args.length + " arguments");
-      }
+      /** Evaluates the arguments and returns the visitor applying a primitive to their values. */
+      private ValuePrimFunVisitor valueVisitor() { return new ValuePrimFunVisitor(evalArgs(), evalVisitor); }
   
       private JamCons evalJamConsArg(AST arg, String fun) {
-        JamVal val = arg.accept(evalVisitor);
-        if (val instanceof JamCons) return (JamCons) val;
-                                throw new EvalException("Primitive function `" + fun + "' applied to argument " + val + 
-                                        " that is not a JamCons");
-      }
-      
-      public JamVal forFunctionPPrim() {
-        JamVal[] vals = evalArgs();
-        if (vals.length != 1) return primFunError("function?");
-        return BoolConstant.toBoolConstant(vals[0] instanceof JamFun);
+        return ValuePrimFunVisitor.consArg(arg.accept(evalVisitor), fun);
       }
       
-      public JamVal forNumberPPrim() {
-        JamVal[] vals = evalArgs();
-        if (vals.length != 1) return primFunError("number?");
-        return BoolConstant.toBoolConstant(vals[0] instanceof IntConstant);
-      }
-      
-      public JamVal forListPPrim() {
-        JamVal[] vals = evalArgs();
-        if (vals.length != 1) return primFunError("list?");
-        return BoolConstant.toBoolConstant(vals[0] instanceof JamList);
-      }
-      
-      public JamVal forConsPPrim() {
-        JamVal[] vals = evalArgs();
-        if (vals.length != 1) return primFunError("cons?");
-        return BoolConstant.toBoolConstant(vals[0] instanceof JamCons);
-      }
-      
-      public JamVal forNullPPrim() {
-        JamVal[] vals = evalArgs();
-        if (vals.length != 1) return primFunError("null?");
-        return BoolConstant.toBoolConstant(vals[0] instanceof JamEmpty);
-      }
+      public JamVal forFunctionPPrim() { return valueVisitor().forFunctionPPrim(); }
+      public JamVal forNumberPPrim() { return valueVisitor().forNumberPPrim(); }
+      public JamVal forListPPrim() { return valueVisitor().forListPPrim(); }
+      public JamVal forConsPPrim() { return valueVisitor().forConsPPrim(); }
+      public JamVal forNullPPrim() { return valueVisitor().forNullPPrim(); }
+      public JamVal forArityPrim() { return valueVisitor().forArityPrim(); }
       
+      /** Constructs the cons according to the cons policy embedded in evalVisitor. */
       public JamVal forConsPrim() {
-        JamVal[] vals = evalArgs();
-        if (vals.length != 2) return primFunError("cons");
-        if (vals[1] instanceof JamList) return new JamCons(vals[0], (JamList) vals[1]);
-        throw new EvalException("Second argument " + vals[1] + " to `cons' is not a JamList");
-      }
-      
-      public JamVal forArityPrim() { 
-        JamVal[] vals = evalArgs();
-        if (vals.length != 1) return primFunError("arity");
-        if (! (vals[0] instanceof JamFun) ) throw new EvalException("arity applied to argument " +
-                                                                    vals[0]);
-        return ((JamFun) vals[0]).accept(ArityVisitor.ONLY);
+        if (args.length != 2) return ValuePrimFunVisitor.primFunError("cons", args.length);
+        return evalVisitor.newCons(args[0], args[1]);
       }
       
       public JamVal forFirstPrim() { return evalJamConsArg(args[0], "first").first(); }
       public JamVal forRestPrim() { return evalJamConsArg(args[0], "rest").rest(); }
+      public JamVal forPMapPrim() { return valueVisitor().forPMapPrim(); }
+      public JamVal forPReducePrim() { return valueVisitor().forPReducePrim(); }
+      public JamVal forFuturePrim() { return valueVisitor().forFuturePrim(); }
+      public JamVal forTouchPrim() { return valueVisitor().forTouchPrim(); }
+    }
+  }
+  
+  /** PrimFunVisitor applying a primitive function to already evaluated arguments.  The cons primitive builds an
+    * eager JamCons; first and rest force the fields of lazy conses using their own suspensions.  The closures that
+    * pmap and preduce apply run their own code if their body is translated, and are otherwise interpreted with a
+    * visitor of the class of ev. */
+  static class ValuePrimFunVisitor implements PrimFunVisitor<JamVal> {
+    
+    /** The visitor interpreting closure bodies for the engines whose closures all carry their own code */
+    private static final EvalVisitor VALUE_VISITOR = new FlexEvalVisitor(CallByValueValue.ONLY);
+    
+    private JamVal[] vals;
+    private EvalVisitor ev;
+    
+    ValuePrimFunVisitor(JamVal[] vs, EvalVisitor e) { vals = vs; ev = e; }
+    ValuePrimFunVisitor(JamVal[] vs) { this(vs, VALUE_VISITOR); }
+    
+    static JamVal primFunError(String fn, int n) {
+      throw new EvalException("Primitive function `" + fn + "' applied to " + n + " arguments");
+    }
+    
+    static JamCons consArg(JamVal val, String fun) {
+      if (val instanceof JamCons) return (JamCons) val;
+      throw new EvalException("Primitive function `" + fun + "' applied to argument " + val + 
+                              " that is not a JamCons");
+    }
+    
+    static JamFun funArg(JamVal val, String fun) {
+      if (val instanceof JamFun) return (JamFun) val;
+      throw new EvalException("Primitive function `" + fun + "' applied to argument " + val + 
+                              " that is not a JamFun");
+    }
+    
+    static JamList listArg(JamVal val, String fun) {
+      if (val instanceof JamList) return (JamList) val;
+      throw new EvalException("Primitive function `" + fun + "' applied to argument " + val + 
+                              " that is not a JamList");
+    }
+    
+    /** Constructs the eager cons of first and rest, checking that rest is a list. */
+    static JamCons cons(JamVal first, JamVal rest) {
+      if (rest instanceof JamList) return new JamCons(first, (JamList) rest);
+      throw new EvalException("Second argument " + rest + " to `cons' is not a JamList");
+    }
+    
+    private JamVal primFunError(String fn) { return primFunError(fn, vals.length); }
+    
+    public JamVal forFunctionPPrim() {
+      if (vals.length != 1) return primFunError("function?");
+      return BoolConstant.toBoolConstant(vals[0] instanceof JamFun);
+    }
+    
+    public JamVal forNumberPPrim() {
+      if (vals.length != 1) return primFunError("number?");
+      return BoolConstant.toBoolConstant(vals[0] instanceof IntConstant);
+    }
+    
+    public JamVal forListPPrim() {
+      if (vals.length != 1) return primFunError("list?");
+      return BoolConstant.toBoolConstant(vals[0] instanceof JamList);
+    }
+    
+    public JamVal forConsPPrim() {
+      if (vals.length != 1) return primFunError("cons?");
+      return BoolConstant.toBoolConstant(vals[0] instanceof JamCons);
+    }
+    
+    public JamVal forNullPPrim() {
+      if (vals.length != 1) return primFunError("null?");
+      return BoolConstant.toBoolConstant(vals[0] instanceof JamEmpty);
+    }
+    
+    public JamVal forConsPrim() {
+      if (vals.length != 2) return primFunError("cons");
+      return cons(vals[0], vals[1]);
+    }
+    
+    public JamVal forArityPrim() { 
+      if (vals.length != 1) return primFunError("arity");
+      return arity(vals[0]);
+    }
+    
+    static IntConstant arity(JamVal val) {
+      if (! (val instanceof JamFun) ) throw new EvalException("arity applied to argument " + val);
+      return ((JamFun) val).accept(ArityVisitor.ONLY);
+    }
+    
+    public JamVal forFirstPrim() { return consArg(vals[0], "first").first(); }
+    public JamVal forRestPrim() { return consArg(vals[0], "rest").rest(); }
+    
+    public JamVal forPMapPrim() {
+      if (vals.length != 2) return primFunError("pmap");
+      return ParallelPrims.map(funArg(vals[0], "pmap"), listArg(vals[1], "pmap"), ev);
+    }
+    
+    public JamVal forPReducePrim() {
+      if (vals.length != 3) return primFunError("preduce");
+      return ParallelPrims.reduce(funArg(vals[0], "preduce"), vals[1], listArg(vals[2], "preduce"), ev);
+    }
+    
+    /** Applied to a value, future only returns it; futures are started where future(e) is bound (see Futures). */
+    public JamVal forFuturePrim() {
+      if (vals.length != 1) return primFunError("future");
+      return vals[0];
+    }
+    
+    /** The argument of touch has been forced already, as it is read from its slot. */
+    public JamVal forTouchPrim() {
+      if (vals.length != 1) return primFunError("touch");
+      return vals[0];
+    }
+    
+    /** Visitor class that implements the Jam arity method. */
+    static private class ArityVisitor implements JamFunVisitor<IntConstant> {
+      static public ArityVisitor ONLY = new ArityVisitor();
+      private ArityVisitor() {}
+      public IntConstant forJamClosure(JamClosure jc) { return IntConstant.valueOf(jc.body().vars().length); }
+      public IntConstant forPrimFun(PrimFun jpf) { return jpf.accept(PrimArityVisitor.ONLY); }
+    }
+    
+    /** Visitor class that implements the Jam arity method on primitive functions. */  
+    static private class PrimArityVisitor implements PrimFunVisitor<IntConstant> {
+      static public PrimArityVisitor ONLY = new PrimArityVisitor();
+      private PrimArityVisitor() {}
       
-      /** Visitor class that implements the Jam arity method. */
-      static private class ArityVisitor implements JamFunVisitor<IntConstant> {
-        static public ArityVisitor ONLY = new ArityVisitor();
-        private ArityVisitor() {}
-        public IntConstant forJamClosure(JamClosure jc) { return new IntConstant(jc.body().vars().length); }
-        public IntConstant forPrimFun(PrimFun jpf) { return jpf.accept(PrimArityVisitor.ONLY); }
-      }
-      
-      /** Visitor class that implements the Jam arity method on primitive functions. */  
-      static private class PrimArityVisitor implements PrimFunVisitor<IntConstant> {
-        static public PrimArityVisitor ONLY = new PrimArityVisitor();
-        private PrimArityVisitor() {}
-        
-        public IntConstant forFunctionPPrim() { return new IntConstant(1); }
-        public IntConstant forNumberPPrim() { return new IntConstant(1); }
-        public IntConstant forListPPrim() { return new IntConstant(1); }
-        public IntConstant forConsPPrim() { return new IntConstant(1); }
-        public IntConstant forNullPPrim() { return new IntConstant(1); }
-        public IntConstant forArityPrim() { return new IntConstant(1); }
-        public IntConstant forConsPrim() { return new IntConstant(2); }
-        public IntConstant forFirstPrim() { return new IntConstant(1); }
-        public IntConstant forRestPrim() { return new IntConstant(1); }
-      }
+      public IntConstant forFunctionPPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forNumberPPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forListPPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forConsPPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forNullPPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forArityPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forConsPrim() { return IntConstant.valueOf(2); }
+      public IntConstant forFirstPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forRestPrim() { return IntConstant.valueOf(1); }
+      public IntConstant forPMapPrim() { return IntConstant.valueOf(2); }
+      public IntConstant forPReducePrim() { return IntConstant.valueOf(3); }
+      public IntConstant forFuturePrim() { return IntConstant.valueOf(1); }
+      public IntConstant forTouchPrim() { return IntConstant.valueOf(1); }
     }
   }
   
@@ -920,29 +1246,19 @@ class Interpreter {
 	  JamCons newCons(AST f, AST r, EvalVisitor ev);
   }
   
-  /** Ultimately unnecessary intermediate abstract class */
-  abstract static class ConsEvalPolicyCommon implements ConsEvalPolicy {
-	  public JamCons newCons(AST f, AST r) {return null;}
-  }
-  
   /** Evaluation policy of Cons according to callByValue */
-  static class ConsEvalPolicyByValue extends ConsEvalPolicyCommon {
+  static class ConsEvalPolicyByValue implements ConsEvalPolicy {
 	  public static final ConsEvalPolicyByValue ONLY = new ConsEvalPolicyByValue();
-	  public ConsEvalPolicyByValue() {}
+	  private ConsEvalPolicyByValue() {}
 	  
 	  public JamCons newCons(AST f, AST r, EvalVisitor ev) {
 		  JamVal first = f.accept(ev);
-		  JamVal rest = r.accept(ev);
-		  if (rest instanceof JamList) {
-		  	return new JamCons(first, (JamList) rest);
-		  } else {
-			  throw new EvalException("expected JamList in rest of cons: " + rest.toString());
-		  }
+		  return ValuePrimFunVisitor.cons(first, r.accept(ev));
 	  }
   }
   
   /** Evaluation policy of Cons according to callByName */
-  static class ConsEvalPolicyByName extends ConsEvalPolicyCommon {
+  static class ConsEvalPolicyByName implements ConsEvalPolicy {
 	  public static final ConsEvalPolicyByName ONLY = new ConsEvalPolicyByName();
 	  private ConsEvalPolicyByName() {}
 	  
@@ -952,7 +1268,7 @@ class Interpreter {
   }
 
   /** Evaluation policy of Cons according to callByNeed */
-  static class ConsEvalPolicyByNeed extends ConsEvalPolicyCommon {
+  static class ConsEvalPolicyByNeed implements ConsEvalPolicy {
 	  public static final ConsEvalPolicyByNeed ONLY = new ConsEvalPolicyByNeed();
 	  private ConsEvalPolicyByNeed() {}
 	  
@@ -961,111 +1277,43 @@ class Interpreter {
 	  }
   }
   
-  /** Extension of  JamCons class evaluated lazily by name */
-  static class JamLazyNameCons extends JamCons {
-	  Suspension fSus;
-	  Suspension rSus;
+  /** Extension of JamCons class whose first and rest are computed on demand by suspensions.  Printing and
+    * comparison go through first() and rest() (see Cons), so lazy conses print like ordinary lists. */
+  static class JamLazyCons extends JamCons {
+	  private Suspension fSus;
+	  private Suspension rSus;
 	  
-	  JamLazyNameCons(AST f, AST r, EvalVisitor ev) {
+	  JamLazyCons(Suspension f, Suspension r) {
 		  super(null, null);
-		  fSus = new Suspension(f, ev);
-		  rSus = new Suspension(r, ev);
+		  fSus = f;
+		  rSus = r;
 	  }
 	  
-	  @Override
-	  public JamVal first(){
-		  return fSus.eval();
-	  }
+	  Suspension firstSusp() { return fSus; }
+	  Suspension restSusp() { return rSus; }
 	  
-	  @Override
-	  public JamList rest() {
-		  JamVal res = rSus.eval();
-		  if (res instanceof JamList) {
-			  return (JamList) res;
-		  } else {
-			  throw new EvalException("expected JamList in rest of cons: " + res.toString());
-		  }
+	  /** Checks that res, the value of the rest of a cons, is a JamList. */
+	  static JamList checkList(JamVal res) {
+		  if (res instanceof JamList) return (JamList) res;
+		  throw new EvalException("expected JamList in rest of cons: " + res);
 	  }
 	  
 	  @Override
-	  public String toString() {
-		  JamVal res = rSus.eval();
-		  if (res instanceof JamEmpty)
-			  return "(" + fSus.eval() + ((JamEmpty)res).toStringHelp() + ")";
-		  else if (res instanceof JamLazyNameCons)
-			  return "(" + fSus.eval() + ((JamLazyNameCons)res).toStringHelp(1000) + ")";
-		  else 
-			  throw new EvalException("cons toString expected JamList in rest: " + res.toString()); 
-	  }
+	  public JamVal first() { return fSus.eval(); }
 	  
-	  public String toStringHelp(int i) {
-		  if (i > 0) {
-			  JamVal res = rSus.eval();
-			  if (res instanceof JamEmpty)
-				  return "(" + fSus.eval() + ((JamEmpty)res).toStringHelp() + ")";
-			  else if (res instanceof JamLazyNameCons)
-				  return "(" + fSus.eval() + ((JamLazyNameCons)res).toStringHelp(i - 1) + ")";
-			  else
-				  throw new EvalException("cons toString expected JamList in rest: " + res.toString());
-		  } else
-			  return "...";
-	  }
+	  @Override
+	  public JamList rest() { return checkList(rSus.eval()); }
   }
   
-  /** Extension of  JamCons class evaluated lazily by need */
-  static class JamLazyNeedCons extends JamCons {
-	  Suspension fSus;
-	  Suspension rSus;
-	  
-	  JamVal fRes = null;
-	  JamVal rRes = null;
-	  
+  /** Extension of JamCons class evaluated lazily by name: each access re-evaluates the field */
+  static class JamLazyNameCons extends JamLazyCons {
+	  JamLazyNameCons(AST f, AST r, EvalVisitor ev) { super(new Suspension(f, ev), new Suspension(r, ev)); }
+  }
+  
+  /** Extension of JamCons class evaluated lazily by need: each field is evaluated at most once */
+  static class JamLazyNeedCons extends JamLazyCons {
 	  JamLazyNeedCons(AST f, AST r, EvalVisitor ev) {
-		  super(null, null);
-		  fSus = new Suspension(f, ev);
-		  rSus = new Suspension(r, ev);
-	  }
-	  
-	  @Override
-	  public JamVal first(){
-		  if (fRes == null) { fRes = fSus.eval(); }
-		  return fRes;
-	  }
-	  
-	  @Override
-	  public JamList rest() {
-		  if (rRes == null) { rRes = rSus.eval(); }
-		  if (rRes instanceof JamList) {
-			  return (JamList) rRes;
-		  } else {
-			  throw new EvalException("expected JamList in rest of cons: " + rRes.toString());
-		  }
-	  }
-	  
-	  @Override
-	  public String toString() {
-		  if (fRes == null) { fRes = fSus.eval(); }
-		  if (rRes == null) { rRes = rSus.eval(); }
-		  if (rRes instanceof JamEmpty)
-			  return "(" + fRes + ((JamEmpty)rRes).toStringHelp() + ")";
-		  else if (rRes instanceof JamLazyNeedCons)
-			  return "(" + fRes + ((JamLazyNeedCons)rRes).toStringHelp(1000) + ")";
-		  else 
-			  throw new EvalException("cons toString expected JamList in rest: " + rRes.toString()); 
-	  }
-	  
-	  public String toStringHelp(int i) {
-		  if (i > 0) {
-			  if (fRes == null) { fRes = fSus.eval(); }
-			  if (rRes == null) { rRes = rSus.eval(); }
-			  if (rRes instanceof JamEmpty)
-				  return "(" + fRes + ((JamEmpty)rRes).toStringHelp() + ")";
-			  else if (rRes instanceof JamLazyNeedCons)
-				  return "(" + fRes + ((JamLazyNeedCons)rRes).toStringHelp(i - 1) + ")";
-			  else
-				  throw new EvalException("cons toString expected JamList in rest: " + rRes.toString());
-		  } else
-			  return "...";
+		  super(SparkEngine.offer(new NeedSuspension(f, ev)), SparkEngine.offer(new NeedSuspension(r, ev)));
 	  }
   }
   
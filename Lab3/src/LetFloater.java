@@ -0,0 +1,232 @@
+/** Let floating for Jam programs */
+
+/** Rewriter that hoists the invariant subexpressions of Map bodies out of their Maps.  A subexpression of a Map body
+  * is invariant if it refers to no parameter of the Map and to no variable bound inside the body, so it has the same
+  * value at every application of the Map, such as n * n inside map x to x + (n * n).  Each maximal invariant
+  * subexpression that is hoistable (see hoistable) becomes the rhs of a new Let wrapped around the Map, and its
+  * occurrence is replaced by the new variable.  Maps are rewritten inside out, so a hoisted expression keeps
+  * floating out of the enclosing Maps until it reaches the scope where one of its variables is bound.
+  *
+  * The new Let binds its rhs when the Map is created instead of when its body needs it, so the pass only runs under
+  * call-by-need, where the rhs is suspended and evaluated once, at its first use (if any), which is what makes the
+  * hoisting pay.  Under call-by-value the rhs would be evaluated eagerly, and could fail or diverge where the body
+  * never evaluates it; under call-by-name it would be evaluated again at each use, so there is nothing to gain.
+  *
+  * A hoisted expression yields one value shared by all the applications of the Map, where each application used to
+  * compute its own.  Closures are compared by identity, so in a program that may compare closures with = or !=, only
+  * the expressions whose value cannot be or contain a closure are hoisted: those yielding an int or a boolean.  A Map
+  * (or an application that may return the closure of one, or a cons that may hold one) is left in place, since every
+  * evaluation of it yields a new closure.  A comparison one of whose operands is an int, a boolean or null cannot
+  * tell closures apart, whatever the other operand holds; in a program whose comparisons are all of that kind (such
+  * as the usual n = 0 and l = null tests), the identity of closures is never observed, so every invariant
+  * subexpression is hoisted, including closure-valued ones such as Y(FILTER) inside a recursive Map.
+  */
+class LetFloater extends ASTRewriter {
+
+  /** The number of variables introduced so far, used to name them */
+  private int count = 0;
+  /** Whether the program may compare closures */
+  private boolean closuresCompared;
+
+  private LetFloater(boolean cc) { closuresCompared = cc; }
+
+  /** Returns prog with the invariant subexpressions of its Map bodies hoisted where that is safe under ep. */
+  public static AST floatOut(AST prog, Interpreter.EvalPolicy ep) {
+    if (! ep.isNeed()) return prog;
+    return prog.accept(new LetFloater(prog.accept(Comparisons.ONLY)));
+  }
+
+  /** Returns true if exp is worth hoisting and its value can be shared: it is not atomic, and yields an int or a
+    * boolean (if it yields anything) unless the program never compares closures. */
+  private boolean hoistable(AST exp) {
+    if (exp instanceof Constant || exp instanceof PrimFun || exp instanceof LexicalVariable || exp instanceof Variable)
+      return false;
+    return ! closuresCompared || isFirstOrder(exp);
+  }
+
+  /** Returns true if the value of exp, if any, is an int or a boolean. */
+  static boolean isFirstOrder(AST exp) {
+    if (exp instanceof IntConstant || exp instanceof BoolConstant) return true;
+    if (exp instanceof UnOpApp || exp instanceof BinOpApp) return true;
+    if (exp instanceof If) return isFirstOrder(((If) exp).conseq()) && isFirstOrder(((If) exp).alt());
+    if (exp instanceof Let) return isFirstOrder(((Let) exp).body());
+    if (exp instanceof LetRec) return isFirstOrder(((LetRec) exp).body());
+    if (! (exp instanceof App)) return false;
+    AST p = ((App) exp).rator();
+    return p == FunctionPPrim.ONLY || p == NumberPPrim.ONLY || p == ListPPrim.ONLY || p == ConsPPrim.ONLY
+      || p == NullPPrim.ONLY || p == ArityPrim.ONLY;
+  }
+
+  /** Returns the number of frames between ast and the nearest frame outside ast that one of its variables refers to
+    * (Integer.MAX_VALUE if ast refers to none); an unresolved variable counts as referring to the nearest one. */
+  static int reach(AST ast) {
+    Reach r = new Reach();
+    ast.accept(r);
+    return r.reach;
+  }
+
+  /* ASTVisitor methods */
+
+  /** The rhs's of a LetRec must stay Maps, so the invariant subexpressions of their bodies that do not refer to the
+    * LetRec frame either are hoisted around the whole LetRec. */
+  public AST forLetRec(LetRec l) {
+    AST[] maps = l.exps();
+    int n = maps.length;
+    AST[] bodies = new AST[n];
+    AST body;
+    depth++;
+    try {
+      for (int i = 0; i < n; i++) bodies[i] = inFrame(((Map) maps[i]).body());
+      body = rewrite(l.body());
+    }
+    finally { depth--; }
+    Hoister h = new Hoister(2);
+    AST[] newMaps = new AST[n];
+    for (int i = 0; i < n; i++) newMaps[i] = new Map(((Map) maps[i]).vars(), h.rewrite(bodies[i]));
+    int k = h.exps.size();
+    if (k == 0) {
+      for (int i = 0; i < n; i++) newMaps[i] = new Map(((Map) maps[i]).vars(), bodies[i]);
+      return letRec(l.vars(), newMaps, body);
+    }
+    return let(h.vars.toArray(new Variable[k]), h.exps.toArray(new AST[k]),
+               letRec(l.vars(), newMaps, Shifter.shift(body, 1, 1)));
+  }
+
+  public AST forMap(Map m) {
+    AST body = inFrame(m.body());
+    Hoister h = new Hoister(1);
+    AST newBody = h.rewrite(body);
+    int n = h.exps.size();
+    if (n == 0) return new Map(m.vars(), body);
+    return let(h.vars.toArray(new Variable[n]), h.exps.toArray(new AST[n]), new Map(m.vars(), newBody));
+  }
+
+  /** Rewriter for a Map body (already rewritten) that replaces its maximal invariant subexpressions by variables
+    * bound in a frame around the Map (or around the LetRec binding it), collecting their hoisted versions.  Variables
+    * referring outside the Map (or LetRec) are moved under the new frame. */
+  private class Hoister extends ASTRewriter {
+    java.util.ArrayList<Variable> vars = new java.util.ArrayList<Variable>();
+    java.util.ArrayList<AST> exps = new java.util.ArrayList<AST>();
+    /** The number of frames the new frame goes around: 1 for a Map, 2 for a LetRec Map */
+    private int levels;
+
+    Hoister(int l) { levels = l; }
+
+    /* the Map frame is at depth depth from the visited node, and the new frame levels frames outside it */
+    AST rewrite(AST ast) {
+      if (! hoistable(ast) || reach(ast) < depth + levels) return ast.accept(this);
+      Variable v = new Variable("inv" + ++count);
+      vars.add(v);
+      exps.add(Shifter.shift(ast, -(depth + levels)));
+      return new LexicalVariable(v, depth + levels, exps.size() - 1);
+    }
+
+    public AST forLexicalVariable(LexicalVariable v) {
+      return (v.depth() >= depth + levels) ? new LexicalVariable(v.var(), v.depth() + 1, v.slot()) : v;
+    }
+
+    /** A definition left bound to a hoisted variable is substituted away. */
+    public AST forLet(Let l) { return Inliner.simplifyLet(l.vars(), rewriteAll(l.exps()), inFrame(l.body())); }
+
+    /** A LetRec rhs that is invariant stays in place, since it must be a Map. */
+    public AST forLetRec(LetRec l) {
+      depth++;
+      try { return letRec(l.vars(), rewriteBodies(l.exps()), rewrite(l.body())); }
+      finally { depth--; }
+    }
+  }
+
+  /** Visitor that computes reach (see LetFloater.reach) */
+  private static class Reach implements ASTVisitor<Void> {
+    int reach = Integer.MAX_VALUE;
+    private int depth = 0;
+
+    private Void visitAll(AST[] asts) {
+      for (AST a : asts) a.accept(this);
+      return null;
+    }
+
+    private void inFrame(AST body) {
+      depth++;
+      body.accept(this);
+      depth--;
+    }
+
+    /* ASTVisitor methods */
+    public Void forBoolConstant(BoolConstant b) { return null; }
+    public Void forIntConstant(IntConstant i) { return null; }
+    public Void forNullConstant(NullConstant n) { return null; }
+    public Void forPrimFun(PrimFun f) { return null; }
+    public Void forVariable(Variable v) {
+      reach = 0;
+      return null;
+    }
+    public Void forLexicalVariable(LexicalVariable v) {
+      if (v.depth() >= depth) reach = Math.min(reach, v.depth() - depth);
+      return null;
+    }
+    public Void forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Void forBinOpApp(BinOpApp b) {
+      b.arg1().accept(this);
+      return b.arg2().accept(this);
+    }
+    public Void forApp(App a) {
+      a.rator().accept(this);
+      return visitAll(a.args());
+    }
+    public Void forMap(Map m) {
+      inFrame(m.body());
+      return null;
+    }
+    public Void forIf(If i) {
+      i.test().accept(this);
+      i.conseq().accept(this);
+      return i.alt().accept(this);
+    }
+    public Void forLet(Let l) {
+      visitAll(l.exps());
+      inFrame(l.body());
+      return null;
+    }
+    public Void forLetRec(LetRec l) {
+      depth++;
+      visitAll(l.exps());
+      l.body().accept(this);
+      depth--;
+      return null;
+    }
+  }
+
+  /** Visitor that returns true if an AST holds a comparison (= or !=) that may compare closures: one whose operands
+    * are neither ints, booleans nor null */
+  private static class Comparisons implements ASTVisitor<Boolean> {
+    static final Comparisons ONLY = new Comparisons();
+    private Comparisons() {}
+
+    private Boolean any(AST... asts) {
+      for (AST a : asts) if (a.accept(this)) return true;
+      return false;
+    }
+
+    /** Returns true if a comparison with exp cannot tell closures apart. */
+    private static boolean blind(AST exp) { return exp instanceof NullConstant || isFirstOrder(exp); }
+
+    public Boolean forBoolConstant(BoolConstant b) { return false; }
+    public Boolean forIntConstant(IntConstant i) { return false; }
+    public Boolean forNullConstant(NullConstant n) { return false; }
+    public Boolean forPrimFun(PrimFun f) { return false; }
+    public Boolean forVariable(Variable v) { return false; }
+    public Boolean forLexicalVariable(LexicalVariable v) { return false; }
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Boolean forBinOpApp(BinOpApp b) {
+      boolean compares = b.rator() == OpEquals.ONLY || b.rator() == OpNotEquals.ONLY;
+      if (compares && ! blind(b.arg1()) && ! blind(b.arg2())) return true;
+      return any(b.arg1(), b.arg2());
+    }
+    public Boolean forApp(App a) { return a.rator().accept(this) || any(a.args()); }
+    public Boolean forMap(Map m) { return m.body().accept(this); }
+    public Boolean forIf(If i) { return any(i.test(), i.conseq(), i.alt()); }
+    public Boolean forLet(Let l) { return any(l.exps()) || l.body().accept(this); }
+    public Boolean forLetRec(LetRec l) { return any(l.exps()) || l.body().accept(this); }
+  }
+}
@@ -0,0 +1,77 @@
+/** Lexical addressing pass for Jam programs */
+
+/** Visitor that rebuilds a context-checked AST, replacing every bound Variable occurrence by a LexicalVariable carrying
+  * its (depth, slot) address.  Each Map and each Let or LetRec body introduces one frame; the rhs's of a Let are
+  * resolved in the enclosing scope because let is not recursive, and those of a LetRec in its own frame.  Variables
+  * that are not bound by any enclosing frame are left as plain Variables so that the evaluator reports them exactly as
+  * before.
+  */
+class LexicalAddresser implements ASTVisitor<AST> {
+
+  /** The static scope: the innermost frame (an array of bound Variables) comes first. */
+  private PureList<Variable[]> scope;
+
+  private LexicalAddresser(PureList<Variable[]> s) { scope = s; }
+
+  /** Returns the lexically addressed form of the closed program prog. */
+  public static AST resolve(AST prog) { return prog.accept(new LexicalAddresser(new Empty<Variable[]>())); }
+
+  /** Constructs the resolver for a scope extended by the frame vars. */
+  private LexicalAddresser extend(Variable[] vars) { return new LexicalAddresser(scope.cons(vars)); }
+
+  private AST[] resolveAll(AST[] asts) {
+    int n = asts.length;
+    AST[] result = new AST[n];
+    for (int i = 0; i < n; i++) result[i] = asts[i].accept(this);
+    return result;
+  }
+
+  /* ASTVisitor methods */
+  public AST forBoolConstant(BoolConstant b) { return b; }
+  public AST forIntConstant(IntConstant i) { return i; }
+  public AST forNullConstant(NullConstant n) { return n; }
+  public AST forPrimFun(PrimFun f) { return f; }
+
+  public AST forVariable(Variable v) {
+    int depth = 0;
+    PureList<Variable[]> s = scope;
+    while (s instanceof Cons) {
+      Variable[] frame = ((Cons<Variable[]>) s).first();
+      for (int i = 0; i < frame.length; i++)
+        if (frame[i] == v) return new LexicalVariable(v, depth, i);
+      depth++;
+      s = ((Cons<Variable[]>) s).rest();
+    }
+    return v;  // free variable; left for the evaluator to report
+  }
+
+  /** An already resolved occurrence keeps its address. */
+  public AST forLexicalVariable(LexicalVariable v) { return v; }
+
+  public AST forUnOpApp(UnOpApp u) { return new UnOpApp(u.rator(), u.arg().accept(this)); }
+
+  public AST forBinOpApp(BinOpApp b) { return new BinOpApp(b.rator(), b.arg1().accept(this), b.arg2().accept(this)); }
+
+  public AST forApp(App a) { return new App(a.rator().accept(this), resolveAll(a.args())); }
+
+  public AST forMap(Map m) { return new Map(m.vars(), m.body().accept(extend(m.vars()))); }
+
+  public AST forIf(If i) { return new If(i.test().accept(this), i.conseq().accept(this), i.alt().accept(this)); }
+
+  public AST forLet(Let l) {
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(this));
+    return new Let(newDefs, l.body().accept(extend(l.vars())));
+  }
+
+  public AST forLetRec(LetRec l) {
+    LexicalAddresser inner = extend(l.vars());
+    Def[] defs = l.defs();
+    int n = defs.length;
+    Def[] newDefs = new Def[n];
+    for (int i = 0; i < n; i++) newDefs[i] = new Def(defs[i].lhs(), defs[i].rhs().accept(inner));
+    return new LetRec(newDefs, l.body().accept(inner));
+  }
+}
@@ -0,0 +1,179 @@
+/** Fork-join parallel evaluation engine for Jam */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/** Engine that runs programs translated by a ClosureCompiler in parallel mode on a ForkJoinPool.  Under a strict
+  * argument policy, Jam expressions have no effects other than failing, so the arguments of a closure application,
+  * the operands of a binary operator, and the right hand sides of a let can be evaluated independently.  Where at
+  * least two of them are heavy (see isHeavy), the translation forks all but the first heavy one (in evaluation order)
+  * as tasks, evaluates the others in the current thread, and joins the tasks in evaluation order.  The operands of &
+  * and |, the branches of an if, and the arguments of primitives stay sequential.  At run time, a node forks only
+  * while the pool has few queued tasks (see shouldFork), so the tasks stay coarse enough to pay for themselves.
+  *
+  * Errors are reported as the sequential evaluator reports them: the results are consumed in evaluation order, so the
+  * error raised is the one raised by the first failing subexpression in that order, and checks on an operand (for
+  * instance that it is an int) happen before the result of the next one is consumed.  The tasks whose results are no
+  * longer needed after an error are cancelled; one that has already started runs to completion in the background,
+  * and its result is discarded.  Programs run under the lazy argument policies are evaluated sequentially by
+  * ClosureEngine.
+  */
+class ParallelEngine implements Interpreter.Engine {
+  public static final ParallelEngine ONLY = new ParallelEngine(ForkJoinPool.commonPool());
+
+  /** The largest number of queued tasks at which a node still forks */
+  static final int MAX_SURPLUS = 2;
+
+  private ForkJoinPool pool;
+
+  /** Constructs an engine running programs on pool. */
+  ParallelEngine(ForkJoinPool p) { pool = p; }
+
+  public JamVal run(AST prog, Interpreter.EvalPolicy ep) {
+    if (! ep.isStrict()) return ClosureEngine.ONLY.run(prog, ep);
+    return join(pool.invoke(new Eval(ClosureCompiler.compile(prog, ep, true), null)));
+  }
+  public String toString() { return "parallel"; }
+
+  /** Returns true if evaluating ast may apply a closure, which is the only way for it to take more than a few steps.
+    * The bodies of Maps are not counted, since evaluating a Map only builds a closure. */
+  static boolean isHeavy(AST ast) { return ast.accept(Heavy.ONLY); }
+
+  /** Returns true if the current thread should fork tasks: it is a worker of a pool that has few queued tasks. */
+  static boolean shouldFork() {
+    return ForkJoinTask.inForkJoinPool() && ForkJoinTask.getSurplusQueuedTaskCount() <= MAX_SURPLUS;
+  }
+
+  /** The evaluation of a node in an environment.  The exception it throws, if any, is kept rather than passed to the
+    * pool, which would rethrow a copy of it. */
+  static class Eval extends RecursiveTask<Eval> {
+    private static final long serialVersionUID = 7575367509943849064L;
+    private Node node;
+    private Frame env;
+    private JamVal value;
+    private Throwable failure;
+    Eval(Node n, Frame e) { node = n; env = e; }
+    protected Eval compute() {
+      try { value = node.eval(env); }
+      catch (RuntimeException e) { failure = e; }
+      catch (Error e) { failure = e; }
+      return this;
+    }
+  }
+
+  /** Returns the value computed by the completed task t, or throws the exception it raised. */
+  private static JamVal join(Eval t) {
+    if (t.failure instanceof RuntimeException) throw (RuntimeException) t.failure;
+    if (t.failure instanceof Error) throw (Error) t.failure;
+    return t.value;
+  }
+
+  /** Waits for the forked task t and returns its value, or throws the exception it raised. */
+  static JamVal joinTask(Eval t) { return join(t.join()); }
+
+  /** Cancels the tasks that have not completed. */
+  private static void cancel(Eval[] tasks) {
+    for (Eval t : tasks) if (t != null && ! t.isDone()) t.cancel(false);
+  }
+
+  /** Constructs the frame binding vars to the values of nodes in env on top of parent, evaluated last first as
+    * ClosureCompiler.bind does; the nodes marked in heavy, but the first one evaluated, are forked. */
+  static Frame bind(Variable[] vars, Node[] nodes, boolean[] heavy, Frame env, Frame parent) {
+    int n = nodes.length;
+    Object[] slots = new Object[n];
+    if (! shouldFork()) {
+      for (int i = n-1; i >= 0; i--) slots[i] = ClosureCompiler.valueSlot(nodes[i], env);
+      return new Frame(vars, slots, parent);
+    }
+    Eval[] tasks = new Eval[n];
+    boolean first = true;
+    for (int i = n-1; i >= 0; i--) {
+      if (! heavy[i]) continue;
+      if (first) first = false;
+      else (tasks[i] = new Eval(nodes[i], env)).fork();
+    }
+    try {
+      for (int i = n-1; i >= 0; i--)
+        slots[i] = (tasks[i] == null) ? ClosureCompiler.valueSlot(nodes[i], env) : joinTask(tasks[i]);
+    }
+    finally { cancel(tasks); }
+    return new Frame(vars, slots, parent);
+  }
+
+  /** The result of a forked task, consumed where the sequential translation evaluates the operand */
+  static class Joined extends Node {
+    private Eval task;
+    Joined(Eval t) { task = t; }
+    JamVal eval(Frame env) { return joinTask(task); }
+  }
+
+  /** Binary operator application whose second operand is forked while the first one is evaluated.  The operator is
+    * then applied by a sequential translation to the first value and the joined second one, so the checks and
+    * errors are those of seq. */
+  static class ForkBinOpNode extends Node {
+    private BinOp op;
+    private Node arg1, arg2;
+    /** The sequential translation, used when the pool is busy */
+    private Node seq;
+    ForkBinOpNode(BinOp o, Node a1, Node a2, Node s) { op = o; arg1 = a1; arg2 = a2; seq = s; }
+
+    JamVal eval(Frame env) {
+      if (! shouldFork()) return seq.eval(env);
+      Eval t = new Eval(arg2, env);
+      t.fork();
+      try {
+        JamVal v = arg1.eval(env);
+        return ClosureCompiler.binOp(op, new ClosureCompiler.Const(v), new Joined(t)).eval(env);
+      }
+      finally { cancel(new Eval[] { t }); }
+    }
+  }
+
+  /** Application of a computed rator whose heavy arguments are evaluated in parallel when it is a closure */
+  static class ForkAppNode extends ClosureCompiler.AppNode {
+    private boolean[] heavy;
+    ForkAppNode(ClosureCompiler c, App a, Node r, Node[] as, boolean[] h) {
+      super(c, a, r, as);
+      heavy = h;
+    }
+    Frame bindArgs(Map map, Node[] nodes, Frame env, Frame parent) {
+      return bind(map.vars(), nodes, heavy, env, parent);
+    }
+  }
+
+  /** Let whose heavy right hand sides are evaluated in parallel */
+  static class ForkLetNode extends Node {
+    private Variable[] vars;
+    private Node[] nodes;
+    private boolean[] heavy;
+    private Node body;
+    ForkLetNode(Variable[] v, Node[] n, boolean[] h, Node b) { vars = v; nodes = n; heavy = h; body = b; }
+    JamVal eval(Frame env) { return body.eval(bind(vars, nodes, heavy, env, env)); }
+  }
+
+  /** Visitor that computes isHeavy */
+  private static class Heavy implements ASTVisitor<Boolean> {
+    static final Heavy ONLY = new Heavy();
+    private Heavy() {}
+
+    private Boolean any(AST... asts) {
+      for (AST a : asts) if (a.accept(this)) return true;
+      return false;
+    }
+
+    public Boolean forBoolConstant(BoolConstant b) { return false; }
+    public Boolean forIntConstant(IntConstant i) { return false; }
+    public Boolean forNullConstant(NullConstant n) { return false; }
+    public Boolean forPrimFun(PrimFun f) { return false; }
+    public Boolean forVariable(Variable v) { return false; }
+    public Boolean forLexicalVariable(LexicalVariable v) { return false; }
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Boolean forBinOpApp(BinOpApp b) { return any(b.arg1(), b.arg2()); }
+    public Boolean forApp(App a) { return ! (a.rator() instanceof PrimFun) || any(a.args()); }
+    public Boolean forMap(Map m) { return false; }
+    public Boolean forIf(If i) { return any(i.test(), i.conseq(), i.alt()); }
+    public Boolean forLet(Let l) { return any(l.exps()) || l.body().accept(this); }
+    public Boolean forLetRec(LetRec l) { return l.body().accept(this); }
+  }
+}
@@ -0,0 +1,140 @@
+/** Parallel list primitives for Jam */
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** The implementation of the pmap and preduce primitives on a ForkJoinPool.
+  *
+  * pmap(f, l) is the list of the values of f applied to the elements of l, in order; preduce(f, z, l) is z if l is
+  * empty, and otherwise the elements of l combined by the binary function f, which must be associative since the
+  * grouping is unspecified.  Both walk the spine of l in the calling thread, then split the elements into ranges
+  * evaluated by pool tasks: each element is forced and passed to f by value, even under the lazy policies, and the
+  * results are built eagerly (they are equal to the lazy lists with the same elements).  Jam evaluation has no effects, so only the errors could tell the order of evaluation
+  * apart: the ranges are joined in list order, so pmap raises the error of the first failing element, as a
+  * sequential traversal would, and preduce that of the first failing range.
+  */
+class ParallelPrims {
+
+  /** The pool running the tasks */
+  static final ForkJoinPool pool = ForkJoinPool.commonPool();
+  /** The number of ranges per pool thread a list is split into */
+  static final int RANGES_PER_THREAD = 4;
+
+  /** Returns pmap(f, l), interpreting closure bodies with visitors of the class of ev. */
+  static JamList map(final JamFun f, JamList l, final EvalVisitor ev) {
+    final JamCons[] cells = cells(l);
+    final JamVal[] results = new JamVal[cells.length];
+    run(new Job(cells.length) {
+      JamVal leaf(int lo, int hi) {
+        for (int i = lo; i < hi; i++) results[i] = apply(f, ev, cells[i].first());
+        return null;
+      }
+      JamVal combine(JamVal a, JamVal b) { return null; }
+    });
+    JamList list = JamEmpty.ONLY;
+    for (int i = results.length - 1; i >= 0; i--) list = new JamCons(results[i], list);
+    return list;
+  }
+
+  /** Returns preduce(f, z, l), interpreting closure bodies with visitors of the class of ev. */
+  static JamVal reduce(final JamFun f, JamVal z, JamList l, final EvalVisitor ev) {
+    final JamCons[] cells = cells(l);
+    if (cells.length == 0) return z;
+    return run(new Job(cells.length) {
+      JamVal leaf(int lo, int hi) {
+        JamVal acc = cells[lo].first();
+        for (int i = lo + 1; i < hi; i++) acc = apply(f, ev, acc, cells[i].first());
+        return acc;
+      }
+      JamVal combine(JamVal a, JamVal b) { return apply(f, ev, a, b); }
+    });
+  }
+
+  /** Returns the value of f applied to args. */
+  static JamVal apply(JamFun f, EvalVisitor ev, JamVal... args) {
+    if (f instanceof PrimFun) return ((PrimFun) f).accept(new Interpreter.ValuePrimFunVisitor(args, ev));
+    JamClosure closure = (JamClosure) f;
+    Variable[] vars = closure.body().vars();
+    if (vars.length != args.length)
+      throw new EvalException("closure " + closure + " applied to " + args.length + " arguments");
+    return closure.call(new Frame(vars, args, closure.env()), ev);
+  }
+
+  /** Returns the cons cells of l, in order. */
+  private static JamCons[] cells(JamList l) {
+    ArrayList<JamCons> cells = new ArrayList<JamCons>();
+    while (l instanceof JamCons) {
+      JamCons c = (JamCons) l;
+      cells.add(c);
+      l = c.rest();
+    }
+    return cells.toArray(new JamCons[cells.size()]);
+  }
+
+  /** Evaluates all the elements of job in the pool and returns the value, or throws the exception raised. */
+  private static JamVal run(Job job) {
+    Range r = new Range(job, 0, job.size);
+    JamVal v = pool.invoke(r);
+    rethrow(r.failure);
+    return v;
+  }
+
+  private static void rethrow(Throwable t) {
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    if (t instanceof Error) throw (Error) t;
+  }
+
+  /** The evaluation of the elements of a list */
+  private abstract static class Job {
+    /** The number of elements, and the length of the ranges evaluated sequentially */
+    final int size, grain;
+    Job(int n) {
+      size = n;
+      grain = Math.max(1, n / (RANGES_PER_THREAD * pool.getParallelism()));
+    }
+    /** Evaluates the elements lo..hi-1 sequentially. */
+    abstract JamVal leaf(int lo, int hi);
+    /** Combines the values of two adjacent ranges. */
+    abstract JamVal combine(JamVal a, JamVal b);
+  }
+
+  /** The evaluation of the elements lo..hi-1 of a job: a range longer than the grain is split in two halves, the
+    * second one forked while the first one is evaluated.  The exception a task raises is kept rather than passed to
+    * the pool, which would rethrow a copy of it. */
+  private static class Range extends RecursiveTask<JamVal> {
+    private static final long serialVersionUID = -7426089472689235156L;
+    private Job job;
+    private int lo, hi;
+    private Throwable failure = null;
+
+    Range(Job j, int l, int h) { job = j; lo = l; hi = h; }
+
+    protected JamVal compute() {
+      try { return split(); }
+      catch (RuntimeException e) { failure = e; }
+      catch (Error e) { failure = e; }
+      return null;
+    }
+
+    private JamVal split() {
+      if (hi - lo <= job.grain) return job.leaf(lo, hi);
+      int mid = (lo + hi) >>> 1;
+      Range second = new Range(job, mid, hi);
+      second.fork();
+      JamVal a;
+      try { a = new Range(job, lo, mid).split(); }
+      catch (RuntimeException e) {
+        second.cancel(false);
+        throw e;
+      }
+      catch (Error e) {
+        second.cancel(false);
+        throw e;
+      }
+      JamVal b = second.join();
+      rethrow(second.failure);
+      return job.combine(a, b);
+    }
+  }
+}
@@ -62,7 +62,7 @@ class Lexer extends StreamTokenizer {
   public static final KeyWord THEN   = new KeyWord("then");
   public static final KeyWord ELSE   = new KeyWord("else");
   public static final KeyWord LET    = new KeyWord("let");
-//  public static final KeyWord LETREC = new KeyWord("letrec");   // Used to support letrec extension
+  public static final KeyWord LETREC = new KeyWord("letrec");   // Used to support letrec extension
   public static final KeyWord IN     = new KeyWord("in");
   public static final KeyWord MAP    = new KeyWord("map");
   public static final KeyWord TO     = new KeyWord("to");
@@ -161,7 +161,7 @@ class Lexer extends StreamTokenizer {
       
       case NUMBER:
         int value = (int) nval;
-        if (nval == (double) value) return new IntConstant(value);
+        if (nval == (double) value) return IntConstant.valueOf(value);
         throw new ParseException("The number " + nval + " is not a 32 bit integer");
       case WORD:
         Token regToken = wordTable.get(sval);
@@ -271,7 +271,7 @@ class Lexer extends StreamTokenizer {
     
     // Install primitive functions
     // <prim>  ::= number? | function? | list? | null? | cons? ref? | 
-    //             arity | cons | first | rest 
+    //             arity | cons | first | rest | pmap | preduce | future | touch
     
     wordTable.put("number?",   NumberPPrim.ONLY);
     wordTable.put("function?", FunctionPPrim.ONLY);
@@ -283,13 +283,18 @@ class Lexer extends StreamTokenizer {
     wordTable.put("cons",      ConsPrim.ONLY);
     wordTable.put("first",     FirstPrim.ONLY);
     wordTable.put("rest",      RestPrim.ONLY);
+    wordTable.put("pmap",      PMapPrim.ONLY);
+    wordTable.put("preduce",   PReducePrim.ONLY);
+    wordTable.put("future",    FuturePrim.ONLY);
+    wordTable.put("touch",     TouchPrim.ONLY);
     
     
-    // keywords: if then else let in map to := 
+    // keywords: if then else let letrec in map to := 
     wordTable.put("if",   Lexer.IF);
     wordTable.put("then", Lexer.THEN);
     wordTable.put("else", Lexer.ELSE);
     wordTable.put("let",  Lexer.LET);
+    wordTable.put("letrec", Lexer.LETREC);
     wordTable.put("in",   Lexer.IN);
     wordTable.put("map",  Lexer.MAP);
     wordTable.put("to",   Lexer.TO);
@@ -324,6 +329,7 @@ class Parser {
   /** Parses:
    *   <exp> :: = if <exp> then <exp> else <exp>
    *            | let <prop-def-list> in <exp>
+   *            | letrec <prop-def-list> in <exp>  // each rhs is a map
    *            | map <id-list> to <exp>
    *            | <term> { <biop> <term> }*  // (left associatively!)
    */
@@ -331,7 +337,7 @@ class Parser {
     Token token = in.readToken();
 
     if (token == Lexer.IF) return parseIf();
-//    if (token == Lexer.LETREC) return parseLetRec();  // supports addition of letrec
+    if (token == Lexer.LETREC) return parseLetRec();  // supports addition of letrec
     if (token == Lexer.LET) return parseLet();
     if (token == Lexer.MAP) return parseMap();
     
@@ -429,14 +435,14 @@ class Parser {
   }
   
   /* Supports the parsing of 'letrec' */
-//  /** Parses `letrec <prop-def-list> in <exp>' given that `letrec' has already been read. */
-//  private AST parseLetRec() {
-//    
-//    Def[] defs = parseDefs(true);
-//    // consumes `in'; true means each rhs must be a Map
-//    AST body = parseExp();
-//    return new LetRec(defs,body);
-//  }
+  /** Parses `letrec <prop-def-list> in <exp>' given that `letrec' has already been read. */
+  private AST parseLetRec() {
+    
+    Def[] defs = parseDefs(true);
+    // consumes `in'; true means each rhs must be a Map
+    AST body = parseExp();
+    return new LetRec(defs,body);
+  }
   
   /* Parses `map <id-list> to <exp>' given that `map' has already been read. */
   private AST parseMap() {
@@ -0,0 +1,94 @@
+/** Cache of compiled Jam programs */
+
+import java.util.LinkedHashMap;
+
+/** A bounded cache from program text to the CompiledProgram built from it (parsed, context checked, resolved, and
+  * optimized for the policies it has been run under), for servers that are sent the same programs over and over.
+  * Entries are keyed by the whole source text, so that programs whose hashes collide are kept apart; once the cache
+  * holds capacity programs, the least recently used one is evicted.  Programs that fail to parse or check are not
+  * cached: each get throws again.
+  *
+  * The programs are compiled with one HashConser store, so the programs sent share the nodes of their common parts
+  * (a prelude of library functions, say) in memory.  The store outlives the programs evicted, so once it holds more
+  * than STORE_LIMIT nodes a new one is started; the programs compiled with the old one keep their nodes.
+  *
+  * The cache can be shared by several threads.  A missing program is compiled outside the lock, so lookups of other
+  * programs do not wait for it; two threads missing the same program at once may both compile it, and the second
+  * one then returns the program cached by the first.
+  */
+class ProgramCache {
+
+  /** The default number of programs kept */
+  static final int DEFAULT_CAPACITY = 256;
+  /** The number of nodes past which the store is replaced */
+  static final int STORE_LIMIT = 1 << 20;
+
+  private final int capacity;
+  private final LinkedHashMap<String, CompiledProgram> programs;
+  private long hits = 0, misses = 0, evictions = 0;
+  /** The store the programs are interned in */
+  private HashConser store = new HashConser();
+
+  /** Constructs a cache holding at most DEFAULT_CAPACITY programs. */
+  ProgramCache() { this(DEFAULT_CAPACITY); }
+
+  /** Constructs a cache holding at most c programs. */
+  ProgramCache(int c) {
+    if (c < 1) throw new IllegalArgumentException("cache capacity " + c + " is not positive");
+    capacity = c;
+    programs = new LinkedHashMap<String, CompiledProgram>(16, 0.75f, true) {  // in access order
+      protected boolean removeEldestEntry(java.util.Map.Entry<String, CompiledProgram> eldest) {
+        if (size() <= capacity) return false;
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  /** Returns the compiled program for source, compiling it on a miss.  Throws a ParseException or SyntaxException if
+    * source is not a well formed program. */
+  CompiledProgram get(String source) {
+    synchronized (this) {
+      CompiledProgram prog = programs.get(source);
+      if (prog != null) {
+        hits++;
+        return prog;
+      }
+      misses++;
+      if (store.size() > STORE_LIMIT) store = new HashConser();
+    }
+    CompiledProgram prog = CompiledProgram.compile(source, store());
+    synchronized (this) {
+      CompiledProgram other = programs.get(source);
+      if (other != null) return other;
+      programs.put(source, prog);
+      return prog;
+    }
+  }
+
+  /** Returns the number of lookups that found their program in the cache. */
+  synchronized long hits() { return hits; }
+
+  /** Returns the number of lookups that compiled their program. */
+  synchronized long misses() { return misses; }
+
+  /** Returns the number of programs evicted to make room for others. */
+  synchronized long evictions() { return evictions; }
+
+  /** Returns the number of programs in the cache. */
+  synchronized int size() { return programs.size(); }
+
+  /** Returns the store the programs are interned in. */
+  synchronized HashConser store() { return store; }
+
+  /** Empties the cache and starts a new store; the counters are kept. */
+  synchronized void clear() {
+    programs.clear();
+    store = new HashConser();
+  }
+
+  public synchronized String toString() {
+    return "ProgramCache(" + programs.size() + "/" + capacity + " programs, " + hits + " hits, " + misses + " misses, "
+      + evictions + " evictions)";
+  }
+}
@@ -0,0 +1,632 @@
+/** Register machine for Jam: compiler to a flat int[] instruction stream and the VM that runs it */
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/** Engine that compiles programs to a VmProgram for the given policy and runs it. */
+class VmEngine implements Interpreter.Engine {
+  public static final VmEngine ONLY = new VmEngine();
+  private VmEngine() {}
+
+  public JamVal run(AST prog, Interpreter.EvalPolicy ep) { return VmCompiler.compile(prog, ep).run(); }
+  public String toString() { return "register"; }
+}
+
+/** A Jam program compiled to register machine code, together with the VM that runs it.
+  *
+  * The code of the whole program is one int[]: a sequence of blocks, each starting with its register count and
+  * followed by instructions, each an opcode and its operands.  Block 0 is the program; the other blocks are Map
+  * bodies and suspended expressions.  An activation of a block has its own registers (holding JamVals, or Suspensions
+  * built for frame slots and lazy cons fields) and runs in an environment of Frames, addressed by (depth, slot) as in
+  * the resolved AST.  Applications in tail position reuse the current activation.  Jump operands are absolute code
+  * positions.
+  *
+  * The pools hold only strings, so a VmProgram can be serialized and run again later; the Variables, Maps and block
+  * Nodes used at run time are rebuilt from them on first use. */
+class VmProgram implements Serializable {
+
+  /* the value computed from the class as first released, so that programs already serialized still load */
+  private static final long serialVersionUID = -990400587863056951L;
+
+  /* Instructions; d, s, a, b, f, first are registers */
+  static final int
+    INT = 0,      // d v         d := v
+    TRUE = 1,     // d
+    FALSE = 2,    // d
+    EMPTY = 3,    // d           d := null
+    PRIM = 4,     // d p         d := primitive p
+    LOAD = 5,     // d depth slot
+    UNBOUND = 6,  // k           variable names[k][0] is unbound
+    CHKINT = 7,   // s op        report a non-integer operand s of op
+    CHKBOOL = 8,  // s op        report a non-boolean operand s of op
+    NEG = 9, POS = 10, NOT = 11,  // d s
+    ADD = 12, SUB = 13, MUL = 14, DIV = 15, LT = 16, GT = 17, LE = 18, GE = 19, EQ = 20, NE = 21,  // d a b
+    AND = 22, OR = 23,  // only used as the op of CHKBOOL
+    BRF = 24,     // s L         if test: jump to L if s is false
+    JF = 25,      // s L         s is known to be boolean
+    JT = 26,      // s L
+    JMP = 27,     // L
+    MAP = 28,     // d b k       d := closure of block b with parameters names[k]
+    FRAME = 29,   // first n k   push a frame binding names[k] to first .. first+n-1
+    POPENV = 30,
+    SUSP = 31,    // d b         d := by-name suspension of block b
+    NSUSP = 32,   // d b         d := by-need suspension of block b
+    ARITY = 33,   // f n k       check that f can be applied to n arguments in application k
+    APPLY = 34,   // d f first n
+    TAPPLY = 35,  // f first n   apply in tail position
+    PRIMOP = 36,  // d p first n apply strict primitive p
+    CONS = 37,    // d a b
+    LCONS = 38,   // d a b       lazy cons of suspensions a and b
+    FIRST = 39, REST = 40,  // d s
+    PRIMERR = 41, // p n         primitive p applied to n arguments
+    RET = 42,     // s
+    RFRAME = 43,  // n k         push a frame binding names[k] to n empty slots
+    PATCH = 44,   // s i         slot i of the current frame := s
+    FWD = 45,     // d depth slot  d := contents of the slot, unforced
+    FUTURE = 46;  // d b         d := started future of block b (see Futures)
+
+  /** The operators named in error messages, indexed by opcode */
+  private static final Object[] OPERATORS = new Object[RET + 1];
+  static {
+    OPERATORS[NEG] = UnOpMinus.ONLY;  OPERATORS[POS] = UnOpPlus.ONLY;  OPERATORS[NOT] = OpNot.ONLY;
+    OPERATORS[ADD] = BinOpPlus.ONLY;  OPERATORS[SUB] = BinOpMinus.ONLY;  OPERATORS[MUL] = OpTimes.ONLY;
+    OPERATORS[DIV] = OpDivide.ONLY;  OPERATORS[LT] = OpLessThan.ONLY;  OPERATORS[GT] = OpGreaterThan.ONLY;
+    OPERATORS[LE] = OpLessThanEquals.ONLY;  OPERATORS[GE] = OpGreaterThanEquals.ONLY;
+    OPERATORS[EQ] = OpEquals.ONLY;  OPERATORS[NE] = OpNotEquals.ONLY;
+    OPERATORS[AND] = OpAnd.ONLY;  OPERATORS[OR] = OpOr.ONLY;
+  }
+
+  /** The primitives, indexed by the p operand of PRIM, PRIMOP and PRIMERR */
+  static final PrimFun[] PRIMS = { FunctionPPrim.ONLY, NumberPPrim.ONLY, ListPPrim.ONLY, ConsPPrim.ONLY, NullPPrim.ONLY,
+    ArityPrim.ONLY, ConsPrim.ONLY, FirstPrim.ONLY, RestPrim.ONLY, PMapPrim.ONLY, PReducePrim.ONLY,
+    FuturePrim.ONLY, TouchPrim.ONLY };
+  static final int CONS_PRIM = 6;
+
+  private int[] code;
+  /** Entry position of each block */
+  private int[] entries;
+  /** Variable names of Map parameter lists and let frames */
+  private String[][] names;
+  /** Text of the applications named in "not a valid function" errors; computed from apps when serialized */
+  private String[] texts;
+  /** Cons policy for primitives applied as values: the opcode SUSP, NSUSP, or CONS for by-value */
+  private int consMode;
+
+  private transient App[] apps;
+  private transient Variable[][] vars;
+  private transient Map[] maps;
+  private transient Node[] blocks;
+
+  VmProgram(int[] c, int[] e, String[][] n, App[] a, int cm) {
+    code = c;
+    entries = e;
+    names = n;
+    apps = a;
+    consMode = cm;
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    if (texts == null) {
+      texts = new String[apps.length];
+      for (int i = 0; i < apps.length; i++) texts[i] = apps[i].toString();
+    }
+    out.defaultWriteObject();
+  }
+
+  /** Builds the run-time objects described by the pools. */
+  private void link() {
+    int n = names.length;
+    Variable[][] vs = new Variable[n][];
+    Map[] ms = new Map[n];
+    for (int i = 0; i < n; i++) {
+      vs[i] = new Variable[names[i].length];
+      for (int j = 0; j < vs[i].length; j++) vs[i][j] = new Variable(names[i][j]);
+      ms[i] = new Map(vs[i], null);
+    }
+    Node[] bs = new Node[entries.length];
+    for (int i = 0; i < bs.length; i++) bs[i] = new Block(this, entries[i]);
+    vars = vs;
+    maps = ms;
+    blocks = bs;
+  }
+
+  /** Runs the program. */
+  JamVal run() {
+    if (blocks == null) link();
+    return run(entries[0], null);
+  }
+
+  /** The code of a block as a Node, so that suspensions and closures of blocks are NodeSuspensions and NodeClosures. */
+  private static class Block extends Node {
+    private VmProgram program;
+    private int entry;
+    Block(VmProgram p, int e) { program = p; entry = e; }
+    JamVal eval(Frame env) { return program.run(entry, env); }
+  }
+
+  private String text(int k) { return (apps != null) ? apps[k].toString() : texts[k]; }
+
+  private static JamVal force(Object slot) {
+    if (slot instanceof Interpreter.Suspension) return ((Interpreter.Suspension) slot).eval();
+    return (JamVal) slot;
+  }
+
+  private static int intArg(Object v, int op) { return Interpreter.ValueBinOpVisitor.intArg((JamVal) v, (BinOp) OPERATORS[op]); }
+
+  private static BoolConstant bool(boolean b) { return b ? BoolConstant.TRUE : BoolConstant.FALSE; }
+
+  /** Runs the block at entry in environment env. */
+  JamVal run(int entry, Frame env) {
+    int[] code = this.code;
+    Object[] regs = new Object[code[entry]];
+    int pc = entry + 1;
+    while (true) {
+      switch (code[pc]) {
+        case INT: regs[code[pc+1]] = IntConstant.valueOf(code[pc+2]); pc += 3; break;
+        case TRUE: regs[code[pc+1]] = BoolConstant.TRUE; pc += 2; break;
+        case FALSE: regs[code[pc+1]] = BoolConstant.FALSE; pc += 2; break;
+        case EMPTY: regs[code[pc+1]] = JamEmpty.ONLY; pc += 2; break;
+        case PRIM: regs[code[pc+1]] = PRIMS[code[pc+2]]; pc += 3; break;
+        case LOAD: regs[code[pc+1]] = env.up(code[pc+2]).value(code[pc+3]); pc += 4; break;
+        case FWD: regs[code[pc+1]] = env.up(code[pc+2]).slots[code[pc+3]]; pc += 4; break;
+        case UNBOUND: throw new EvalException("variable " + names[code[pc+1]][0] + " is unbound");
+        case CHKINT:
+          if (OPERATORS[code[pc+2]] instanceof BinOp) intArg(regs[code[pc+1]], code[pc+2]);
+          else Interpreter.StandardUnOpVisitor.intArg((JamVal) regs[code[pc+1]], (UnOp) OPERATORS[code[pc+2]]);
+          pc += 3;
+          break;
+        case CHKBOOL:
+          if (OPERATORS[code[pc+2]] instanceof BinOp)
+            Interpreter.ValueBinOpVisitor.boolArg((JamVal) regs[code[pc+1]], (BinOp) OPERATORS[code[pc+2]]);
+          else Interpreter.StandardUnOpVisitor.boolArg((JamVal) regs[code[pc+1]], (UnOp) OPERATORS[code[pc+2]]);
+          pc += 3;
+          break;
+        case NEG:
+          regs[code[pc+1]] =
+            IntConstant.valueOf(- Interpreter.StandardUnOpVisitor.intArg((JamVal) regs[code[pc+2]], UnOpMinus.ONLY).value());
+          pc += 3;
+          break;
+        case POS:
+          regs[code[pc+1]] = Interpreter.StandardUnOpVisitor.intArg((JamVal) regs[code[pc+2]], UnOpPlus.ONLY);
+          pc += 3;
+          break;
+        case NOT:
+          regs[code[pc+1]] = Interpreter.StandardUnOpVisitor.boolArg((JamVal) regs[code[pc+2]], OpNot.ONLY).not();
+          pc += 3;
+          break;
+        case ADD: regs[code[pc+1]] = IntConstant.valueOf(intArg(regs[code[pc+2]], ADD) + intArg(regs[code[pc+3]], ADD)); pc += 4; break;
+        case SUB: regs[code[pc+1]] = IntConstant.valueOf(intArg(regs[code[pc+2]], SUB) - intArg(regs[code[pc+3]], SUB)); pc += 4; break;
+        case MUL: regs[code[pc+1]] = IntConstant.valueOf(intArg(regs[code[pc+2]], MUL) * intArg(regs[code[pc+3]], MUL)); pc += 4; break;
+        case DIV: regs[code[pc+1]] = IntConstant.valueOf(intArg(regs[code[pc+2]], DIV) / intArg(regs[code[pc+3]], DIV)); pc += 4; break;
+        case LT: regs[code[pc+1]] = bool(intArg(regs[code[pc+2]], LT) < intArg(regs[code[pc+3]], LT)); pc += 4; break;
+        case GT: regs[code[pc+1]] = bool(intArg(regs[code[pc+2]], GT) > intArg(regs[code[pc+3]], GT)); pc += 4; break;
+        case LE: regs[code[pc+1]] = bool(intArg(regs[code[pc+2]], LE) <= intArg(regs[code[pc+3]], LE)); pc += 4; break;
+        case GE: regs[code[pc+1]] = bool(intArg(regs[code[pc+2]], GE) >= intArg(regs[code[pc+3]], GE)); pc += 4; break;
+        case EQ: regs[code[pc+1]] = bool(regs[code[pc+2]].equals(regs[code[pc+3]])); pc += 4; break;
+        case NE: regs[code[pc+1]] = bool(! regs[code[pc+2]].equals(regs[code[pc+3]])); pc += 4; break;
+        case BRF: {
+          Object t = regs[code[pc+1]];
+          if (! (t instanceof BoolConstant)) throw new EvalException("non Boolean " + t + " used as test in if");
+          pc = (t == BoolConstant.FALSE) ? code[pc+2] : pc + 3;
+          break;
+        }
+        case JF: pc = (regs[code[pc+1]] == BoolConstant.FALSE) ? code[pc+2] : pc + 3; break;
+        case JT: pc = (regs[code[pc+1]] == BoolConstant.TRUE) ? code[pc+2] : pc + 3; break;
+        case JMP: pc = code[pc+1]; break;
+        case MAP: regs[code[pc+1]] = new NodeClosure(maps[code[pc+3]], env, blocks[code[pc+2]]); pc += 4; break;
+        case FRAME: {
+          int first = code[pc+1];
+          env = new Frame(vars[code[pc+3]], Arrays.copyOfRange(regs, first, first + code[pc+2]), env);
+          pc += 4;
+          break;
+        }
+        case POPENV: env = env.parent(); pc += 1; break;
+        case RFRAME: env = new Frame(vars[code[pc+2]], new Object[code[pc+1]], env); pc += 3; break;
+        case PATCH: env.slots[code[pc+2]] = regs[code[pc+1]]; pc += 3; break;
+        case SUSP: regs[code[pc+1]] = new NodeSuspension(null, blocks[code[pc+2]], env); pc += 3; break;
+        case NSUSP:
+          regs[code[pc+1]] = SparkEngine.offer(new NodeNeedSuspension(null, blocks[code[pc+2]], env));
+          pc += 3;
+          break;
+        case FUTURE:
+          regs[code[pc+1]] = Futures.start(new NodeNeedSuspension(null, blocks[code[pc+2]], env));
+          pc += 3;
+          break;
+        case ARITY: {
+          Object f = regs[code[pc+1]];
+          int n = code[pc+2];
+          if (f instanceof JamClosure) {
+            if (((JamClosure) f).body().vars().length != n)
+              throw new EvalException("closure " + f + " applied to " + n + " arguments");
+          }
+          else if (! (f instanceof PrimFun))
+            throw new EvalException(f + " appears at head of application " + text(code[pc+3]) +
+                                    " but it is not a valid function");
+          pc += 4;
+          break;
+        }
+        case APPLY: {
+          int first = code[pc+3];
+          regs[code[pc+1]] = apply(regs[code[pc+2]], regs, first, code[pc+4]);
+          pc += 5;
+          break;
+        }
+        case TAPPLY: {
+          Object f = regs[code[pc+1]];
+          int first = code[pc+2], n = code[pc+3];
+          if (f instanceof NodeClosure && ((NodeClosure) f).code() instanceof Block
+                && ((Block) ((NodeClosure) f).code()).program == this) {
+            NodeClosure closure = (NodeClosure) f;
+            env = new Frame(closure.body().vars(), Arrays.copyOfRange(regs, first, first + n), closure.env());
+            entry = ((Block) closure.code()).entry;
+            if (regs.length < code[entry]) regs = new Object[code[entry]];
+            pc = entry + 1;
+            break;
+          }
+          return apply(f, regs, first, n);
+        }
+        case PRIMOP: {
+          int first = code[pc+3], n = code[pc+4];
+          JamVal[] vals = new JamVal[n];
+          for (int i = 0; i < n; i++) vals[i] = (JamVal) regs[first + i];
+          regs[code[pc+1]] = PRIMS[code[pc+2]].accept(new Interpreter.ValuePrimFunVisitor(vals));
+          pc += 5;
+          break;
+        }
+        case CONS:
+          regs[code[pc+1]] = Interpreter.ValuePrimFunVisitor.cons((JamVal) regs[code[pc+2]], (JamVal) regs[code[pc+3]]);
+          pc += 4;
+          break;
+        case LCONS:
+          regs[code[pc+1]] = new Interpreter.JamLazyCons((Interpreter.Suspension) regs[code[pc+2]],
+                                                         (Interpreter.Suspension) regs[code[pc+3]]);
+          pc += 4;
+          break;
+        case FIRST:
+          regs[code[pc+1]] = Interpreter.ValuePrimFunVisitor.consArg((JamVal) regs[code[pc+2]], "first").first();
+          pc += 3;
+          break;
+        case REST:
+          regs[code[pc+1]] = Interpreter.ValuePrimFunVisitor.consArg((JamVal) regs[code[pc+2]], "rest").rest();
+          pc += 3;
+          break;
+        case PRIMERR:
+          return Interpreter.ValuePrimFunVisitor.primFunError(PRIMS[code[pc+1]].toString(), code[pc+2]);
+        case RET: return (JamVal) regs[code[pc+1]];
+        default: throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+      }
+    }
+  }
+
+  /** Applies the function f, already checked by ARITY, to the n slots starting at regs[first]. */
+  private JamVal apply(Object f, Object[] regs, int first, int n) {
+    if (f instanceof NodeClosure) {
+      NodeClosure closure = (NodeClosure) f;
+      return closure.code().eval(new Frame(closure.body().vars(), Arrays.copyOfRange(regs, first, first + n),
+                                           closure.env()));
+    }
+    return applyPrim((PrimFun) f, regs, first, n);
+  }
+
+  /** Applies a primitive passed as a value.  Its arguments were bound as closure arguments are; a primitive forces
+    * the slots it needs from left to right, and cons builds a cons of the slots according to consMode. */
+  private JamVal applyPrim(PrimFun f, Object[] regs, int first, int n) {
+    if (f == ConsPrim.ONLY) {
+      if (n != 2) return Interpreter.ValuePrimFunVisitor.primFunError("cons", n);
+      if (consMode == CONS) {
+        JamVal v = force(regs[first]);
+        return Interpreter.ValuePrimFunVisitor.cons(v, force(regs[first+1]));
+      }
+      return new Interpreter.JamLazyCons(suspension(regs[first]), suspension(regs[first+1]));
+    }
+    if ((f == FirstPrim.ONLY || f == RestPrim.ONLY) && n > 0)
+      return f.accept(new Interpreter.ValuePrimFunVisitor(new JamVal[] { force(regs[first]) }));
+    JamVal[] vals = new JamVal[n];
+    for (int i = 0; i < n; i++) vals[i] = force(regs[first + i]);
+    return f.accept(new Interpreter.ValuePrimFunVisitor(vals));
+  }
+
+  /** Returns slot as a suspension for a lazy cons field. */
+  private static Interpreter.Suspension suspension(Object slot) {
+    if (slot instanceof Interpreter.Suspension) return (Interpreter.Suspension) slot;
+    return new NodeSuspension(null, new ClosureCompiler.Const((JamVal) slot), null);
+  }
+
+  /** Returns a listing of the code, one instruction per line. */
+  String disassemble() {
+    StringBuilder sb = new StringBuilder();
+    int[] lengths = { 3, 2, 2, 2, 3, 4, 2, 3, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 1, 1, 3, 3, 3, 2, 4, 4, 1,
+      3, 3, 4, 5, 4, 5, 4, 4, 3, 3, 3, 2, 3, 3, 4, 3 };
+    int block = 0;
+    for (int pc = 0; pc < code.length; ) {
+      if (block < entries.length && entries[block] == pc) {
+        sb.append("block ").append(block++).append(" (").append(code[pc++]).append(" registers)\n");
+        continue;
+      }
+      sb.append(pc).append(':');
+      for (int i = 0; i < lengths[code[pc]]; i++) sb.append(' ').append(code[pc + i]);
+      sb.append('\n');
+      pc += lengths[code[pc]];
+    }
+    return sb.toString();
+  }
+}
+
+/** Compiles a resolved AST into a VmProgram for a fixed EvalPolicy.  Each visit emits code leaving the value of its
+  * argument in register dest.  Evaluation order and errors match the FlexEvalVisitor, except that the arguments of a
+  * primitive passed as a value are bound as closure arguments are (see VmProgram.applyPrim). */
+class VmCompiler implements ASTVisitor<Void> {
+
+  private int[] code = new int[256];
+  private int pc = 0;
+  private ArrayList<Integer> entries = new ArrayList<Integer>();
+  private ArrayList<AST> bodies = new ArrayList<AST>();
+  private ArrayList<String[]> names = new ArrayList<String[]>();
+  private ArrayList<App> apps = new ArrayList<App>();
+
+  /** SUSP or NSUSP for lazy argument slots, or -1 for strict ones */
+  private int argMode;
+  /** CONS for by-value conses, otherwise SUSP or NSUSP for the fields */
+  private int consMode;
+
+  /* state of the block being compiled */
+  private int dest;
+  private boolean tail;
+  private int nextReg, maxReg;
+
+  private VmCompiler(Interpreter.EvalPolicy ep) {
+    argMode = ep.isStrict() ? -1 : (ep.isNeed() ? VmProgram.NSUSP : VmProgram.SUSP);
+    Interpreter.ConsEvalPolicy cp = ep.consPolicy();
+    if (cp == Interpreter.ConsEvalPolicyByValue.ONLY) consMode = VmProgram.CONS;
+    else if (cp == Interpreter.ConsEvalPolicyByName.ONLY) consMode = VmProgram.SUSP;
+    else consMode = VmProgram.NSUSP;
+  }
+
+  /** Returns the compiled form of the resolved program prog under ep. */
+  static VmProgram compile(AST prog, Interpreter.EvalPolicy ep) { return new VmCompiler(ep).compileProgram(prog); }
+
+  private VmProgram compileProgram(AST prog) {
+    block(prog);
+    for (int b = 0; b < bodies.size(); b++) compileBlock(b);
+    int[] es = new int[entries.size()];
+    for (int b = 0; b < es.length; b++) es[b] = entries.get(b);
+    return new VmProgram(Arrays.copyOf(code, pc), es, names.toArray(new String[0][]), apps.toArray(new App[0]),
+                         consMode);
+  }
+
+  /** Returns the number of a new block for body, compiled after the current one. */
+  private int block(AST body) {
+    bodies.add(body);
+    entries.add(-1);
+    return bodies.size() - 1;
+  }
+
+  private void compileBlock(int b) {
+    entries.set(b, pc);
+    int entry = pc;
+    emit(0);  // register count, patched below
+    nextReg = maxReg = 1;
+    compile(bodies.get(b), 0, true);
+    emit(VmProgram.RET, 0);
+    code[entry] = maxReg;
+  }
+
+  private void emit(int... words) {
+    if (pc + words.length > code.length) code = Arrays.copyOf(code, 2 * code.length + words.length);
+    for (int w : words) code[pc++] = w;
+  }
+
+  private int names(Variable[] vars) {
+    String[] ns = new String[vars.length];
+    for (int i = 0; i < ns.length; i++) ns[i] = vars[i].name();
+    names.add(ns);
+    return names.size() - 1;
+  }
+
+  /** Allocates n consecutive registers, returning the first. */
+  private int alloc(int n) {
+    int first = nextReg;
+    nextReg += n;
+    maxReg = Math.max(maxReg, nextReg);
+    return first;
+  }
+
+  /** Emits code for ast leaving its value in register d; t indicates tail position. */
+  private void compile(AST ast, int d, boolean t) {
+    int saveDest = dest, mark = nextReg;
+    boolean saveTail = tail;
+    dest = d;
+    tail = t;
+    ast.accept(this);
+    dest = saveDest;
+    tail = saveTail;
+    nextReg = mark;
+  }
+
+  /** Emits code leaving the slot contents for ast, as EvalPolicy.newSlot builds it, in register d. */
+  private void slot(AST ast, int d, int mode) {
+    if (mode == -1 || mode == VmProgram.CONS) compile(ast, d, false);
+    else emit(mode, d, block(ast));
+  }
+
+  /** Emits code leaving the contents of an argument or let slot for ast in register d; under lazy policies, the slots
+    * of atomic expressions are bound directly (see Interpreter.atomicSlot).  A future(e) slot, under any policy, holds
+    * the started future of e. */
+  private void argSlot(AST ast, int d) {
+    if (Futures.isFuture(ast)) emit(VmProgram.FUTURE, d, block(((App) ast).args()[0]));
+    else if (argMode == -1 || ! Interpreter.isAtomic(ast, argMode == VmProgram.NSUSP)) slot(ast, d, argMode);
+    else if (ast instanceof LexicalVariable)
+      emit(VmProgram.FWD, d, ((LexicalVariable) ast).depth(), ((LexicalVariable) ast).slot());
+    else compile(ast, d, false);
+  }
+
+  /** Returns true if evaluating ast cannot fail or diverge, so that the check of a preceding operand can be left to
+    * the operator instruction. */
+  private boolean isSimple(AST ast) {
+    return ast instanceof Constant || ast instanceof PrimFun || (ast instanceof LexicalVariable && argMode == -1);
+  }
+
+  private static int prim(PrimFun f) {
+    for (int p = 0; p < VmProgram.PRIMS.length; p++) if (VmProgram.PRIMS[p] == f) return p;
+    throw new IllegalArgumentException("unknown primitive " + f);
+  }
+
+  /* ASTVisitor methods */
+
+  public Void forBoolConstant(BoolConstant b) {
+    emit(b == BoolConstant.TRUE ? VmProgram.TRUE : VmProgram.FALSE, dest);
+    return null;
+  }
+
+  public Void forIntConstant(IntConstant i) {
+    emit(VmProgram.INT, dest, i.value());
+    return null;
+  }
+
+  public Void forNullConstant(NullConstant n) {
+    emit(VmProgram.EMPTY, dest);
+    return null;
+  }
+
+  public Void forPrimFun(PrimFun f) {
+    emit(VmProgram.PRIM, dest, prim(f));
+    return null;
+  }
+
+  public Void forVariable(Variable v) {
+    emit(VmProgram.UNBOUND, names(new Variable[] { v }));
+    return null;
+  }
+
+  public Void forLexicalVariable(LexicalVariable v) {
+    emit(VmProgram.LOAD, dest, v.depth(), v.slot());
+    return null;
+  }
+
+  public Void forUnOpApp(UnOpApp u) {
+    compile(u.arg(), dest, false);
+    UnOp op = u.rator();
+    emit(op == UnOpMinus.ONLY ? VmProgram.NEG : (op == UnOpPlus.ONLY ? VmProgram.POS : VmProgram.NOT), dest, dest);
+    return null;
+  }
+
+  public Void forBinOpApp(BinOpApp b) {
+    int op = b.rator().accept(OPCODE);
+    compile(b.arg1(), dest, false);
+    if (op == VmProgram.AND || op == VmProgram.OR) {
+      emit(VmProgram.CHKBOOL, dest, op);
+      int jump = pc;
+      emit(op == VmProgram.AND ? VmProgram.JF : VmProgram.JT, dest, -1);
+      compile(b.arg2(), dest, false);
+      emit(VmProgram.CHKBOOL, dest, op);
+      code[jump + 2] = pc;
+      return null;
+    }
+    if (op != VmProgram.EQ && op != VmProgram.NE && ! isSimple(b.arg2())) emit(VmProgram.CHKINT, dest, op);
+    int r = alloc(1);
+    compile(b.arg2(), r, false);
+    emit(op, dest, dest, r);
+    return null;
+  }
+
+  public Void forApp(App a) {
+    AST[] args = a.args();
+    int n = args.length;
+    if (a.rator() instanceof PrimFun) {
+      PrimFun f = (PrimFun) a.rator();
+      if (f == ConsPrim.ONLY) {
+        if (n != 2) emit(VmProgram.PRIMERR, prim(f), n);
+        else {
+          int first = alloc(2);
+          slot(args[0], first, consMode);
+          slot(args[1], first + 1, consMode);
+          emit(consMode == VmProgram.CONS ? VmProgram.CONS : VmProgram.LCONS, dest, first, first + 1);
+        }
+      }
+      else if (f == FirstPrim.ONLY || f == RestPrim.ONLY) {
+        if (n == 0) emit(VmProgram.PRIMERR, prim(f), n);
+        else {
+          compile(args[0], dest, false);
+          emit(f == FirstPrim.ONLY ? VmProgram.FIRST : VmProgram.REST, dest, dest);
+        }
+      }
+      else {
+        int first = alloc(n);
+        for (int i = 0; i < n; i++) compile(args[i], first + i, false);
+        emit(VmProgram.PRIMOP, dest, prim(f), first, n);
+      }
+      return null;
+    }
+    int f = alloc(1);
+    compile(a.rator(), f, false);
+    apps.add(a);
+    emit(VmProgram.ARITY, f, n, apps.size() - 1);
+    int first = alloc(n);
+    for (int i = n-1; i >= 0; i--) argSlot(args[i], first + i);
+    if (tail) emit(VmProgram.TAPPLY, f, first, n);
+    else emit(VmProgram.APPLY, dest, f, first, n);
+    return null;
+  }
+
+  public Void forMap(Map m) {
+    emit(VmProgram.MAP, dest, block(m.body()), names(m.vars()));
+    return null;
+  }
+
+  public Void forIf(If i) {
+    compile(i.test(), dest, false);
+    int branch = pc;
+    emit(VmProgram.BRF, dest, -1);
+    compile(i.conseq(), dest, tail);
+    int jump = pc;
+    emit(VmProgram.JMP, -1);
+    code[branch + 2] = pc;
+    compile(i.alt(), dest, tail);
+    code[jump + 1] = pc;
+    return null;
+  }
+
+  public Void forLet(Let l) {
+    AST[] exps = l.exps();
+    int n = exps.length;
+    int first = alloc(n);
+    for (int i = n-1; i >= 0; i--) argSlot(exps[i], first + i);
+    emit(VmProgram.FRAME, first, n, names(l.vars()));
+    compile(l.body(), dest, tail);
+    if (! tail) emit(VmProgram.POPENV);
+    return null;
+  }
+
+  /** The frame is pushed empty, then each slot is back-patched with the closure of its Map in that frame. */
+  public Void forLetRec(LetRec l) {
+    AST[] maps = l.exps();
+    emit(VmProgram.RFRAME, maps.length, names(l.vars()));
+    int r = alloc(1);
+    for (int i = 0; i < maps.length; i++) {
+      compile(maps[i], r, false);
+      emit(VmProgram.PATCH, r, i);
+    }
+    compile(l.body(), dest, tail);
+    if (! tail) emit(VmProgram.POPENV);
+    return null;
+  }
+
+  /** The instruction for each binary operator */
+  private static final BinOpVisitor<Integer> OPCODE = new BinOpVisitor<Integer>() {
+    public Integer forBinOpPlus(BinOpPlus op) { return VmProgram.ADD; }
+    public Integer forBinOpMinus(BinOpMinus op) { return VmProgram.SUB; }
+    public Integer forOpTimes(OpTimes op) { return VmProgram.MUL; }
+    public Integer forOpDivide(OpDivide op) { return VmProgram.DIV; }
+    public Integer forOpEquals(OpEquals op) { return VmProgram.EQ; }
+    public Integer forOpNotEquals(OpNotEquals op) { return VmProgram.NE; }
+    public Integer forOpLessThan(OpLessThan op) { return VmProgram.LT; }
+    public Integer forOpGreaterThan(OpGreaterThan op) { return VmProgram.GT; }
+    public Integer forOpLessThanEquals(OpLessThanEquals op) { return VmProgram.LE; }
+    public Integer forOpGreaterThanEquals(OpGreaterThanEquals op) { return VmProgram.GE; }
+    public Integer forOpAnd(OpAnd op) { return VmProgram.AND; }
+    public Integer forOpOr(OpOr op) { return VmProgram.OR; }
+  };
+}
@@ -0,0 +1,138 @@
+/** Speculative evaluation of by-need suspensions for Jam */
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Engine that runs programs on a base engine while worker threads speculatively evaluate the NeedSuspensions the
+  * program creates (its "sparks"), so the value of a by-need slot or lazy cons field is often remembered by the time
+  * it is demanded.  Speculation only uses spare capacity and never changes the outcome:
+  *  - a new suspension is handed to a worker only if one is idle (or the pool may still grow); otherwise it is not
+  *    sparked at all, so nothing queues behind speculation;
+  *  - the suspensions created by a spark are sparked in turn only up to maxDepth levels;
+  *  - a spark never waits for another thread, and the program never waits for a spark but takes its suspension over
+  *    (see NeedSuspension.claim), so speculation can neither deadlock nor delay the program;
+  *  - the failure of a spark is discarded, and the suspension is left to be evaluated on demand;
+  *  - a spark gives up at the next suspension it creates or forces once its run has returned or its suspension has
+  *    been evaluated by the program, so a spark that would not terminate does not outlive its run.  (One that loops
+  *    without touching suspensions keeps its worker until it overflows its stack; workers are daemon threads of
+  *    minimal priority.)
+  * Jam evaluation has no effects, so a value computed by a spark is the value the program would compute.  Only the
+  * by-need argument and cons policies create NeedSuspensions; programs run under the other policies are simply run
+  * by the base engine.
+  */
+class SparkEngine implements Interpreter.Engine {
+  public static final SparkEngine ONLY =
+    new SparkEngine(ClosureEngine.ONLY, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), 2);
+
+  /** Thrown on a spark thread to give the speculation up */
+  static final Abandoned ABANDONED = new Abandoned();
+
+  /** The number of runs in progress on spark engines; suspensions are offered only while it is positive */
+  private static final AtomicInteger active = new AtomicInteger();
+  /** The run in progress on the current (non-worker) thread */
+  private static final ThreadLocal<Run> current = new ThreadLocal<Run>();
+
+  private Interpreter.Engine base;
+  private int maxDepth;
+  private ThreadPoolExecutor workers;
+
+  /** Constructs an engine running programs on b with at most n spark threads and sparks nested d levels deep. */
+  SparkEngine(Interpreter.Engine b, int n, int d) {
+    base = b;
+    maxDepth = d;
+    ThreadFactory factory = new ThreadFactory() { public Thread newThread(Runnable r) { return new Worker(r); } };
+    /* a SynchronousQueue hands a spark over only to an idle (or new) worker; the others are discarded */
+    workers = new ThreadPoolExecutor(0, n, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), factory,
+                                     new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  public JamVal run(AST prog, Interpreter.EvalPolicy ep) {
+    if (! ep.isNeed() && ep.consPolicy() != Interpreter.ConsEvalPolicyByNeed.ONLY) return base.run(prog, ep);
+    Run run = new Run(this);
+    Run outer = current.get();
+    current.set(run);
+    active.incrementAndGet();
+    try { return base.run(prog, ep); }
+    finally {
+      run.finished = true;
+      active.decrementAndGet();
+      current.set(outer);
+    }
+  }
+  public String toString() { return "spark(" + base + ")"; }
+
+  /** Offers the new suspension s for speculation if the current thread takes part in a run of a spark engine, and
+    * returns s.  On a spark thread, first gives the speculation up if it is no longer useful. */
+  static <S extends Interpreter.NeedSuspension> S offer(S s) {
+    if (active.get() == 0) return s;
+    Thread t = Thread.currentThread();
+    Run run;
+    int depth = 0;
+    if (t instanceof Worker) {
+      checkCancelled();
+      run = ((Worker) t).run;
+      depth = ((Worker) t).depth;
+    }
+    else run = current.get();
+    if (run != null && depth < run.engine.maxDepth) run.engine.workers.execute(new Spark(s, run, depth + 1));
+    return s;
+  }
+
+  /** Throws ABANDONED if the spark in progress on the current worker thread is no longer useful: its run has
+    * returned or its suspension has been evaluated by another thread. */
+  static void checkCancelled() {
+    Worker w = (Worker) Thread.currentThread();
+    if (w.run != null && (w.run.finished || w.root.value() != null)) throw ABANDONED;
+  }
+
+  /** A run of a program on a spark engine */
+  private static class Run {
+    private SparkEngine engine;
+    private volatile boolean finished = false;
+    Run(SparkEngine e) { engine = e; }
+  }
+
+  /** A spark thread */
+  static class Worker extends Thread {
+    /** The run and suspension of the spark in progress, and its depth */
+    private Run run = null;
+    private Interpreter.NeedSuspension root = null;
+    private int depth = 0;
+
+    Worker(Runnable r) {
+      super(r, "jam-spark");
+      setDaemon(true);
+      setPriority(MIN_PRIORITY);
+    }
+  }
+
+  /** The speculative evaluation of a suspension on a worker */
+  private static class Spark implements Runnable {
+    private Interpreter.NeedSuspension susp;
+    private Run run;
+    private int depth;
+    Spark(Interpreter.NeedSuspension s, Run r, int d) { susp = s; run = r; depth = d; }
+
+    public void run() {
+      if (run.finished) return;
+      Worker w = (Worker) Thread.currentThread();
+      w.run = run;
+      w.root = susp;
+      w.depth = depth;
+      try { susp.speculate(); }
+      finally {
+        w.run = null;
+        w.root = null;
+      }
+    }
+  }
+
+  /** The exception that unwinds an abandoned speculation; it carries no stack trace. */
+  static class Abandoned extends RuntimeException {
+    private static final long serialVersionUID = -7213583191544587816L;
+    private Abandoned() { super("speculation abandoned", null, false, false); }
+  }
+}
@@ -0,0 +1,193 @@
+/** Strictness analysis for Jam programs under call-by-need */
+
+/** Rewriter that marks the Map parameters and Let definitions whose slots can be evaluated when the frame is built
+  * instead of being suspended.  Under call-by-need, building a suspension has no effect and a slot is evaluated at most
+  * once, so a slot can be evaluated early without changing the result, termination, or the error reported only if the
+  * frame body starts by forcing it: that is, if the body's first step that might fail or diverge is forcing that
+  * slot.  A slot forced by the operand of a check that then fails still counts, since the body forces it first.  The analysis
+  * follows the body in evaluation order, collecting the slots it forces, up to its first step that might fail or
+  * diverge otherwise (an operator applied to operands of unknown type, an if, a call of a closure, and so on).  Slots
+  * are built last first, so the collected slots are kept while each is to the left of the one before it.  Reading a
+  * slot that already holds a value (a strict slot, or a definition whose rhs is a constant, primitive, or Map) counts as
+  * a step that cannot fail.
+  *
+  * The marks are hints: an engine that ignores them and suspends every slot computes the same results.  Under the
+  * call-by-value policies there is nothing to do.  Under call-by-name the pass does nothing either: a by-name slot is
+  * evaluated again at each use, and each evaluation of an expression yielding a closure builds a new one, which
+  * evaluating the slot once would make identical (closures are compared by identity).  Rewriting a marked AST with another pass drops its marks, so this
+  * pass runs last; it keeps the unused marks of the Maps, since it adds no uses.
+  */
+class StrictnessAnalyzer extends ASTRewriter {
+
+  /** For each enclosing frame, innermost first, the slots that hold values */
+  private PureList<boolean[]> scope = new Empty<boolean[]>();
+  /** Whether cons suspends its arguments */
+  private boolean lazyCons;
+
+  private StrictnessAnalyzer(boolean lc) { lazyCons = lc; }
+
+  /** Returns prog with the slots that can be evaluated early under ep marked as strict. */
+  public static AST analyze(AST prog, Interpreter.EvalPolicy ep) {
+    if (! ep.isNeed()) return prog;
+    return prog.accept(new StrictnessAnalyzer(ep.consPolicy() != Interpreter.ConsEvalPolicyByValue.ONLY));
+  }
+
+  /** Rewrites body, which runs in a frame whose slots marked in values hold values. */
+  private AST inFrame(AST body, boolean[] values) {
+    PureList<boolean[]> saved = scope;
+    scope = scope.cons(values);
+    try { return inFrame(body); }
+    finally { scope = saved; }
+  }
+
+  /** Returns the strict slots of a frame with the slots marked in values holding values, for its body. */
+  private boolean[] strictSlots(AST body, boolean[] values) {
+    Forcing f = new Forcing(scope.cons(values), values.length);
+    body.accept(f);
+    return f.forced;
+  }
+
+  private static boolean[] orNull(boolean[] strict) {
+    for (boolean b : strict) if (b) return strict;
+    return null;
+  }
+
+  /* ASTVisitor methods */
+
+  public AST forMap(Map m) {
+    boolean[] strict = strictSlots(m.body(), new boolean[m.vars().length]);
+    return new Map(m.vars(), inFrame(m.body(), strict), orNull(strict), m.unused());
+  }
+
+  public AST forLet(Let l) {
+    AST[] exps = rewriteAll(l.exps());
+    int n = exps.length;
+    boolean[] values = new boolean[n];
+    for (int i = 0; i < n; i++) values[i] = exps[i] instanceof Constant || exps[i] instanceof PrimFun || exps[i] instanceof Map;
+    boolean[] strict = strictSlots(l.body(), values);
+    boolean[] slots = new boolean[n];
+    for (int i = 0; i < n; i++) slots[i] = values[i] || strict[i];
+    Def[] defs = new Def[n];
+    for (int i = 0; i < n; i++) defs[i] = new Def(l.vars()[i], exps[i]);
+    return new Let(defs, inFrame(l.body(), slots), orNull(strict));
+  }
+
+  /** The slots of a LetRec hold closures. */
+  public AST forLetRec(LetRec l) {
+    boolean[] values = new boolean[l.vars().length];
+    java.util.Arrays.fill(values, true);
+    PureList<boolean[]> saved = scope;
+    scope = scope.cons(values);
+    depth++;
+    try { return letRec(l.vars(), rewriteAll(l.exps()), rewrite(l.body())); }
+    finally {
+      depth--;
+      scope = saved;
+    }
+  }
+
+  /** Visitor that follows the evaluation of the body of a frame, marking in forced the slots of that frame it forces,
+    * and returns false at the first step that might fail or diverge otherwise (after which nothing is marked). */
+  private class Forcing implements ASTVisitor<Boolean> {
+    /** For each frame enclosing the visited node, innermost first, the slots that hold values */
+    private PureList<boolean[]> frames;
+    /** The frames entered below the body being analyzed */
+    private int depth = 0;
+    boolean[] forced;
+    /** The slot forced last, which the next one must precede */
+    private int last;
+
+    Forcing(PureList<boolean[]> f, int n) {
+      frames = f;
+      forced = new boolean[n];
+      last = n;
+    }
+
+    private boolean holdsValue(LexicalVariable v) {
+      PureList<boolean[]> f = frames;
+      for (int i = v.depth(); i > 0 && f instanceof Cons; i--) f = ((Cons<boolean[]>) f).rest();
+      if (! (f instanceof Cons)) return false;
+      boolean[] slots = ((Cons<boolean[]>) f).first();
+      return v.slot() < slots.length && slots[v.slot()];
+    }
+
+    public Boolean forBoolConstant(BoolConstant b) { return true; }
+    public Boolean forIntConstant(IntConstant i) { return true; }
+    public Boolean forNullConstant(NullConstant n) { return true; }
+    public Boolean forPrimFun(PrimFun f) { return true; }
+    public Boolean forMap(Map m) { return true; }
+    public Boolean forVariable(Variable v) { return false; }
+
+    public Boolean forLexicalVariable(LexicalVariable v) {
+      if (v.depth() == depth && ! holdsValue(v)) {
+        int s = v.slot();
+        if (forced[s]) return true;
+        if (s > last) return false;
+        forced[s] = true;
+        last = s;
+        return true;
+      }
+      return holdsValue(v);
+    }
+
+    /** The operator checks its operand, which may fail unless it is a constant. */
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this) && u.arg() instanceof Constant; }
+
+    public Boolean forBinOpApp(BinOpApp b) {
+      BinOp op = b.rator();
+      if (! b.arg1().accept(this)) return false;
+      /* comparing a value with a constant forces no lazy cons fields */
+      if (op == OpEquals.ONLY || op == OpNotEquals.ONLY)
+        return b.arg2().accept(this) && (b.arg1() instanceof Constant || b.arg2() instanceof Constant);
+      if (op == OpAnd.ONLY || op == OpOr.ONLY || ! (b.arg1() instanceof IntConstant)) return false;
+      return b.arg2().accept(this) && b.arg2() instanceof IntConstant && op != OpDivide.ONLY;
+    }
+
+    public Boolean forApp(App a) {
+      AST[] args = a.args();
+      if (a.rator() instanceof PrimFun) {
+        PrimFun p = (PrimFun) a.rator();
+        if (p == ConsPrim.ONLY && (args.length != 2 || lazyCons)) return args.length == 2;  // arity checked first
+        boolean predicate = p == FunctionPPrim.ONLY || p == NumberPPrim.ONLY || p == ListPPrim.ONLY ||
+          p == ConsPPrim.ONLY || p == NullPPrim.ONLY;
+        if (args.length == 0) return false;
+        return args[0].accept(this) && predicate && args.length == 1;
+      }
+      a.rator().accept(this);
+      return false;  // the closure body is unknown
+    }
+
+    public Boolean forIf(If i) {
+      i.test().accept(this);
+      return false;
+    }
+
+    /** The rhs's are suspended; the definitions of constants, primitives, and Maps hold values. */
+    public Boolean forLet(Let l) {
+      AST[] exps = l.exps();
+      boolean[] values = new boolean[exps.length];
+      for (int i = 0; i < exps.length; i++)
+        values[i] = exps[i] instanceof Constant || exps[i] instanceof PrimFun || exps[i] instanceof Map;
+      PureList<boolean[]> saved = frames;
+      frames = frames.cons(values);
+      depth++;
+      boolean result = l.body().accept(this);
+      depth--;
+      frames = saved;
+      return result;
+    }
+
+    /** The rhs's are Maps, whose closures fill the slots without evaluating anything. */
+    public Boolean forLetRec(LetRec l) {
+      boolean[] values = new boolean[l.vars().length];
+      java.util.Arrays.fill(values, true);
+      PureList<boolean[]> saved = frames;
+      frames = frames.cons(values);
+      depth++;
+      boolean result = l.body().accept(this);
+      depth--;
+      frames = saved;
+      return result;
+    }
+  }
+}
@@ -26,6 +26,19 @@ class IntConstant implements Token, Constant, JamVal {
   IntConstant(int i) { value = i; }
   // duplicates can occur!
   
+  /** Shared instances of the small integers, which make up most of the values computed by Jam programs */
+  private static final int MIN_CACHED = -128, MAX_CACHED = 1023;
+  private static final IntConstant[] CACHE = new IntConstant[MAX_CACHED - MIN_CACHED + 1];
+  static {
+    for (int i = 0; i < CACHE.length; i++) CACHE[i] = new IntConstant(MIN_CACHED + i);
+  }
+  
+  /** A factory method that returns an IntConstant for i, shared with other uses of i if i is small. */
+  public static IntConstant valueOf(int i) {
+    if (i >= MIN_CACHED && i <= MAX_CACHED) return CACHE[i - MIN_CACHED];
+    return new IntConstant(i);
+  }
+  
   public int value() { return value; }
   
   public <ResType> ResType accept(ASTVisitor<ResType> v) { return v.forIntConstant(this); }
@@ -64,7 +77,7 @@ class BoolConstant implements Token, Constant, JamVal {
   public String toString() { return String.valueOf(value); }
 }
 
-/* Immutable List and Binding Classes */
+/* Immutable List and Environment Classes */
 
 /** Interface for all Pure Lists.
   * PureList<ElemType> := Empty<ElemType> | Cons<ElemType>
@@ -119,15 +132,36 @@ class Cons<ElemType> extends PureListClass<ElemType> {
   public ElemType first() { return first; }
   public PureList<ElemType> rest() { return rest; }
   
+  /* equals and the toString methods use first() and rest() rather than the fields so that lazy subclasses compute 
+   * their elements on demand; they iterate along the list so that long lists do not exhaust the Java stack.  Eager and
+   * lazy JamConses with equal elements are equal, since a program can hold both (pmap builds eager ones). */
+  
   public boolean equals(Object other) { 
-    if (other == null || this.getClass() != other.getClass()) return false;
-    Cons otherCons = (Cons) other;
-    return first.equals(otherCons.first) && rest.equals(otherCons.rest);
+    Object l = this;
+    while (l instanceof Cons) {
+      if (other == null || (l.getClass() != other.getClass() && ! (l instanceof JamCons && other instanceof JamCons)))
+        return false;
+      Cons<?> lCons = (Cons<?>) l;
+      Cons<?> otherCons = (Cons<?>) other;
+      if (! lCons.first().equals(otherCons.first())) return false;
+      l = lCons.rest();
+      other = otherCons.rest();
+    }
+    return l.equals(other);
   }
   
-  public String toString() { return "(" + first + rest.toStringHelp() + ")"; }
+  public String toString() { return "(" + first() + rest().toStringHelp() + ")"; }
   
-  public String toStringHelp() { return " " + first + rest.toStringHelp(); }
+  public String toStringHelp() { 
+    StringBuffer result = new StringBuffer();
+    PureList<ElemType> l = this;
+    while (l instanceof Cons) {
+      Cons<ElemType> c = (Cons<ElemType>) l;
+      result.append(" ").append(c.first());
+      l = c.rest();
+    }
+    return result.toString();
+  }
 }
 
 /** The Jam List class representing JamVals that are PureLists. 
@@ -160,15 +194,34 @@ class JamCons extends Cons<JamVal> implements JamList {
   public JamList rest() { return (JamList) super.rest(); }
 }
 
-/** The basic Jam Binding class. Can be extended to support lazy (CBN) bindings. */
-abstract class Binding {
-  Variable var;
-  JamVal value;
-  Binding(Variable v, JamVal jv) { 
-    var = v; value = jv;
+/** An environment frame holding the slots bound by one Map application or Let, together with a pointer to the
+  * enclosing frame.  Each slot holds either a JamVal or an Interpreter.Suspension that computes one.  The vars array is
+  * shared with the Map or Let that created the frame; it is only consulted for lookups of unresolved Variables.  The
+  * empty (top-level) environment is represented by null. */
+class Frame {
+  private Variable[] vars;
+  Object[] slots;
+  private Frame parent;
+  
+  Frame(Variable[] v, Object[] s, Frame p) { vars = v; slots = s; parent = p; }
+  public Variable[] vars() { return vars; }
+  public Frame parent() { return parent; }
+  
+  /** Returns the frame depth levels out from this one. */
+  public Frame up(int depth) {
+    Frame f = this;
+    for (int i = depth; i > 0; i--) f = f.parent;
+    return f;
+  }
+  
+  /** Returns the value in slot i, evaluating it if the slot holds a suspension. */
+  public JamVal value(int i) {
+    Object s = slots[i];
+    if (s instanceof Interpreter.Suspension) return ((Interpreter.Suspension) s).eval();
+    return (JamVal) s;
   }
-  public Variable var() { return var; }
-  public JamVal value() { return value; }
+  
+  public String toString() { return "[" + ToString.toString(vars, ", ") + "] :: " + parent; }
 }
 
 /* Other JamVal classes */
@@ -190,17 +243,21 @@ interface JamFunVisitor<ResType> {
 /** The class representing a Jam Closure. */
 class JamClosure extends JamFun {
   private Map body;
-  private PureList<Binding> env;
+  private Frame env;
   
-  JamClosure(Map b, PureList<Binding> e) { body = b; env = e; }
+  JamClosure(Map b, Frame e) { body = b; env = e; }
   Map body() { return body; }
-  PureList<Binding> env() { return env; }
+  Frame env() { return env; }
   public <ResType> ResType accept(JamFunVisitor<ResType> jfv) { return jfv.forJamClosure(this); }
+  
+  /** Evaluates the body in e, a frame binding the parameters, with a visitor of the class of ev; closures whose body
+    * is translated run their own code instead. */
+  JamVal call(Frame e, EvalVisitor ev) { return body.body().accept(ev.newVisitor(e)); }
 }
 
 /** The class representing a Jam Primitive Function. 
   * PrimFun := FunctionPPrim | NumberPPrim | ListPPrim | ConsPPrim | NullPPrim | 
-  *            ArityPrim | ConsPrim | FirstPrim | RestPrim 
+  *            ArityPrim | ConsPrim | FirstPrim | RestPrim | PMapPrim | PReducePrim | FuturePrim | TouchPrim
   */
 abstract class PrimFun extends JamFun implements Token, Term {
   private String name;
@@ -230,6 +287,10 @@ interface PrimFunVisitor<ResType> {
   ResType forConsPrim();
   ResType forFirstPrim();
   ResType forRestPrim();
+  ResType forPMapPrim();
+  ResType forPReducePrim();
+  ResType forFuturePrim();
+  ResType forTouchPrim();
 }
 
 /* The singleton Classes Representing Primitive Function Values */
@@ -294,6 +355,32 @@ class RestPrim extends PrimFun {
   private RestPrim() { super("rest"); }
   public <ResType> ResType accept(PrimFunVisitor<ResType> pfv) { return pfv.forRestPrim(); }
 }
+/** A singleton class representing the primitive operation 'pmap', which maps a function over a list in parallel. */
+class PMapPrim extends PrimFun {
+  public static final PMapPrim ONLY = new PMapPrim();
+  private PMapPrim() { super("pmap"); }
+  public <ResType> ResType accept(PrimFunVisitor<ResType> pfv) { return pfv.forPMapPrim(); }
+}
+/** A singleton class representing the primitive operation 'preduce', which combines the elements of a list by an
+  * associative function in parallel. */
+class PReducePrim extends PrimFun {
+  public static final PReducePrim ONLY = new PReducePrim();
+  private PReducePrim() { super("preduce"); }
+  public <ResType> ResType accept(PrimFunVisitor<ResType> pfv) { return pfv.forPReducePrim(); }
+}
+/** A singleton class representing the primitive operation 'future'; bound in place by a let or closure application,
+  * future(e) starts evaluating e in parallel (see Futures), and elsewhere it is the identity. */
+class FuturePrim extends PrimFun {
+  public static final FuturePrim ONLY = new FuturePrim();
+  private FuturePrim() { super("future"); }
+  public <ResType> ResType accept(PrimFunVisitor<ResType> pfv) { return pfv.forFuturePrim(); }
+}
+/** A singleton class representing the primitive operation 'touch', which waits for the value of a future. */
+class TouchPrim extends PrimFun {
+  public static final TouchPrim ONLY = new TouchPrim();
+  private TouchPrim() { super("touch"); }
+  public <ResType> ResType accept(PrimFunVisitor<ResType> pfv) { return pfv.forTouchPrim(); }
+}
 
 /* The Jam Token classes */
 
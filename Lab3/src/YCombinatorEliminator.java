@@ -0,0 +1,170 @@
+/** Y combinator elimination for Jam programs */
+
+/** Rewriter that turns applications of a Y combinator to a functional (map self to map args to ...) into LetRecs
+  * binding self to the inner Map, so the recursive calls go straight to one closure instead of re-applying g(g),
+  * which allocates fresh closures (and suspensions) at each level.  A Y combinator is recognized in either of its
+  * usual forms,
+  *   map f to let g := map x to f(x(x)); in g(g)
+  *   map f to let g := map x to f(map z1,...,zn to (x(x))(z1,...,zn)); in g(g)
+  * where the second (eta expanded) form only matches a functional whose inner Map takes n parameters; the first form
+  * diverges when arguments are evaluated eagerly, so it only matches under the lazy argument policies.  The Y and the
+  * functional are either written in place or bound to variables by Lets.  Applications that do not match are left
+  * unchanged, and the bindings left unused are dropped later by DeadCodeEliminator.
+  *
+  * Since every piece of the pattern is a Map, applying Y to the functional cannot fail, and the LetRec yields a
+  * closure that behaves as the one Y returns, provided self is only ever called: each use of self as a value in the
+  * original program is a different closure (Y builds a new one at each level), while the LetRec binds a single one,
+  * and closures are compared by identity.  So a functional whose self escapes (is returned, passed, bound or
+  * compared rather than applied) is left unchanged.  The pass runs before Inliner, which would otherwise inline the small
+  * Y Map and hide the pattern.
+  */
+class YCombinatorEliminator extends ASTRewriter {
+
+  /** Whether the arguments of applications are evaluated before the call */
+  private boolean strict;
+  /** For each enclosing frame, innermost first, the Maps bound to its slots by a Let (null for other slots) */
+  private PureList<Map[]> scope = new Empty<Map[]>();
+
+  private YCombinatorEliminator(boolean s) { strict = s; }
+
+  /** Returns prog with the applications of Y combinators that can be matched under ep turned into LetRecs. */
+  public static AST eliminate(AST prog, Interpreter.EvalPolicy ep) {
+    return prog.accept(new YCombinatorEliminator(ep.isStrict()));
+  }
+
+  /** Returns the Map exp is or is known to be bound to, or null; depth holds the number of frames between the site of
+    * exp and the scope where the Map was written, minus one (-1 if the Map is written in place). */
+  private Map known(AST exp, int[] depth) {
+    if (exp instanceof Map) {
+      depth[0] = -1;
+      return (Map) exp;
+    }
+    if (! (exp instanceof LexicalVariable)) return null;
+    LexicalVariable v = (LexicalVariable) exp;
+    PureList<Map[]> s = scope;
+    for (int i = v.depth(); i > 0 && s instanceof Cons; i--) s = ((Cons<Map[]>) s).rest();
+    if (! (s instanceof Cons)) return null;
+    Map[] frame = ((Cons<Map[]>) s).first();
+    depth[0] = v.depth();
+    return (v.slot() < frame.length) ? frame[v.slot()] : null;
+  }
+
+  /** Rewrites body, which runs in a frame binding the Maps in known. */
+  private AST inFrame(AST body, Map[] known) {
+    PureList<Map[]> saved = scope;
+    scope = scope.cons(known);
+    try { return inFrame(body); }
+    finally { scope = saved; }
+  }
+
+  /** Returns true if ast is the variable at (depth, slot). */
+  private static boolean isVar(AST ast, int depth, int slot) {
+    return ast instanceof LexicalVariable && ((LexicalVariable) ast).depth() == depth
+      && ((LexicalVariable) ast).slot() == slot;
+  }
+
+  /** Returns true if ast is the self application x(x) of the variable at (depth, 0). */
+  private static boolean isSelfApp(AST ast, int depth) {
+    if (! (ast instanceof App)) return false;
+    App a = (App) ast;
+    return isVar(a.rator(), depth, 0) && a.args().length == 1 && isVar(a.args()[0], depth, 0);
+  }
+
+  /** Returns true if y is a Y combinator whose fixed points can be taken for functionals whose inner Map takes arity
+    * parameters. */
+  private boolean isY(Map y, int arity) {
+    if (y.vars().length != 1 || ! (y.body() instanceof Let)) return false;
+    Let l = (Let) y.body();
+    if (l.exps().length != 1 || ! isSelfApp(l.body(), 0) || ! (l.exps()[0] instanceof Map)) return false;
+    Map g = (Map) l.exps()[0];
+    if (g.vars().length != 1 || ! (g.body() instanceof App)) return false;
+    App body = (App) g.body();
+    if (! isVar(body.rator(), 1, 0) || body.args().length != 1) return false;
+    AST arg = body.args()[0];
+    if (isSelfApp(arg, 0)) return ! strict;
+    if (! (arg instanceof Map) || ((Map) arg).vars().length != arity) return false;
+    Map eta = (Map) arg;
+    if (! (eta.body() instanceof App)) return false;
+    App call = (App) eta.body();
+    if (! isSelfApp(call.rator(), 1) || call.args().length != arity) return false;
+    for (int i = 0; i < arity; i++) if (! isVar(call.args()[i], 0, i)) return false;
+    return true;
+  }
+
+  /** Returns true if the variable at (depth, 0) occurs in ast other than as the rator of an application. */
+  private static boolean escapes(AST ast, int depth) { return ast.accept(new Escapes(depth)); }
+
+  /* ASTVisitor methods */
+
+  public AST forApp(App a) {
+    AST rator = rewrite(a.rator());
+    AST[] args = rewriteAll(a.args());
+    int[] fDepth = new int[1];
+    Map f = (args.length == 1) ? known(args[0], fDepth) : null;
+    if (f == null || f.vars().length != 1 || ! (f.body() instanceof Map)) return new App(rator, args);
+    Map m = (Map) f.body();
+    /* self is at depth 1 in the body of the inner Map */
+    if (escapes(m.body(), 1)) return new App(rator, args);
+    Map y = known(rator, new int[1]);
+    if (y == null || ! isY(y, m.vars().length)) return new App(rator, args);
+    /* the LetRec frame takes the place of the functional's frame, at the application site */
+    Variable self = f.vars()[0];
+    Map rec = new Map(m.vars(), Shifter.shift(m.body(), fDepth[0] + 1, 2));
+    return letRec(new Variable[] { self }, new AST[] { rec }, new LexicalVariable(self, 0, 0));
+  }
+
+  public AST forMap(Map m) { return new Map(m.vars(), inFrame(m.body(), new Map[0])); }
+
+  public AST forLet(Let l) {
+    AST[] exps = rewriteAll(l.exps());
+    Map[] known = new Map[exps.length];
+    for (int i = 0; i < exps.length; i++) if (exps[i] instanceof Map) known[i] = (Map) exps[i];
+    return let(l.vars(), exps, inFrame(l.body(), known));
+  }
+
+  public AST forLetRec(LetRec l) {
+    PureList<Map[]> saved = scope;
+    scope = scope.cons(new Map[l.vars().length]);
+    depth++;
+    try { return letRec(l.vars(), rewriteAll(l.exps()), rewrite(l.body())); }
+    finally {
+      depth--;
+      scope = saved;
+    }
+  }
+
+  /** Visitor that computes escapes */
+  private static class Escapes implements ASTVisitor<Boolean> {
+    private int depth;
+    private Escapes(int d) { depth = d; }
+
+    private Boolean any(AST... asts) {
+      for (AST a : asts) if (a.accept(this)) return true;
+      return false;
+    }
+
+    private Boolean inFrame(AST body) {
+      depth++;
+      try { return body.accept(this); }
+      finally { depth--; }
+    }
+
+    public Boolean forBoolConstant(BoolConstant b) { return false; }
+    public Boolean forIntConstant(IntConstant i) { return false; }
+    public Boolean forNullConstant(NullConstant n) { return false; }
+    public Boolean forPrimFun(PrimFun f) { return false; }
+    public Boolean forVariable(Variable v) { return false; }
+    public Boolean forLexicalVariable(LexicalVariable v) { return isVar(v, depth, 0); }
+    public Boolean forUnOpApp(UnOpApp u) { return u.arg().accept(this); }
+    public Boolean forBinOpApp(BinOpApp b) { return any(b.arg1(), b.arg2()); }
+    public Boolean forApp(App a) { return (! isVar(a.rator(), depth, 0) && a.rator().accept(this)) || any(a.args()); }
+    public Boolean forMap(Map m) { return inFrame(m.body()); }
+    public Boolean forIf(If i) { return any(i.test(), i.conseq(), i.alt()); }
+    public Boolean forLet(Let l) { return any(l.exps()) || inFrame(l.body()); }
+    public Boolean forLetRec(LetRec l) {
+      depth++;
+      try { return any(l.exps()) || l.body().accept(this); }
+      finally { depth--; }
+    }
+  }
+}